@@ -1,8 +1,12 @@
 package com.tailworks.ml.neuralnet;
 
+import com.tailworks.ml.neuralnet.math.FastMath;
 import com.tailworks.ml.neuralnet.math.Function;
+import com.tailworks.ml.neuralnet.math.Matrix;
 import com.tailworks.ml.neuralnet.math.Vec;
 
+import java.util.Arrays;
+
 import static java.lang.Math.exp;
 import static java.lang.Math.log;
 
@@ -25,11 +29,22 @@ public class Activation {
     // For most activation function it suffice to map each separate element. 
     // I.e. they depend only on the single component in the vector.
     public Vec fn(Vec in) {
-        return in.map(fn);
+        double[] result = new double[in.dimension()];
+        apply(in.getData(), result, result.length);
+        return new Vec(result);
+    }
+
+    // Same as fn but overwrites the in-vector instead of allocating a new one.
+    public Vec fnInPlace(Vec in) {
+        double[] data = in.getData();
+        apply(data, data, data.length);
+        return in;
     }
 
     public Vec dFn(Vec out) {
-        return out.map(dFn);
+        double[] result = new double[out.dimension()];
+        derivative(out.getData(), result, result.length);
+        return new Vec(result);
     }
 
     // Also when calculating the Error change rate in terms of the input (dCdI)
@@ -38,6 +53,32 @@ public class Activation {
         return dCdO.elementProduct(dFn(out));
     }
 
+    // The batch variants treat each row as one sample. In line with the
+    // rest of the Matrix operations they work in place, on the first argument
+    // for fn and on dCdO for dCdI.
+    public Matrix fn(Matrix in) {
+        return in.map(this::apply);
+    }
+
+    public Matrix dCdI(Matrix out, Matrix dCdO) {
+        return dCdO.elementProduct(out.copy().map(this::derivative));
+    }
+
+    // The bulk kernels everything above ends up in: dst[j] = fn(src[j]) and
+    // dst[j] = dFn(out[j]) for the first n elements (src/out and dst may be
+    // the same array). Here they loop over the lambdas, the predefined ones
+    // below override them with the function written out in the loop so
+    // the JIT can inline (and where possible vectorize) it.
+    public void apply(double[] src, double[] dst, int n) {
+        for (int j = 0; j < n; j++)
+            dst[j] = fn.apply(src[j]);
+    }
+
+    public void derivative(double[] out, double[] dst, int n) {
+        for (int j = 0; j < n; j++)
+            dst[j] = dFn.apply(out[j]);
+    }
+
     public String getName() {
         return name;
     }
@@ -48,62 +89,187 @@ public class Activation {
     // --------------------------------------------------------------------------
     // The simple properties of most activation functions as stated above makes
     // it easy to create the majority of them by just providing lambdas for
-    // fn and the diff dfn.
-
-    public static Activation ReLU = new Activation(
-            "ReLU",
-            x -> x <= 0 ? 0 : x,                // fn
-            x -> x <= 0 ? 0 : 1                 // dFn
-    );
-
-    public static Activation Leaky_ReLU = new Activation(
-            "Leaky_ReLU",
-            x -> x <= 0 ? 0.01 * x : x,         // fn
-            x -> x <= 0 ? 0.01 : 1              // dFn
-    );
-
-    public static Activation Sigmoid = new Activation(
-            "Sigmoid",
-            x -> 1.0 / (1.0 + exp(-x)),         // fn
-            x -> x * (1.0 - x)                  // dFn
-    );
-
-    public static Activation Softplus = new Activation(
-            "Softplus",
-            x -> log(1.0 + exp(x)),             // fn
-            x -> 1.0 / (1.0 + exp(-x))          // dFn
-    );
-
-    public static Activation Identity = new Activation(
-            "Identity",
-            x -> x,                             // fn
-            x -> 1                              // dFn
-    );
+    // fn and the diff dfn, e.g.
+    //
+    //   new Activation("Tanh", x -> Math.tanh(x), x -> 1 - x * x)
+    //
+    // The predefined ones are used on every layer and instead spell out the
+    // loops of the bulk kernels.
+    //
+    // The _FastExp variants compute e^x with FastMath.exp, vectorized where
+    // supported, at a relative error below FastMath.EXP_MAX_RELATIVE_ERROR.
 
+    public static Activation ReLU = new Activation("ReLU") {
+        @Override
+        public void apply(double[] src, double[] dst, int n) {
+            for (int j = 0; j < n; j++)
+                dst[j] = src[j] <= 0 ? 0 : src[j];
+        }
 
-    // --------------------------------------------------------------------------
-    // Softmax needs a little extra love since element output depends on more
-    // than one component of the vector. Simple element mapping will not suffice.
-    // --------------------------------------------------------------------------
-    public static Activation Softmax = new Activation("Softmax") {
         @Override
-        public Vec fn(Vec in) {
-            double[] data = in.getData();
-            double sum = 0;
-            double max = in.max();    // Trick: translate the input by largest element to avoid overflow.
-            for (double a : data)
-                sum += exp(a - max);
-
-            double finalSum = sum;
-            return in.map(a -> exp(a - max) / finalSum);
+        public void derivative(double[] out, double[] dst, int n) {
+            for (int j = 0; j < n; j++)
+                dst[j] = out[j] <= 0 ? 0 : 1;
+        }
+    };
+
+    public static Activation Leaky_ReLU = new Activation("Leaky_ReLU") {
+        @Override
+        public void apply(double[] src, double[] dst, int n) {
+            for (int j = 0; j < n; j++)
+                dst[j] = src[j] <= 0 ? 0.01 * src[j] : src[j];
         }
 
         @Override
-        public Vec dCdI(Vec out, Vec dCdO) {
-            double x = out.elementProduct(dCdO).sumElements();
-            Vec sub = dCdO.sub(x);
-            return out.elementProduct(sub);
+        public void derivative(double[] out, double[] dst, int n) {
+            for (int j = 0; j < n; j++)
+                dst[j] = out[j] <= 0 ? 0.01 : 1;
         }
     };
 
+    public static Activation Sigmoid = sigmoid("Sigmoid", false);
+
+    public static Activation Sigmoid_FastExp = sigmoid("Sigmoid_FastExp", true);
+
+    public static Activation Softplus = softplus("Softplus", false);
+
+    public static Activation Softplus_FastExp = softplus("Softplus_FastExp", true);
+
+    public static Activation Identity = new Activation("Identity") {
+        @Override
+        public void apply(double[] src, double[] dst, int n) {
+            if (src != dst)
+                System.arraycopy(src, 0, dst, 0, n);
+        }
+
+        @Override
+        public void derivative(double[] out, double[] dst, int n) {
+            Arrays.fill(dst, 0, n, 1);
+        }
+    };
+
+    private static Activation sigmoid(String name, boolean fastExp) {
+        return new Activation(name) {
+            @Override
+            public void apply(double[] src, double[] dst, int n) {
+                if (fastExp) {
+                    // 1 / (1 + e^-x) in three passes, exp(-x) is vectorized
+                    for (int j = 0; j < n; j++)
+                        dst[j] = -src[j];
+                    FastMath.exp(dst, dst, n);
+                    for (int j = 0; j < n; j++)
+                        dst[j] = 1.0 / (1.0 + dst[j]);
+                } else {
+                    for (int j = 0; j < n; j++)
+                        dst[j] = 1.0 / (1.0 + exp(-src[j]));
+                }
+            }
+
+            @Override
+            public void derivative(double[] out, double[] dst, int n) {
+                for (int j = 0; j < n; j++)
+                    dst[j] = out[j] * (1.0 - out[j]);
+            }
+        };
+    }
+
+    private static Activation softplus(String name, boolean fastExp) {
+        return new Activation(name) {
+            @Override
+            public void apply(double[] src, double[] dst, int n) {
+                if (fastExp) {
+                    FastMath.exp(src, dst, n);
+                    for (int j = 0; j < n; j++)
+                        dst[j] = log(1.0 + dst[j]);
+                } else {
+                    for (int j = 0; j < n; j++)
+                        dst[j] = log(1.0 + exp(src[j]));
+                }
+            }
+
+            @Override
+            public void derivative(double[] out, double[] dst, int n) {
+                if (fastExp) {
+                    for (int j = 0; j < n; j++)
+                        dst[j] = -out[j];
+                    FastMath.exp(dst, dst, n);
+                    for (int j = 0; j < n; j++)
+                        dst[j] = 1.0 / (1.0 + dst[j]);
+                } else {
+                    for (int j = 0; j < n; j++)
+                        dst[j] = 1.0 / (1.0 + exp(-out[j]));
+                }
+            }
+        };
+    }
+
+
+    // --------------------------------------------------------------------------
+    // Softmax needs a little extra love since element output depends on more
+    // than one component of the vector. Simple element mapping will not suffice.
+    // --------------------------------------------------------------------------
+    public static Activation Softmax = softmax("Softmax", false);
+
+    public static Activation Softmax_FastExp = softmax("Softmax_FastExp", true);
+
+    private static Activation softmax(String name, boolean fastExp) {
+        return new Activation(name) {
+            // Here apply is the softmax of all n elements as one vector
+            @Override
+            public void apply(double[] src, double[] dst, int n) {
+                double max = Double.NEGATIVE_INFINITY;    // Trick: translate the input by largest element to avoid overflow.
+                for (int i = 0; i < n; i++)
+                    if (src[i] > max) max = src[i];
+
+                for (int i = 0; i < n; i++)
+                    dst[i] = src[i] - max;
+                if (fastExp) {
+                    FastMath.exp(dst, dst, n);
+                } else {
+                    for (int i = 0; i < n; i++)
+                        dst[i] = exp(dst[i]);
+                }
+
+                double sum = 0;
+                for (int i = 0; i < n; i++)
+                    sum += dst[i];
+                for (int i = 0; i < n; i++)
+                    dst[i] /= sum;
+            }
+
+            @Override
+            public Vec dCdI(Vec out, Vec dCdO) {
+                double x = out.elementProduct(dCdO).sumElements();
+                Vec sub = dCdO.sub(x);
+                return out.elementProduct(sub);
+            }
+
+            @Override
+            public Matrix fn(Matrix in) {
+                for (int row = 0; row < in.rows(); row++)
+                    in.setRow(row, fnInPlace(in.getRow(row)));
+                return in;
+            }
+
+            @Override
+            public Matrix dCdI(Matrix out, Matrix dCdO) {
+                for (int row = 0; row < out.rows(); row++)
+                    dCdO.setRow(row, dCdI(out.getRow(row), dCdO.getRow(row)));
+                return dCdO;
+            }
+        };
+    }
+
+    /**
+     * The predefined activation with the given name, as returned by
+     * <code>getName()</code>. Used when reading a saved network.
+     */
+    public static Activation forName(String name) {
+        for (Activation activation : Arrays.asList(ReLU, Leaky_ReLU, Sigmoid, Sigmoid_FastExp, Softplus, Softplus_FastExp, Identity, Softmax, Softmax_FastExp))
+            if (activation.getName().equals(name))
+                return activation;
+
+        throw new IllegalArgumentException("No predefined activation named " + name);
+    }
+
 }
@@ -0,0 +1,54 @@
+package com.tailworks.ml.neuralnet;
+
+import com.tailworks.ml.neuralnet.math.Matrix;
+
+import java.util.Arrays;
+
+/**
+ * The outcome of evaluating a batch, one row per sample.
+ * Will always contain the output data.
+ * Contains the cost of each sample if expected values were given.
+ */
+public class BatchResult {
+
+    private final Matrix output;
+    private final double[] costs;
+
+    public BatchResult(Matrix output) {
+        this.output = output;
+        costs = null;
+    }
+
+    public BatchResult(Matrix output, double[] costs) {
+        this.output = output;
+        this.costs = costs;
+    }
+
+    public Matrix getOutput() {
+        return output;
+    }
+
+    public double[] getCosts() {
+        return costs;
+    }
+
+    public int size() {
+        return output.rows();
+    }
+
+    /**
+     * The result for a single sample in the batch.
+     */
+    public Result getResult(int sample) {
+        return costs != null
+                ? new Result(output.getRow(sample), costs[sample])
+                : new Result(output.getRow(sample));
+    }
+
+    @Override
+    public String toString() {
+        return "BatchResult{" + "size=" + size() +
+                ", costs=" + Arrays.toString(costs) +
+                '}';
+    }
+}
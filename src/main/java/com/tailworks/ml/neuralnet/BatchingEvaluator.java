@@ -0,0 +1,160 @@
+package com.tailworks.ml.neuralnet;
+
+import com.tailworks.ml.neuralnet.math.Matrix;
+import com.tailworks.ml.neuralnet.math.Vec;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static java.lang.String.format;
+
+/**
+ * Evaluates single input vectors submitted from many threads as batches.
+ * <p>
+ * A dispatcher thread collects the submitted inputs until it has
+ * <code>maxBatchSize</code> of them, or until <code>maxDelayMicros</code>
+ * has passed since the first one arrived, and runs them through
+ * <code>evaluateBatch</code> as one forward pass. Each caller gets its
+ * own Result through the future returned by <code>submit</code>.
+ * <p>
+ * A larger batch does more work per weight read, a longer delay lets
+ * larger batches form when requests are sparse, at the cost of latency.
+ * Under load batches fill up before the delay expires; a delay of 0
+ * only batches what has already queued up while the previous batch ran.
+ * <p>
+ * Nothing is learned from the inputs. Close the evaluator to stop the
+ * dispatcher thread, inputs still waiting then fail.
+ */
+public class BatchingEvaluator implements AutoCloseable {
+
+    private static final class Request {
+        final Vec input;
+        final CompletableFuture<Result> result = new CompletableFuture<>();
+
+        Request(Vec input) {
+            this.input = input;
+        }
+    }
+
+    private final NeuralNetwork network;
+    private final int inputSize;
+    private final int maxBatchSize;
+    private final long maxDelayMicros;
+    private final BlockingQueue<Request> queue = new LinkedBlockingQueue<>();
+    private final Thread dispatcher;
+    private volatile boolean closed = false;
+
+    /**
+     * @param maxBatchSize   The largest number of inputs evaluated as one batch
+     * @param maxDelayMicros The longest time an input waits for others to batch with
+     */
+    public BatchingEvaluator(NeuralNetwork network, int maxBatchSize, long maxDelayMicros) {
+        if (maxBatchSize < 1 || maxDelayMicros < 0)
+            throw new IllegalArgumentException(format("Invalid batch size %d or delay %d", maxBatchSize, maxDelayMicros));
+
+        this.network = network;
+        this.maxBatchSize = maxBatchSize;
+        this.maxDelayMicros = maxDelayMicros;
+        inputSize = network.getLayers().get(0).size();
+
+        dispatcher = new Thread(this::dispatch, "BatchingEvaluator");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+    }
+
+    /**
+     * Queues an input vector for evaluation.
+     *
+     * @return The networks output for the input, once its batch has been evaluated
+     */
+    public CompletableFuture<Result> submit(Vec input) {
+        if (input.dimension() != inputSize)
+            throw new IllegalArgumentException(format("Different dimensions: Input is %d, network takes %d", input.dimension(), inputSize));
+
+        Request request = new Request(input);
+        queue.add(request);
+
+        // Closed after the request was added, the dispatcher might not see it
+        if (closed && queue.remove(request))
+            request.result.completeExceptionally(new IllegalStateException("The evaluator is closed"));
+
+        return request.result;
+    }
+
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    public long getMaxDelayMicros() {
+        return maxDelayMicros;
+    }
+
+    /**
+     * Stops the dispatcher thread. The batch being collected is evaluated,
+     * inputs still in the queue fail with an IllegalStateException.
+     */
+    @Override
+    public void close() throws InterruptedException {
+        closed = true;
+        dispatcher.interrupt();
+        dispatcher.join();
+
+        for (Request request; (request = queue.poll()) != null; )
+            request.result.completeExceptionally(new IllegalStateException("The evaluator is closed"));
+    }
+
+    // -------------------------------------------------------------------------
+
+    private void dispatch() {
+        List<Request> batch = new ArrayList<>(maxBatchSize);
+        try {
+            while (!closed) {
+                batch.add(queue.take());
+                collect(batch, System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(maxDelayMicros));
+                evaluate(batch);
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            evaluate(batch);    // Closed, finish what was collected
+        }
+    }
+
+    // Adds requests to the batch until it is full or the deadline has passed
+    private void collect(List<Request> batch, long deadline) throws InterruptedException {
+        while (batch.size() < maxBatchSize) {
+            if (queue.drainTo(batch, maxBatchSize - batch.size()) > 0)
+                continue;
+
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0)
+                return;
+
+            Request request = queue.poll(remaining, TimeUnit.NANOSECONDS);
+            if (request == null)
+                return;
+            batch.add(request);
+        }
+    }
+
+    private void evaluate(List<Request> batch) {
+        if (batch.isEmpty())
+            return;
+
+        try {
+            Matrix inputs = new Matrix(batch.size(), inputSize);
+            for (int row = 0; row < batch.size(); row++)
+                inputs.setRow(row, batch.get(row).input);
+
+            BatchResult result = network.evaluateBatch(inputs);
+            for (int row = 0; row < batch.size(); row++)
+                batch.get(row).result.complete(result.getResult(row));
+        } catch (RuntimeException e) {
+            for (Request request : batch)
+                request.result.completeExceptionally(e);
+        }
+    }
+}
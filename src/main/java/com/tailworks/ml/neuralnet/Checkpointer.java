@@ -0,0 +1,289 @@
+package com.tailworks.ml.neuralnet;
+
+import com.tailworks.ml.neuralnet.math.Matrix;
+import com.tailworks.ml.neuralnet.math.Precision;
+import com.tailworks.ml.neuralnet.math.Vec;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static java.lang.String.format;
+
+/**
+ * Saves checkpoints of a network while it trains, from which training can
+ * be resumed exactly where it was: the weights and biases, the deltas not
+ * yet applied and the state of the optimizer of every layer.
+ * <p>
+ * <code>checkpoint(network, step)</code> takes a consistent copy of the
+ * layers, between two updates, and returns at once. The weights and
+ * biases of the last update are never changed so they are not even
+ * copied (unless off-heap, as those buffers are reused), the deltas and
+ * optimizer state are. In lock-free training, where the learning threads
+ * change the weights in place, those threads hold off their next sample
+ * while the weights, biases and optimizer state are copied (samples under
+ * way may still land in the copy, as lock-free training allows). The copy
+ * is written by a thread of the checkpointer to a temporary file, synced
+ * to disk and then renamed to its final name in one atomic step, so a
+ * crash leaves either the whole checkpoint or none. Only the last <code>keep</code>
+ * checkpoints are kept.
+ * <p>
+ * For the training to go on exactly as it would have, checkpoint from
+ * the training thread right after <code>updateFromLearning()</code>, and
+ * restore into a network built the same way (same layers, activations
+ * and optimizer), before training it.
+ * <p>
+ * Close the checkpointer to wait for the checkpoints still being written.
+ */
+public class Checkpointer implements AutoCloseable {
+
+    private static final int MAGIC = 0x434B5054;    // "CKPT"
+    private static final int VERSION = 1;
+    private static final String PREFIX = "checkpoint-";
+    private static final String SUFFIX = ".ckpt";
+
+    private final Path directory;
+    private final int keep;
+    private final ExecutorService writer;
+    private CompletableFuture<Path> lastWrite = CompletableFuture.completedFuture(null);
+
+    /**
+     * @param directory Where the checkpoints are written, must exist
+     * @param keep      The number of checkpoints to keep, older ones are deleted
+     */
+    public Checkpointer(Path directory, int keep) {
+        if (keep < 1)
+            throw new IllegalArgumentException("At least one checkpoint must be kept");
+
+        this.directory = directory;
+        this.keep = keep;
+        writer = Executors.newSingleThreadExecutor(task -> {
+            Thread thread = new Thread(task, "Checkpointer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Takes a checkpoint of <code>network</code> and writes it in the
+     * background. If the previous checkpoint is still being written this
+     * first waits for it, so there is never more than one copy in memory.
+     *
+     * @param step The training step, e.g. the number of updates so far, given back by <code>restore</code>
+     * @return Completes with the file written, or exceptionally if it could not be written
+     */
+    public synchronized CompletableFuture<Path> checkpoint(NeuralNetwork network, long step) {
+        lastWrite.handle((file, e) -> null).join();
+
+        Snapshot snapshot = network.atRest(() -> new Snapshot(network, step));
+        lastWrite = CompletableFuture.supplyAsync(() -> {
+            try {
+                return write(snapshot);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, writer);
+
+        return lastWrite;
+    }
+
+    /**
+     * The checkpoints in <code>directory</code>, oldest first.
+     */
+    public static List<Path> list(Path directory) throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX)) {
+            stream.forEach(files::add);
+        }
+
+        Collections.sort(files);    // The step is zero padded
+        return files;
+    }
+
+    /**
+     * The last checkpoint written in <code>directory</code>, null if there is none.
+     */
+    public static Path latest(Path directory) throws IOException {
+        List<Path> files = list(directory);
+        return files.isEmpty() ? null : files.get(files.size() - 1);
+    }
+
+    /**
+     * Restores the weights, biases, deltas and optimizer state of
+     * <code>network</code> from a checkpoint. The network must have the
+     * layers the checkpoint was taken of, and the same kind of optimizer.
+     *
+     * @return The step given when the checkpoint was taken
+     */
+    public static long restore(Path file, NeuralNetwork network) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC)
+                throw new IOException(file + " is not a checkpoint");
+            int version = in.readInt();
+            if (version != VERSION)
+                throw new IOException(format("Version %d of the checkpoint format is not supported", version));
+            long step = in.readLong();
+
+            List<Layer> layers = network.getLayers();
+            Matrix[] weights = new Matrix[layers.size()];
+            Vec[] biases = new Vec[layers.size()];
+            WireFormat.readParameters(in, layers, weights, biases);
+
+            Matrix[] deltaWeights = new Matrix[layers.size()];
+            Vec[] deltaBiases = new Vec[layers.size()];
+            int[] samples = new int[layers.size()];
+            Matrix[][] optimizerStates = new Matrix[layers.size()][];
+            for (int l = 1; l < layers.size(); l++) {
+                samples[l] = in.readInt();
+                if (samples[l] > 0) {
+                    deltaWeights[l] = WireFormat.read(in, weights[l].like(), Precision.DOUBLE);
+                    deltaBiases[l] = WireFormat.read(in, new Vec(weights[l].cols()), Precision.DOUBLE);
+                }
+
+                optimizerStates[l] = new Matrix[in.readInt()];
+                for (int i = 0; i < optimizerStates[l].length; i++) {
+                    int rows = in.readInt();
+                    if (rows >= 0) {
+                        int cols = in.readInt();
+                        int ordinal = in.readInt();
+                        if (ordinal < 0 || ordinal >= Precision.values().length)
+                            throw new IOException(format("Unknown precision %d", ordinal));
+                        Precision precision = Precision.values()[ordinal];
+                        Matrix state = weights[l].isOffHeap() ? Matrix.offHeap(rows, cols, precision) : new Matrix(rows, cols, precision);
+                        optimizerStates[l][i] = WireFormat.read(in, state, Precision.DOUBLE);
+                    }
+                }
+            }
+
+            network.atRest(() -> {
+                network.setParameters(weights, biases);
+                for (int l = 1; l < layers.size(); l++) {
+                    Layer layer = layers.get(l);
+                    layer.setDeltas(deltaWeights[l], deltaBiases[l], samples[l]);
+                    layer.setOptimizerState(optimizerStates[l]);
+                }
+                return null;
+            });
+
+            return step;
+        }
+    }
+
+    @Override
+    public void close() {
+        writer.shutdown();
+        try {
+            writer.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // -------------------------------------------------------------------------
+
+    // A copy of all that is needed to go on training, taken between two updates
+    private static class Snapshot {
+        final long step;
+        final Layer.Parameters[] parameters;
+        final Matrix[] deltaWeights;
+        final Vec[] deltaBiases;
+        final int[] samples;
+        final Matrix[][] optimizerStates;
+
+        Snapshot(NeuralNetwork network, long step) {
+            List<Layer> layers = network.getLayers();
+            this.step = step;
+            parameters = network.getParameters().clone();
+            deltaWeights = new Matrix[layers.size()];
+            deltaBiases = new Vec[layers.size()];
+            samples = new int[layers.size()];
+            optimizerStates = new Matrix[layers.size()][];
+
+            for (int l = 1; l < layers.size(); l++) {
+                Layer layer = layers.get(l);
+                Matrix weights = parameters[l].weights;
+                // Changed in place, or off-heap and written over by the update after next
+                if (network.isLockFree() || weights.isOffHeap())
+                    parameters[l] = new Layer.Parameters(weights.copy(), new Vec(parameters[l].bias.getData().clone()));
+
+                deltaWeights[l] = weights.like();
+                deltaBiases[l] = new Vec(weights.cols());
+                samples[l] = layer.copyDeltasTo(deltaWeights[l], deltaBiases[l]);
+                optimizerStates[l] = layer.getOptimizerState();
+            }
+        }
+    }
+
+    private Path write(Snapshot snapshot) throws IOException {
+        Path file = directory.resolve(format("%s%019d%s", PREFIX, snapshot.step, SUFFIX));
+        Path temp = directory.resolve(file.getFileName() + ".tmp");
+
+        try (FileOutputStream stream = new FileOutputStream(temp.toFile())) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(snapshot.step);
+            WireFormat.writeParameters(out, snapshot.parameters);
+
+            for (int l = 1; l < snapshot.parameters.length; l++) {
+                out.writeInt(snapshot.samples[l]);
+                if (snapshot.samples[l] > 0) {
+                    WireFormat.write(out, snapshot.deltaWeights[l], Precision.DOUBLE);
+                    WireFormat.write(out, snapshot.deltaBiases[l], Precision.DOUBLE);
+                }
+
+                out.writeInt(snapshot.optimizerStates[l].length);
+                for (Matrix state : snapshot.optimizerStates[l]) {
+                    if (state == null) {
+                        out.writeInt(-1);
+                    } else {
+                        out.writeInt(state.rows());
+                        out.writeInt(state.cols());
+                        out.writeInt(state.precision().ordinal());
+                        WireFormat.write(out, state, Precision.DOUBLE);
+                    }
+                }
+            }
+
+            out.flush();
+            stream.getFD().sync();
+        }
+
+        Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        syncDirectory();
+        deleteOld();
+        return file;
+    }
+
+    // Makes the rename itself durable, where the platform allows it
+    private void syncDirectory() {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // Not supported for directories on every platform
+        }
+    }
+
+    private void deleteOld() throws IOException {
+        List<Path> files = list(directory);
+        for (int i = 0; i < files.size() - keep; i++)
+            Files.deleteIfExists(files.get(i));
+    }
+}
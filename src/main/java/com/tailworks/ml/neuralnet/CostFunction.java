@@ -8,6 +8,18 @@ public interface CostFunction {
     double getTotal(Vec expected, Vec actual);
     Vec getDerivative(Vec expected, Vec actual);
 
+    /**
+     * The predefined cost function with the given name, as returned by
+     * <code>getName()</code>. Used when reading a saved network.
+     */
+    static CostFunction forName(String name) {
+        for (CostFunction costFunction : new CostFunction[]{new MSE(), new Quadratic(), new HalfQuadratic()})
+            if (costFunction.getName().equals(name))
+                return costFunction;
+
+        throw new IllegalArgumentException("No predefined cost function named " + name);
+    }
+
 
     // --------------------------------------------------------------
 
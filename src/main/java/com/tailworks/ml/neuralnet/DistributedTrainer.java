@@ -0,0 +1,123 @@
+package com.tailworks.ml.neuralnet;
+
+import com.tailworks.ml.neuralnet.math.Matrix;
+import com.tailworks.ml.neuralnet.math.Precision;
+import com.tailworks.ml.neuralnet.math.Vec;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * A worker in data parallel training with a ParameterServer.
+ * <p>
+ * Each call to <code>train</code> is one round: the deltas of the
+ * mini-batch are gathered like the Trainer does, on all threads of the
+ * pool, and sent to the server instead of being applied locally. The
+ * call returns when the server has updated the weights with the deltas
+ * of all workers, and the network of the worker has been given the new
+ * weights.
+ * <p>
+ * Gradients can be sent as floats (<code>Precision.FLOAT</code>), which
+ * halves the traffic at the cost of rounding them. The weights coming
+ * back are always exact.
+ * <p>
+ * A trainer should only be used by one thread at a time. To run one as a
+ * process of its own see DistributedWorker.
+ */
+public class DistributedTrainer implements AutoCloseable {
+
+    private final NeuralNetwork network;
+    private final Trainer trainer;
+    private final Precision gradientPrecision;
+    private final Socket socket;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+
+    public DistributedTrainer(NeuralNetwork network, String host, int port) throws IOException {
+        this(network, host, port, ForkJoinPool.commonPool(), Precision.DOUBLE);
+    }
+
+    /**
+     * Connects to the server and takes over its weights.
+     *
+     * @param gradientPrecision How the gradients are sent, FLOAT to compress them
+     */
+    public DistributedTrainer(NeuralNetwork network, String host, int port, ForkJoinPool pool, Precision gradientPrecision) throws IOException {
+        this.network = network;
+        this.gradientPrecision = gradientPrecision;
+        trainer = new Trainer(network, pool);
+
+        socket = new Socket(host, port);
+        socket.setTcpNoDelay(true);
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+        out.writeInt(gradientPrecision.ordinal());
+        out.flush();
+        receiveParameters();
+    }
+
+    /**
+     * Learns from one mini-batch of this workers shard, one sample per
+     * row, and waits for the weights updated with the mini-batches of
+     * all workers.
+     *
+     * @return The cost of each sample
+     */
+    public double[] train(Matrix inputs, Matrix expected) throws IOException {
+        double[] costs = new double[inputs.rows()];
+
+        Gradients gradients = trainer.computeGradients(inputs, expected, costs);
+        try {
+            WireFormat.writeGradients(out, gradients, network.getLayers().size(), gradientPrecision);
+        } finally {
+            trainer.release(gradients);
+        }
+
+        receiveParameters();
+        return costs;
+    }
+
+    /**
+     * Learns from all samples of this workers shard, in mini-batches of
+     * <code>batchSize</code> consecutive rows. All workers must train on
+     * the same number of mini-batches.
+     *
+     * @return The average cost of the samples
+     */
+    public double trainEpoch(Matrix inputs, Matrix expected, int batchSize) throws IOException {
+        double sum = 0;
+        for (int row = 0; row < inputs.rows(); row += batchSize) {
+            int rows = Math.min(batchSize, inputs.rows() - row);
+            for (double cost : train(inputs.subMatrix(row, 0, rows, inputs.cols()), expected.subMatrix(row, 0, rows, expected.cols())))
+                sum += cost;
+        }
+
+        return sum / inputs.rows();
+    }
+
+    /**
+     * Tells the server that this worker is done and disconnects.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            WireFormat.writeDone(out);
+        } finally {
+            socket.close();
+        }
+    }
+
+    private void receiveParameters() throws IOException {
+        int layers = network.getLayers().size();
+        Matrix[] weights = new Matrix[layers];
+        Vec[] biases = new Vec[layers];
+        WireFormat.readParameters(in, network.getLayers(), weights, biases);
+        network.setParameters(weights, biases);
+    }
+}
@@ -0,0 +1,47 @@
+package com.tailworks.ml.neuralnet;
+
+import com.tailworks.ml.neuralnet.math.Matrix;
+import com.tailworks.ml.neuralnet.math.Precision;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Runs a DistributedTrainer in a process of its own:
+ * <pre>
+ *   DistributedWorker host port model data epochs batchSize [float]
+ * </pre>
+ * The network is loaded from <code>model</code>, a ModelFile (only its
+ * layers matter, the weights are taken over from the server). The shard
+ * is <code>data</code>, little-endian doubles, each sample its inputs
+ * followed by its expected outputs. With <code>float</code> the
+ * gradients are sent as floats. Prints the average cost of each epoch.
+ */
+public final class DistributedWorker {
+
+    private DistributedWorker() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 6 || args.length > 7 || (args.length == 7 && !args[6].equals("float"))) {
+            System.err.println("Usage: DistributedWorker host port model data epochs batchSize [float]");
+            System.exit(2);
+        }
+
+        NeuralNetwork network = ModelFile.load(Paths.get(args[2]));
+        List<Layer> layers = network.getLayers();
+        MappedDataset shard = MappedDataset.fixedWidth(Paths.get(args[3]), layers.get(0).size(), layers.get(layers.size() - 1).size(),
+                Precision.DOUBLE, ByteOrder.LITTLE_ENDIAN);
+        Precision gradientPrecision = args.length == 7 ? Precision.FLOAT : Precision.DOUBLE;
+
+        try (DistributedTrainer trainer = new DistributedTrainer(network, args[0], Integer.parseInt(args[1]), ForkJoinPool.commonPool(), gradientPrecision)) {
+            Matrix inputs = shard.getInputs(0, shard.size());
+            Matrix expected = shard.getLabels(0, shard.size());
+            for (int epoch = 1, epochs = Integer.parseInt(args[4]); epoch <= epochs; epoch++)
+                System.out.printf("Epoch %d: %f%n", epoch, trainer.trainEpoch(inputs, expected, Integer.parseInt(args[5])));
+        }
+    }
+}
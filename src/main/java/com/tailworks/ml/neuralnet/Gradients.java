@@ -0,0 +1,99 @@
+package com.tailworks.ml.neuralnet;
+
+import com.tailworks.ml.neuralnet.math.Matrix;
+import com.tailworks.ml.neuralnet.math.Vec;
+
+import java.util.List;
+
+/**
+ * Weight and bias deltas for every layer of a network, gathered outside
+ * of the layers. Lets a thread learn from its share of a batch without
+ * touching (and locking) the layers, the deltas are handed over to the
+ * layers in one go with <code>applyTo</code>.
+ * <p>
+ * Index 0 is the input layer, which has no deltas.
+ * Not thread safe.
+ */
+public class Gradients {
+
+    private final Matrix[] deltaWeights;
+    private final Vec[] deltaBias;
+    private final int[] samples;
+
+    public Gradients(List<Layer> layers) {
+        deltaWeights = new Matrix[layers.size()];
+        deltaBias = new Vec[layers.size()];
+        samples = new int[layers.size()];
+        for (int l = 1; l < layers.size(); l++) {
+            deltaWeights[l] = layers.get(l).getWeights().like();
+            deltaBias[l] = new Vec(layers.get(l).size());
+        }
+    }
+
+    public Matrix getDeltaWeights(int layer) {
+        return deltaWeights[layer];
+    }
+
+    public Vec getDeltaBias(int layer) {
+        return deltaBias[layer];
+    }
+
+    /**
+     * The number of samples the deltas of the layer are summed over.
+     */
+    public int getSamples(int layer) {
+        return samples[layer];
+    }
+
+    /**
+     * Same as <code>Layer.addDeltas(Matrix, Matrix)</code>, into the deltas
+     * of layer number <code>layer</code>.
+     */
+    void addDeltas(int layer, Matrix in, Matrix dCdI) {
+        deltaWeights[layer].addProduct(in.transpose(), dCdI);
+        deltaBias[layer].addInPlace(dCdI.columnSums());
+        samples[layer] += dCdI.rows();
+    }
+
+    /**
+     * Sets the number of samples the deltas of the layer are summed over,
+     * for deltas filled in through <code>getDeltaWeights</code> and
+     * <code>getDeltaBias</code>.
+     */
+    void setSamples(int layer, int samples) {
+        this.samples[layer] = samples;
+    }
+
+    /**
+     * Adds the deltas of <code>other</code> to these.
+     */
+    public Gradients add(Gradients other) {
+        for (int l = 1; l < samples.length; l++) {
+            if (other.samples[l] == 0)
+                continue;
+            deltaWeights[l].add(other.deltaWeights[l]);
+            deltaBias[l].addInPlace(other.deltaBias[l]);
+            samples[l] += other.samples[l];
+        }
+        return this;
+    }
+
+    /**
+     * Adds the deltas to the not yet applied deltas of the layers.
+     * Like the deltas gathered by <code>evaluate</code> they take effect
+     * on <code>updateFromLearning()</code>.
+     */
+    public void applyTo(List<Layer> layers) {
+        for (int l = 1; l < samples.length; l++)
+            if (samples[l] > 0)
+                layers.get(l).addDeltaWeightsAndBiases(deltaWeights[l], deltaBias[l], samples[l]);
+    }
+
+    public void clear() {
+        for (int l = 1; l < samples.length; l++) {
+            deltaWeights[l].map(a -> 0);
+            deltaBias[l].mapInPlace(a -> 0);
+            samples[l] = 0;
+        }
+    }
+}
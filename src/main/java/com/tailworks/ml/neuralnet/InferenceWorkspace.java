@@ -0,0 +1,48 @@
+package com.tailworks.ml.neuralnet;
+
+import com.tailworks.ml.neuralnet.math.Vec;
+
+import java.util.List;
+
+/**
+ * Preallocated buffers for evaluating a network without heap allocation.
+ * The out vector of every layer is allocated once, when the workspace
+ * is created, and then reused by each call to <code>evaluate</code>.
+ * <p>
+ * Weights and biases are read from the network on each call, so the
+ * workspace keeps following the network as it learns.
+ * <p>
+ * Not thread safe: use one workspace per thread.
+ */
+public class InferenceWorkspace {
+
+    private final NeuralNetwork network;
+    private final List<Layer> layers;
+    private final Vec[] outs;
+
+    InferenceWorkspace(NeuralNetwork network) {
+        this.network = network;
+        layers = network.getLayers();
+        outs = new Vec[layers.size()];
+        for (int l = 1; l < layers.size(); l++)
+            outs[l] = new Vec(layers.get(l).size());
+    }
+
+    /**
+     * Evaluates an input vector, returning the networks output.
+     * The returned vector belongs to the workspace and is overwritten
+     * by the next call.
+     */
+    public Vec evaluate(Vec input) {
+        Layer.Parameters[] parameters = network.acquireParameters();
+        try {
+            Vec signal = input;
+            for (int l = 1; l < layers.size(); l++)
+                signal = layers.get(l).evaluate(signal, outs[l], parameters[l]);
+
+            return signal;
+        } finally {
+            NeuralNetwork.releaseParameters(parameters);
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package com.tailworks.ml.neuralnet;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import com.tailworks.ml.neuralnet.math.Matrix;
+import com.tailworks.ml.neuralnet.math.Vec;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static java.lang.String.format;
+
+/**
+ * Writes and reads the JSON form of a network, the same document as the
+ * Gson serialization of NetworkState, as a stream: layer by layer and
+ * row by row, without building the document (or a copy of the weights)
+ * in memory first.
+ * <pre>
+ *   {"costFunction": "...", "layers": [{"weights": [[...], ...], "bias": [...], "activation": "..."}, ...]}
+ * </pre>
+ * The first layer is the input layer, which has no weights.
+ */
+final class JsonFormat {
+
+    private JsonFormat() {
+    }
+
+    static void write(NeuralNetwork network, Writer out, boolean pretty) throws IOException {
+        JsonWriter json = new JsonWriter(out);
+        json.setHtmlSafe(true);
+        if (pretty)
+            json.setIndent("  ");
+
+        json.beginObject();
+        json.name("costFunction").value(network.getCostFunction().getName());
+        json.name("layers").beginArray();
+
+        Layer.Parameters[] parameters = network.acquireParameters();
+        try {
+            for (int l = 0; l < parameters.length; l++) {
+                json.beginObject();
+                Matrix weights = parameters[l].weights;
+                if (weights != null) {
+                    json.name("weights").beginArray();
+                    for (int row = 0; row < weights.rows(); row++)
+                        write(json, weights.getRow(row));
+                    json.endArray();
+                }
+                json.name("bias");
+                write(json, parameters[l].bias);
+                json.name("activation").value(network.getLayers().get(l).getActivation().getName());
+                json.endObject();
+            }
+        } finally {
+            NeuralNetwork.releaseParameters(parameters);
+        }
+
+        json.endArray();
+        json.endObject();
+        json.flush();
+    }
+
+    /**
+     * Reads a network, with predefined activations and cost function
+     * only, through NeuralNetwork.Builder.
+     */
+    static NeuralNetwork read(Reader in) throws IOException {
+        JsonReader json = new JsonReader(in);
+        NeuralNetwork.Builder builder = null;
+        CostFunction costFunction = null;
+        List<Matrix> weights = new ArrayList<>();
+
+        json.beginObject();
+        while (json.hasNext()) {
+            String name = json.nextName();
+            if (name.equals("costFunction")) {
+                costFunction = CostFunction.forName(json.nextString());
+            } else if (name.equals("layers")) {
+                json.beginArray();
+                int size = -1;      // The size of the preceding layer
+                while (json.hasNext()) {
+                    LayerJson layer = readLayer(json, size);
+                    if (size < 0) {
+                        builder = new NeuralNetwork.Builder(layer.bias.dimension());
+                    } else {
+                        if (layer.weights == null)
+                            throw new IOException("Layer " + weights.size() + " after the input layer has no weights");
+                        weights.add(layer.weights);
+                        builder.addLayer(new Layer(layer.bias.dimension(), layer.activation, layer.bias));
+                    }
+                    size = layer.bias.dimension();
+                }
+                json.endArray();
+            } else {
+                json.skipValue();
+            }
+        }
+        json.endObject();
+
+        if (builder == null)
+            throw new IOException("No layers");
+        if (costFunction != null)
+            builder.setCostFunction(costFunction);
+        return builder.useWeights(weights).create();
+    }
+
+    // -------------------------------------------------------------------------
+
+    private static class LayerJson {
+        Matrix weights;
+        Vec bias;
+        Activation activation;
+    }
+
+    // rows is the size of the preceding layer, -1 for the input layer
+    private static LayerJson readLayer(JsonReader json, int rows) throws IOException {
+        LayerJson layer = new LayerJson();
+        json.beginObject();
+        while (json.hasNext()) {
+            String name = json.nextName();
+            if (name.equals("weights") && json.peek() != JsonToken.NULL) {
+                layer.weights = readWeights(json, rows);
+            } else if (name.equals("bias")) {
+                layer.bias = new Vec(readRow(json));
+            } else if (name.equals("activation")) {
+                layer.activation = Activation.forName(json.nextString());
+            } else {
+                json.skipValue();
+            }
+        }
+        json.endObject();
+
+        if (layer.bias == null || layer.activation == null)
+            throw new IOException("A layer lacks bias or activation");
+        if (layer.weights != null && layer.weights.cols() != layer.bias.dimension())
+            throw new IOException(format("Got weights with %d columns for a layer of size %d", layer.weights.cols(), layer.bias.dimension()));
+        return layer;
+    }
+
+    // The matrix is created when the first row tells how many columns there are
+    private static Matrix readWeights(JsonReader json, int rows) throws IOException {
+        if (rows < 0)
+            throw new IOException("The input layer can not have weights");
+
+        Matrix weights = null;
+        int row = 0;
+        json.beginArray();
+        while (json.hasNext()) {
+            double[] values = readRow(json);
+            if (weights == null)
+                weights = new Matrix(rows, values.length);
+            if (row == rows || values.length != weights.cols())
+                throw new IOException(format("Weights are not a %d x %d matrix", rows, weights.cols()));
+            weights.setRow(row++, new Vec(values));
+        }
+        json.endArray();
+
+        if (row != rows)
+            throw new IOException(format("Got %d rows of weights, expected %d", row, rows));
+        return weights;
+    }
+
+    private static double[] readRow(JsonReader json) throws IOException {
+        double[] values = new double[16];
+        int n = 0;
+        json.beginArray();
+        while (json.hasNext()) {
+            if (n == values.length)
+                values = Arrays.copyOf(values, n * 2);
+            values[n++] = json.nextDouble();
+        }
+        json.endArray();
+        return Arrays.copyOf(values, n);
+    }
+
+    private static void write(JsonWriter json, Vec v) throws IOException {
+        json.beginArray();
+        for (double value : v.getData())
+            json.value(value);
+        json.endArray();
+    }
+}
@@ -1,47 +1,101 @@
 package com.tailworks.ml.neuralnet;
 
 import com.tailworks.ml.neuralnet.math.Matrix;
+import com.tailworks.ml.neuralnet.math.SparseVec;
 import com.tailworks.ml.neuralnet.math.Vec;
 import com.tailworks.ml.neuralnet.optimizer.Optimizer;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
  * A single layer in the network.
  * Contains the weights and biases coming into this layer.
+ * <p>
+ * The weights and biases are published as one immutable version, which
+ * <code>updateWeightsAndBias</code> replaces with an updated copy. Readers
+ * never lock and always see a consistent version, even while the layer
+ * learns.
+ * <p>
+ * Lock-free layers (see <code>setLockFree</code>) are the exception: they
+ * have a single, mutable version. The learning threads change it in place
+ * and so does <code>updateWeightsAndBias</code>, so that no update is lost
+ * to a copy. Readers may then see it partly updated, as Hogwild allows.
  */
 public class Layer {
 
+    /**
+     * One version of the weights and bias of a layer. Never changed once
+     * published, except the single version of a lock-free layer.
+     */
+    static final class Parameters {
+        final Matrix weights;
+        final Vec bias;
+
+        // The evaluations using this version. Only counted for off-heap
+        // weights, whose buffer is reused once no evaluation holds it
+        private final AtomicInteger readers;
+
+        Parameters(Matrix weights, Vec bias) {
+            this.weights = weights;
+            this.bias = bias;
+            readers = weights != null && weights.isOffHeap() ? new AtomicInteger() : null;
+        }
+
+        void pin() {
+            if (readers != null)
+                readers.incrementAndGet();
+        }
+
+        void release() {
+            if (readers != null)
+                readers.decrementAndGet();
+        }
+
+        boolean isPinned() {
+            return readers != null && readers.get() > 0;
+        }
+    }
+
     private final int size;
-    private ThreadLocal<Vec> out = new ThreadLocal<>();
     private Activation activation;
     private Optimizer optimizer;
-    private Matrix weights;
-    private Vec bias;
+    private volatile Parameters parameters;
     private double l2 = 0;
+    private volatile boolean frozen = false;
+    private boolean lockFree = false;
 
     private Layer precedingLayer;
 
-    // Not yet realized changes to the weights and biases ("observed things not yet learned")
+    // Not yet realized changes to the weights and biases ("observed things not yet learned"),
+    // striped so that threads learning at the same time do not block each other
+    private transient volatile StripedDeltas deltas;
+
+    // The other delta buffer for pipelined updates, see swapDeltas()
+    private transient StripedDeltas spareDeltas;
+
+    // The sum of the stripes, used when updating. Created on the first update,
+    // a network only used for inference never needs them
     private transient Matrix deltaWeights;
     private transient Vec deltaBias;
-    private transient int deltaWeightsAdded = 0;
-    private transient int deltaBiasAdded = 0;
+
+    // Off-heap weights are updated in two buffers used in turn rather than in
+    // a new copy each time: the version of the last update and the spare,
+    // that of the update before, written by the next update unless pinned
+    private transient Parameters updated;
+    private transient Parameters spare;
 
     public Layer(int size, Activation activation) {
         this(size, activation, 0);
     }
 
     public Layer(int size, Activation activation, double initialBias) {
-        this.size = size;
-        bias = new Vec(size).map(x -> initialBias);
-        deltaBias = new Vec(size);
-        this.activation = activation;
+        this(size, activation, new Vec(size).map(x -> initialBias));
     }
 
     public Layer(int size, Activation activation, Vec bias) {
         this.size = size;
-        this.bias = bias;
-        deltaBias = new Vec(size);
         this.activation = activation;
+        parameters = new Parameters(null, bias);
     }
 
     public int size() {
@@ -50,22 +104,104 @@ public class Layer {
 
     /**
      * Feed the in-vector, i, through this layer.
-     * Stores a copy of the out vector.
+     * Nothing is stored in the layer, the caller keeps the out vector
+     * if it is needed for learning.
      *
      * @param i The input vector
-     * @return The out vector o (i.e. the result of o = iW + b)
+     * @return The out vector o (i.e. the result of o = iW + b), or i itself for the input layer
      */
     public Vec evaluate(Vec i) {
-        if (!hasPrecedingLayer()) {
-            out.set(i);    // No calculation i input layer, just store data
-        } else {
-            out.set(activation.fn(i.mul(weights).add(bias)));
+        Parameters p = acquireParameters();
+        try {
+            return evaluate(i, p);
+        } finally {
+            p.release();
         }
-        return out.get();
     }
 
-    public Vec getOut() {
-        return out.get();
+    Vec evaluate(Vec i, Parameters p) {
+        if (!hasPrecedingLayer())
+            return i;   // No calculation i input layer
+
+        return evaluate(i, new Vec(size), p);
+    }
+
+    /**
+     * Feed a sparse in-vector, i, through this layer. Only the rows of the
+     * weights where i is non-zero are read. Can not be used on the input
+     * layer, the sparse vector is fed directly to the first layer after it.
+     * Nothing is stored in the layer.
+     *
+     * @param i The input vector
+     * @return The out vector o (i.e. the result of o = iW + b)
+     */
+    public Vec evaluate(SparseVec i) {
+        Parameters p = acquireParameters();
+        try {
+            return evaluate(i, p);
+        } finally {
+            p.release();
+        }
+    }
+
+    Vec evaluate(SparseVec i, Parameters p) {
+        if (!hasPrecedingLayer())
+            throw new IllegalStateException("The input layer can not evaluate a sparse vector");
+
+        return activation.fnInPlace(i.mulAddInto(p.weights, p.bias, new Vec(size)));
+    }
+
+    /**
+     * Feed the in-vector, i, through this layer writing the result to
+     * <code>out</code> instead of allocating. Nothing is stored in the layer.
+     *
+     * @param i   The input vector
+     * @param out Receives the out vector o (i.e. the result of o = iW + b)
+     * @return out, or i itself for the input layer
+     */
+    public Vec evaluate(Vec i, Vec out) {
+        Parameters p = acquireParameters();
+        try {
+            return evaluate(i, out, p);
+        } finally {
+            p.release();
+        }
+    }
+
+    // Evaluates with the given version of the weights and bias
+    Vec evaluate(Vec i, Vec out, Parameters p) {
+        if (!hasPrecedingLayer())
+            return i;   // No calculation i input layer
+
+        return activation.fnInPlace(i.mulAddInto(p.weights, p.bias, out));
+    }
+
+    /**
+     * Feed a batch of in-vectors, one per row, through this layer.
+     * Nothing is stored in the layer.
+     *
+     * @param i The input batch
+     * @return The out batch O (i.e. the result of O = IW + b, b added to each row)
+     */
+    public Matrix evaluate(Matrix i) {
+        Parameters p = acquireParameters();
+        try {
+            return evaluate(i, p);
+        } finally {
+            p.release();
+        }
+    }
+
+    Matrix evaluate(Matrix i, Parameters p) {
+        if (!hasPrecedingLayer())
+            return i;
+
+        // Start from the bias and accumulate the product on top of it
+        Matrix out = new Matrix(i.rows(), size, i.precision().min(p.weights.precision()));
+        for (int row = 0; row < out.rows(); row++)
+            out.setRow(row, p.bias);
+
+        return activation.fn(out.addProduct(i, p.weights));
     }
 
     public Activation getActivation() {
@@ -73,8 +209,13 @@ public class Layer {
     }
 
     public void setWeights(Matrix weights) {
-        this.weights = weights;
-        deltaWeights = new Matrix(weights.rows(), weights.cols());
+        parameters = new Parameters(weights, parameters.bias);
+        deltas = new StripedDeltas(weights.rows(), weights.cols(), weights.precision(), weights.isOffHeap());
+        spareDeltas = new StripedDeltas(weights.rows(), weights.cols(), weights.precision(), weights.isOffHeap());
+        deltaWeights = null;
+        deltaBias = null;
+        updated = null;
+        spare = null;
     }
 
     public void setOptimizer(Optimizer optimizer) {
@@ -85,8 +226,45 @@ public class Layer {
         this.l2 = l2;
     }
 
+    /**
+     * Lock-free training, see <code>updateInPlace</code>. The layer then
+     * keeps a single version of its weights and bias, changed in place.
+     */
+    void setLockFree(boolean lockFree) {
+        this.lockFree = lockFree;
+    }
+
     public Matrix getWeights() {
-        return weights;
+        return parameters.weights;
+    }
+
+    /**
+     * The current version of the weights and bias.
+     */
+    Parameters getParameters() {
+        return parameters;
+    }
+
+    /**
+     * The current version of the weights and bias, pinned so that its
+     * buffer is not reused by an update until <code>release()</code>d.
+     */
+    Parameters acquireParameters() {
+        while (true) {
+            Parameters p = parameters;
+            p.pin();
+            if (parameters == p)
+                return p;   // Still current once pinned, an update will see the pin
+            p.release();
+        }
+    }
+
+    /**
+     * Replaces the weights and bias with a new version, e.g. one received
+     * from a parameter server. Deltas not yet applied are kept.
+     */
+    synchronized void setParameters(Matrix weights, Vec bias) {
+        parameters = new Parameters(weights, bias);
     }
 
     public Layer getPrecedingLayer() {
@@ -102,45 +280,265 @@ public class Layer {
     }
 
     public Vec getBias() {
-        return bias;
+        return parameters.bias;
+    }
+
+    public boolean isFrozen() {
+        return frozen;
+    }
+
+    /**
+     * A frozen layer keeps its weights and biases as they are, e.g. the
+     * pretrained layers when fine-tuning a network. Backpropagation passes
+     * the error through it when there are trainable layers below, but
+     * gathers no deltas for it. Freezing discards deltas not yet applied.
+     */
+    public synchronized void setFrozen(boolean frozen) {
+        this.frozen = frozen;
+        if (frozen && deltas != null) {
+            deltas.clear();
+            spareDeltas.clear();
+        }
     }
 
     /**
      * Add upcoming changes to the Weights and Biases.
      * This does not mean that the network is updated.
      */
-    public synchronized void addDeltaWeightsAndBiases(Matrix dW, Vec dB) {
-        deltaWeights.add(dW);
-        deltaWeightsAdded++;
-        deltaBias = deltaBias.add(dB);
-        deltaBiasAdded++;
+    public void addDeltaWeightsAndBiases(Matrix dW, Vec dB) {
+        addDeltaWeightsAndBiases(dW, dB, 1);
+    }
+
+    /**
+     * Add upcoming changes to the Weights and Biases summed over
+     * <code>samples</code> samples, as done when learning from a batch.
+     * <p>
+     * Like all the methods adding deltas this can be called from many
+     * threads at once, they do not take the layer lock.
+     */
+    public void addDeltaWeightsAndBiases(Matrix dW, Vec dB, int samples) {
+        StripedDeltas.Stripe stripe = acquireStripe();
+        try {
+            stripe.add(dW, dB, samples);
+        } finally {
+            stripe.release();
+        }
+    }
+
+    /**
+     * Add the upcoming changes for one sample given the input to this layer,
+     * <code>in</code>, and the error at the input of the activation,
+     * <code>dCdI</code>. The weight delta (the outer product of the two)
+     * is accumulated straight into the pending deltas, it is never created
+     * as a matrix of its own.
+     */
+    public void addDeltas(Vec in, Vec dCdI) {
+        StripedDeltas.Stripe stripe = acquireStripe();
+        try {
+            stripe.addOuterProduct(in, dCdI);
+        } finally {
+            stripe.release();
+        }
+    }
+
+    /**
+     * Same as <code>addDeltas(Vec, Vec)</code> for a sparse input. Only the
+     * rows of the weight deltas where the input is non-zero are touched.
+     */
+    public void addDeltas(SparseVec in, Vec dCdI) {
+        StripedDeltas.Stripe stripe = acquireStripe();
+        try {
+            stripe.addOuterProduct(in, dCdI);
+        } finally {
+            stripe.release();
+        }
+    }
+
+    /**
+     * Batch version of <code>addDeltas</code>, one sample per row. The weight
+     * deltas of all samples, Iᵀ·dC/dI, are accumulated as a single product.
+     */
+    public void addDeltas(Matrix in, Matrix dCdI) {
+        StripedDeltas.Stripe stripe = acquireStripe();
+        try {
+            stripe.addProduct(in, dCdI);
+        } finally {
+            stripe.release();
+        }
+    }
+
+    // A stripe of the current delta buffer. If the buffers are switched
+    // while acquiring, the stripe of the old one is given back.
+    private StripedDeltas.Stripe acquireStripe() {
+        while (true) {
+            StripedDeltas current = deltas;
+            StripedDeltas.Stripe stripe = current.acquire();
+            if (deltas == current)
+                return stripe;
+            stripe.release();
+        }
+    }
+
+    /**
+     * Lock-free training: applies the gradient of one sample straight to the
+     * weights and bias through the optimizer, see Optimizer.updateInPlace.
+     * Nothing is gathered for updateWeightsAndBias. L2 regularization, if
+     * used, is applied to the rows of the weights being updated.
+     */
+    public void updateInPlace(SparseVec in, Vec dCdI) {
+        if (frozen)
+            return;
+
+        Parameters p = parameters;
+        if (l2 > 0)
+            for (int index : in.getIndices())
+                p.weights.row(index).mul(1 - l2);
+
+        optimizer.updateInPlace(p.weights, p.bias, in, dCdI);
+    }
+
+    /**
+     * Same as <code>updateInPlace(SparseVec, Vec)</code> for a dense input,
+     * e.g. the output of the layer below. Rows where it is zero are skipped.
+     */
+    public void updateInPlace(Vec in, Vec dCdI) {
+        if (frozen)
+            return;
+
+        Parameters p = parameters;
+        if (l2 > 0) {
+            double[] values = in.getData();
+            for (int row = 0; row < values.length; row++)
+                if (values[row] != 0)
+                    p.weights.row(row).mul(1 - l2);
+        }
+
+        optimizer.updateInPlace(p.weights, p.bias, in, dCdI);
     }
 
     /**
      * Takes an average of all added Weights and Biases and tell the
-     * optimizer to apply them to the current weights and biases.
+     * optimizer to apply them to a copy of the current weights and biases,
+     * which is then published as the new version. Evaluations already
+     * running finish with the version they started with.
+     * <p>
+     * Off-heap weights are not copied anew each time but alternate between
+     * two buffers: the update after next writes over the version replaced
+     * now, unless an evaluation still holds it (see
+     * <code>acquireParameters()</code>), in which case a new buffer is
+     * made. A version kept from <code>getWeights()</code> is not held, it
+     * is only valid until then.
+     * <p>
+     * A lock-free layer is updated in place instead, like its learning
+     * threads do.
      *
      * Also applies L2 regularization on the weights if used.
      */
     public synchronized void updateWeightsAndBias() {
-        if (deltaWeightsAdded > 0) {
+        updateWeightsAndBias(deltas);
+    }
+
+    /**
+     * Switches to the other of the two delta buffers, so that deltas added
+     * from now on go there, and returns the one filled so far. It is then
+     * applied with <code>updateWeightsAndBias(StripedDeltas)</code> while
+     * learning continues, which must be done before the next switch.
+     * <p>
+     * A thread that picked the old buffer just before the switch may
+     * still be adding to it. The update waits for such threads before
+     * draining it, so no delta is left behind for the step after.
+     */
+    synchronized StripedDeltas swapDeltas() {
+        StripedDeltas filled = deltas;
+        deltas = spareDeltas;
+        spareDeltas = filled;
+        return filled;
+    }
+
+    /**
+     * Same as <code>updateWeightsAndBias()</code> for the deltas in
+     * <code>filled</code>, as returned by <code>swapDeltas()</code>.
+     */
+    synchronized void updateWeightsAndBias(StripedDeltas filled) {
+        if (frozen)
+            return;
+
+        if (filled != deltas)
+            filled.awaitWriters();
+
+        if (deltaWeights == null) {
+            deltaWeights = parameters.weights.like();
+            deltaBias = new Vec(size);
+        }
+
+        int samples = filled.drainTo(deltaWeights, deltaBias);
+        if (samples > 0) {
+            Parameters current = parameters;
+            if (lockFree) {
+                updateInPlace(current, deltaWeights, deltaBias, samples);
+                return;
+            }
+
+            Matrix weights = spare != null && !spare.isPinned() ? spare.weights.fillFrom(current.weights) : current.weights.copy();
             if (l2 > 0)
                 weights.map(value -> value - l2 * value);
 
-            Matrix average_dW = deltaWeights.mul(1.0 / deltaWeightsAdded);
+            Matrix average_dW = deltaWeights.mul(1.0 / samples);
             optimizer.updateWeights(weights, average_dW);
             deltaWeights.map(a -> 0);   // Clear
-            deltaWeightsAdded = 0;
-        }
 
-        if (deltaBiasAdded > 0) {
-            Vec average_bias = deltaBias.mul(1.0 / deltaBiasAdded);
-            bias = optimizer.updateBias(bias, average_bias);
-            deltaBias = deltaBias.map(a -> 0);  // Clear
-            deltaBiasAdded = 0;
+            Vec average_bias = deltaBias.mul(1.0 / samples);
+            Vec bias = optimizer.updateBias(current.bias, average_bias);
+            deltaBias.mapInPlace(a -> 0);  // Clear
+
+            parameters = new Parameters(weights, bias);
+            if (weights.isOffHeap()) {
+                spare = current == updated ? current : null;
+                updated = parameters;
+            }
         }
     }
 
+    // The batch update of a lock-free layer, made to its single version so
+    // that the lock-free updates made meanwhile are kept
+    private void updateInPlace(Parameters current, Matrix dW, Vec dB, int samples) {
+        if (l2 > 0)
+            current.weights.map(value -> value - l2 * value);
+
+        optimizer.updateWeights(current.weights, dW.mul(1.0 / samples));
+        dW.map(a -> 0);
+
+        Vec bias = optimizer.updateBias(current.bias, dB.mul(1.0 / samples));
+        current.bias.addInPlace(bias.sub(current.bias));
+        dB.mapInPlace(a -> 0);
+    }
+
+    /**
+     * Adds the deltas not yet applied to <code>dW</code> and <code>dB</code>,
+     * leaving them in place, and returns the number of samples they were
+     * summed over.
+     */
+    synchronized int copyDeltasTo(Matrix dW, Vec dB) {
+        return deltas.copyTo(dW, dB);
+    }
+
+    /**
+     * Replaces the deltas not yet applied, e.g. when resuming from a checkpoint.
+     */
+    synchronized void setDeltas(Matrix dW, Vec dB, int samples) {
+        deltas.clear();
+        spareDeltas.clear();
+        if (samples > 0)
+            addDeltaWeightsAndBiases(dW, dB, samples);
+    }
+
+    synchronized Matrix[] getOptimizerState() {
+        return optimizer.getState();
+    }
+
+    synchronized void setOptimizerState(Matrix[] state) {
+        optimizer.setState(state);
+    }
 
     // ------------------------------------------------------------------
 
@@ -0,0 +1,381 @@
+package com.tailworks.ml.neuralnet;
+
+import com.tailworks.ml.neuralnet.math.Matrix;
+import com.tailworks.ml.neuralnet.math.Precision;
+import com.tailworks.ml.neuralnet.math.Vec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import static java.lang.String.format;
+
+/**
+ * Samples read straight from memory-mapped files, for datasets larger
+ * than the heap. Nothing is loaded up front: the operating system pages
+ * the files in as they are read, and out again when memory is needed.
+ * <p>
+ * Two layouts are supported:
+ * <ul>
+ * <li>Fixed-width files, <code>fixedWidth(...)</code>: one record per sample,
+ * its input values followed by its label values, all floats or all doubles.</li>
+ * <li>IDX files as used by MNIST, <code>idx(...)</code>: one file of inputs and
+ * one of labels, the labels either as they are or as class indices that
+ * are one-hot encoded.</li>
+ * </ul>
+ * Batches of consecutive samples are matrix views of the mapped files,
+ * nothing is copied, when the values are floats or doubles. Values of
+ * other IDX types (e.g. the unsigned bytes of MNIST) are converted, and
+ * so copied, batch by batch. A sample on its own is always a copy since
+ * a Vec is on the heap, as are one-hot labels and the rare batch that
+ * spans two mapped segments (a file is mapped in segments of up to 2 GB).
+ * <p>
+ * Views are read-only and stay valid as long as they are used, the file
+ * may not be changed meanwhile.
+ */
+public final class MappedDataset {
+
+    private final Table inputs;
+    private final Table labels;
+    private final int inputCol, inputSize;
+    private final int labelCol, labelSize;
+    private final int classes;      // Labels are class indices to one-hot encode into that many values, 0 if not
+
+    private MappedDataset(Table inputs, int inputCol, int inputSize, Table labels, int labelCol, int labelSize, int classes) {
+        if (inputs.rows != labels.rows)
+            throw new IllegalArgumentException(format("Got %d inputs but %d labels", inputs.rows, labels.rows));
+
+        this.inputs = inputs;
+        this.inputCol = inputCol;
+        this.inputSize = inputSize;
+        this.labels = labels;
+        this.labelCol = labelCol;
+        this.labelSize = labelSize;
+        this.classes = classes;
+    }
+
+    /**
+     * Maps a file of fixed-width records, each <code>inputSize</code> input
+     * values followed by <code>labelSize</code> label values.
+     */
+    public static MappedDataset fixedWidth(Path file, int inputSize, int labelSize, Precision precision, ByteOrder order) throws IOException {
+        Type type = precision == Precision.FLOAT ? Type.FLOAT : Type.DOUBLE;
+        long recordBytes = (long) (inputSize + labelSize) * type.bytes;
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() % recordBytes != 0)
+                throw new IOException(format("%s of %d bytes does not hold whole records of %d bytes", file, channel.size(), recordBytes));
+
+            Table table = new Table(channel, 0, rows(channel.size() / recordBytes), inputSize + labelSize, type, order, Table.MAX_SEGMENT_BYTES);
+            return new MappedDataset(table, 0, inputSize, table, inputSize, labelSize, 0);
+        }
+    }
+
+    /**
+     * Maps an IDX file of inputs, one sample per entry of its first
+     * dimension, and one of labels with as many entries.
+     */
+    public static MappedDataset idx(Path inputs, Path labels) throws IOException {
+        Table in = idxTable(inputs, Table.MAX_SEGMENT_BYTES);
+        Table out = idxTable(labels, Table.MAX_SEGMENT_BYTES);
+        return new MappedDataset(in, 0, in.width, out, 0, out.width, 0);
+    }
+
+    /**
+     * Like <code>idx(inputs, labels)</code> for labels that are class indices,
+     * one per sample, e.g. the digits of MNIST. Each label becomes a vector
+     * of <code>classes</code> values, 1 for its class and 0 for the others.
+     */
+    public static MappedDataset idx(Path inputs, Path labels, int classes) throws IOException {
+        return idx(inputs, labels, classes, Table.MAX_SEGMENT_BYTES);
+    }
+
+    // maxSegmentBytes can be made small to test samples across segments
+    static MappedDataset idx(Path inputs, Path labels, int classes, long maxSegmentBytes) throws IOException {
+        Table in = idxTable(inputs, maxSegmentBytes);
+        Table out = idxTable(labels, maxSegmentBytes);
+        if (out.width != 1)
+            throw new IOException(format("Got %d values per label in %s, expected a class index", out.width, labels));
+        return new MappedDataset(in, 0, in.width, out, 0, 1, classes);
+    }
+
+    public int size() {
+        return inputs.rows;
+    }
+
+    public int inputSize() {
+        return inputSize;
+    }
+
+    public int labelSize() {
+        return classes > 0 ? classes : labelSize;
+    }
+
+    /**
+     * A copy of the input of one sample.
+     */
+    public Vec getInput(int sample) {
+        return new Vec(inputs.getRow(sample, inputCol, inputSize));
+    }
+
+    /**
+     * A copy of the label of one sample.
+     */
+    public Vec getLabel(int sample) {
+        if (classes > 0)
+            return getLabels(sample, 1).getRow(0);
+        return new Vec(labels.getRow(sample, labelCol, labelSize));
+    }
+
+    /**
+     * The inputs of <code>rows</code> consecutive samples from <code>from</code>,
+     * one sample per row, as a view of the file where possible.
+     */
+    public Matrix getInputs(int from, int rows) {
+        return inputs.get(from, rows, inputCol, inputSize);
+    }
+
+    /**
+     * The labels of <code>rows</code> consecutive samples from <code>from</code>,
+     * one sample per row, as a view of the file where possible.
+     */
+    public Matrix getLabels(int from, int rows) {
+        if (classes == 0)
+            return labels.get(from, rows, labelCol, labelSize);
+
+        Matrix oneHot = new Matrix(rows, classes, Precision.FLOAT);
+        for (int row = 0; row < rows; row++) {
+            double label = labels.getRow(from + row, labelCol, 1)[0];
+            if (label < 0 || label >= classes || label != (int) label)
+                throw new IllegalStateException(format("Label %s of sample %d is not one of %d classes", label, from + row, classes));
+            oneHot.set(row, (int) label, 1);
+        }
+        return oneHot;
+    }
+
+    /**
+     * The samples in order, in batches of <code>batchSize</code> (the last
+     * one may be smaller).
+     */
+    public Iterable<Batch> batches(int batchSize) {
+        return batches(batchSize, null);
+    }
+
+    /**
+     * Like <code>batches(batchSize)</code> with the batches in random order.
+     * Each batch is still consecutive samples, so that it can be a view of
+     * the file, only the order they are visited in is shuffled.
+     */
+    public Iterable<Batch> batches(int batchSize, Random random) {
+        if (batchSize < 1)
+            throw new IllegalArgumentException("Batch size must be at least 1");
+
+        return () -> {
+            List<Integer> starts = new ArrayList<>();
+            for (int from = 0; from < size(); from += batchSize)
+                starts.add(from);
+            if (random != null)
+                Collections.shuffle(starts, random);
+
+            Iterator<Integer> it = starts.iterator();
+            return new Iterator<Batch>() {
+                @Override
+                public boolean hasNext() {
+                    return it.hasNext();
+                }
+
+                @Override
+                public Batch next() {
+                    int from = it.next();
+                    int rows = Math.min(batchSize, size() - from);
+                    return new Batch(from, getInputs(from, rows), getLabels(from, rows));
+                }
+            };
+        };
+    }
+
+    /**
+     * A batch of consecutive samples, one per row.
+     */
+    public static final class Batch {
+        private final int from;
+        private final Matrix inputs;
+        private final Matrix labels;
+
+        private Batch(int from, Matrix inputs, Matrix labels) {
+            this.from = from;
+            this.inputs = inputs;
+            this.labels = labels;
+        }
+
+        /**
+         * The index of the first sample in the batch.
+         */
+        public int getFrom() {
+            return from;
+        }
+
+        public Matrix getInputs() {
+            return inputs;
+        }
+
+        public Matrix getLabels() {
+            return labels;
+        }
+    }
+
+    // -------------------------------------------------------------------------
+
+    // The element types of IDX files, with their codes
+    private enum Type {
+        UBYTE(0x08, 1, Precision.FLOAT),
+        BYTE(0x09, 1, Precision.FLOAT),
+        SHORT(0x0B, 2, Precision.FLOAT),
+        INT(0x0C, 4, Precision.DOUBLE),
+        FLOAT(0x0D, 4, Precision.FLOAT),
+        DOUBLE(0x0E, 8, Precision.DOUBLE);
+
+        final int code;
+        final int bytes;
+        final Precision precision;      // Of the matrices read
+
+        Type(int code, int bytes, Precision precision) {
+            this.code = code;
+            this.bytes = bytes;
+            this.precision = precision;
+        }
+
+        double get(ByteBuffer buffer, int index) {
+            switch (this) {
+                case UBYTE:
+                    return buffer.get(index) & 0xFF;
+                case BYTE:
+                    return buffer.get(index);
+                case SHORT:
+                    return buffer.getShort(index);
+                case INT:
+                    return buffer.getInt(index);
+                case FLOAT:
+                    return buffer.getFloat(index);
+                default:
+                    return buffer.getDouble(index);
+            }
+        }
+
+        static Type forCode(int code) throws IOException {
+            for (Type type : values())
+                if (type.code == code)
+                    return type;
+            throw new IOException(format("Unknown IDX type 0x%02X", code));
+        }
+    }
+
+    // Rows of fixed width in a file, mapped in segments of whole rows
+    private static class Table {
+
+        static final long MAX_SEGMENT_BYTES = Integer.MAX_VALUE;
+
+        final int rows, width;
+        final Type type;
+        final int rowsPerSegment;
+        final ByteBuffer[] segments;
+        final Matrix[] views;       // The segments as matrices, null unless the values are floats or doubles
+
+        Table(FileChannel channel, long offset, int rows, int width, Type type, ByteOrder order, long maxSegmentBytes) throws IOException {
+            long rowBytes = (long) width * type.bytes;
+            if (offset + rows * rowBytes > channel.size())
+                throw new IOException(format("The file is truncated, %d rows of %d bytes do not fit", rows, rowBytes));
+            if (rowBytes > maxSegmentBytes)
+                throw new IOException(format("Rows of %d bytes are too wide to be mapped", rowBytes));
+
+            this.rows = rows;
+            this.width = width;
+            this.type = type;
+            rowsPerSegment = (int) Math.min(Math.max(rows, 1), maxSegmentBytes / Math.max(rowBytes, 1));
+
+            int count = (rows + rowsPerSegment - 1) / rowsPerSegment;
+            segments = new ByteBuffer[count];
+            views = new Matrix[count];
+            for (int s = 0; s < count; s++) {
+                int segmentRows = Math.min(rowsPerSegment, rows - s * rowsPerSegment);
+                segments[s] = channel.map(FileChannel.MapMode.READ_ONLY, offset + s * rowsPerSegment * rowBytes, segmentRows * rowBytes).order(order);
+                if (type == Type.FLOAT)
+                    views[s] = new Matrix(segmentRows, width, segments[s].asFloatBuffer());
+                else if (type == Type.DOUBLE)
+                    views[s] = new Matrix(segmentRows, width, segments[s].asDoubleBuffer());
+            }
+        }
+
+        Matrix get(int from, int count, int col, int cols) {
+            if (from < 0 || count < 0 || from + count > rows)
+                throw new IndexOutOfBoundsException(format("Rows %d to %d of %d", from, from + count, rows));
+
+            int segment = from / rowsPerSegment;
+            if (count > 0 && views[segment] != null && (from + count - 1) / rowsPerSegment == segment)
+                return views[segment].subMatrix(from - segment * rowsPerSegment, col, count, cols);
+
+            Matrix m = new Matrix(count, cols, type.precision);
+            for (int row = 0; row < count; row++)
+                m.setRow(row, new Vec(getRow(from + row, col, cols)));
+            return m;
+        }
+
+        double[] getRow(int row, int col, int cols) {
+            if (row < 0 || row >= rows)
+                throw new IndexOutOfBoundsException(format("Row %d of %d", row, rows));
+
+            ByteBuffer segment = segments[row / rowsPerSegment];
+            int start = ((row % rowsPerSegment) * width + col) * type.bytes;
+            double[] values = new double[cols];
+            for (int i = 0; i < cols; i++)
+                values[i] = type.get(segment, start + i * type.bytes);
+            return values;
+        }
+    }
+
+    // The header of an IDX file: two zero bytes, the type, the number of
+    // dimensions and then the dimensions, big-endian
+    private static Table idxTable(Path file, long maxSegmentBytes) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer magic = read(channel, 0, 4);
+            if (magic.get(0) != 0 || magic.get(1) != 0)
+                throw new IOException(file + " is not an IDX file");
+            Type type = Type.forCode(magic.get(2) & 0xFF);
+            int dimensions = magic.get(3) & 0xFF;
+            if (dimensions < 1)
+                throw new IOException(file + " has no dimensions");
+
+            ByteBuffer sizes = read(channel, 4, dimensions * Integer.BYTES);
+            int rows = sizes.getInt(0);
+            long width = 1;
+            for (int d = 1; d < dimensions; d++)
+                width *= sizes.getInt(d * Integer.BYTES);
+            if (rows < 0 || width > Integer.MAX_VALUE)
+                throw new IOException(file + " has dimensions too large");
+
+            return new Table(channel, 4 + dimensions * Integer.BYTES, rows, (int) width, type, ByteOrder.BIG_ENDIAN, maxSegmentBytes);
+        }
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int bytes) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(bytes);
+        while (buffer.hasRemaining())
+            if (channel.read(buffer, position + buffer.position()) < 0)
+                throw new IOException("The file is truncated");
+        return buffer;
+    }
+
+    private static int rows(long rows) throws IOException {
+        if (rows > Integer.MAX_VALUE)
+            throw new IOException(rows + " samples are too many");
+        return (int) rows;
+    }
+}
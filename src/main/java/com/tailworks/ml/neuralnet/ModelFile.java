@@ -0,0 +1,284 @@
+package com.tailworks.ml.neuralnet;
+
+import com.tailworks.ml.neuralnet.math.Matrix;
+import com.tailworks.ml.neuralnet.math.Precision;
+import com.tailworks.ml.neuralnet.math.Vec;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.lang.String.format;
+
+/**
+ * Saves a network in a compact binary file, and loads it back by mapping
+ * the file into memory: the weights are used right where they are in the
+ * file, nothing is parsed or copied.
+ * <p>
+ * The file is little-endian throughout:
+ * <pre>
+ *   int     magic "NNET" and int version (1)
+ *   string  cost function name
+ *   int     precision (0 = DOUBLE, 1 = FLOAT), double l2, int input size, int number of layers after the input
+ *   per layer:
+ *     string  activation name
+ *     int     rows, int columns, int flags (1 = frozen)
+ *     double  bias (columns values)
+ *     padding to a multiple of 8 bytes
+ *     weights row by row, as doubles or floats after the precision
+ * </pre>
+ * Strings are an int length followed by that many bytes of UTF-8.
+ * <p>
+ * Only predefined activations and cost functions can be loaded, they are
+ * found by name. The optimizer is not saved: a loaded network is meant
+ * for inference, for more training a network can be built from it with
+ * <code>new NeuralNetwork.Builder(network)</code>.
+ * <p>
+ * The weights of a loaded network are read-only views of the file, mapped
+ * in chunks of at most 1 GB so that a layer may be larger than the 2 GB
+ * of a single mapping. The file may not be changed while it is used. Updates still work since
+ * they are made on copies of the weights, but lock-free training does not.
+ */
+public final class ModelFile {
+
+    private static final int MAGIC = 0x54454E4E;    // "NNET" read little-endian
+    private static final int VERSION = 1;
+    private static final int FROZEN = 1;
+
+    // A mapping holds at most 2 GB, weights are mapped in chunks of 2^27
+    // elements: 1 GB of doubles or 512 MB of floats
+    private static final int CHUNK_SHIFT = 27;
+
+    private ModelFile() {
+    }
+
+    public static void save(NeuralNetwork network, Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            Writer out = new Writer(channel);
+            List<Layer> layers = network.getLayers();
+
+            out.putInt(MAGIC);
+            out.putInt(VERSION);
+            out.putString(network.getCostFunction().getName());
+            out.putInt(network.getPrecision().ordinal());
+            out.putDouble(network.getL2());
+            out.putInt(layers.get(0).size());
+            out.putInt(layers.size() - 1);
+
+            Layer.Parameters[] parameters = network.acquireParameters();
+            try {
+                for (int l = 1; l < layers.size(); l++) {
+                    Layer layer = layers.get(l);
+                    Matrix weights = parameters[l].weights;
+                    out.putString(layer.getActivation().getName());
+                    out.putInt(weights.rows());
+                    out.putInt(weights.cols());
+                    out.putInt(layer.isFrozen() ? FROZEN : 0);
+                    for (double value : parameters[l].bias.getData())
+                        out.putDouble(value);
+
+                    out.align(Double.BYTES);
+                    for (int row = 0; row < weights.rows(); row++)
+                        for (double value : weights.getRow(row).getData()) {
+                            if (network.getPrecision() == Precision.FLOAT)
+                                out.putFloat((float) value);
+                            else
+                                out.putDouble(value);
+                        }
+                }
+            } finally {
+                NeuralNetwork.releaseParameters(parameters);
+            }
+            out.flush();
+        }
+    }
+
+    /**
+     * Loads a network saved with <code>save</code>, with the weights
+     * mapped from the file.
+     */
+    public static NeuralNetwork load(Path file) throws IOException {
+        return load(file, CHUNK_SHIFT);
+    }
+
+    /**
+     * @param chunkShift The weights are mapped in chunks of 2^chunkShift elements, made small to test
+     */
+    static NeuralNetwork load(Path file, int chunkShift) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            Reader in = new Reader(channel, chunkShift);
+
+            if (in.getInt() != MAGIC)
+                throw new IOException(file + " is not a network file");
+            int version = in.getInt();
+            if (version != VERSION)
+                throw new IOException(format("Version %d of the file format is not supported", version));
+
+            CostFunction costFunction = CostFunction.forName(in.getString());
+            int ordinal = in.getInt();
+            if (ordinal < 0 || ordinal >= Precision.values().length)
+                throw new IOException(format("Unknown precision %d", ordinal));
+            Precision precision = Precision.values()[ordinal];
+            double l2 = in.getDouble();
+            int inputSize = in.getInt();
+            int layerCount = in.getInt();
+
+            NeuralNetwork.Builder builder = new NeuralNetwork.Builder(inputSize)
+                    .setCostFunction(costFunction)
+                    .precision(precision)
+                    .l2(l2);
+            List<Matrix> weights = new ArrayList<>();
+            for (int l = 0; l < layerCount; l++) {
+                Activation activation = Activation.forName(in.getString());
+                int rows = in.getInt();
+                int cols = in.getInt();
+                int flags = in.getInt();
+                if (rows <= 0 || cols <= 0 || (long) rows * cols > Integer.MAX_VALUE)
+                    throw new IOException(format("Layer %d has invalid dimensions %d x %d", l + 1, rows, cols));
+                Vec bias = new Vec(in.getDoubles(cols));
+
+                in.align(Double.BYTES);
+                weights.add(in.mapWeights(rows, cols, precision));
+
+                Layer layer = new Layer(cols, activation, bias);
+                layer.setFrozen((flags & FROZEN) != 0);
+                builder.addLayer(layer);
+            }
+
+            // The mapping stays valid when the channel is closed
+            return builder.useWeights(weights).create();
+        }
+    }
+
+    // -------------------------------------------------------------------------
+
+    private static class Writer {
+
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+        private long position = 0;
+
+        Writer(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        void putInt(int value) throws IOException {
+            room(Integer.BYTES).putInt(value);
+        }
+
+        void putFloat(float value) throws IOException {
+            room(Float.BYTES).putFloat(value);
+        }
+
+        void putDouble(double value) throws IOException {
+            room(Double.BYTES).putDouble(value);
+        }
+
+        void putString(String value) throws IOException {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            putInt(bytes.length);
+            for (byte b : bytes)
+                room(1).put(b);
+        }
+
+        // Pads with zeros up to a multiple of alignment bytes from the start of the file
+        void align(int alignment) throws IOException {
+            while ((position + buffer.position()) % alignment != 0)
+                room(1).put((byte) 0);
+        }
+
+        private ByteBuffer room(int bytes) throws IOException {
+            if (buffer.remaining() < bytes)
+                flush();
+            return buffer;
+        }
+
+        void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining())
+                position += channel.write(buffer);
+            buffer.clear();
+        }
+    }
+
+    private static class Reader {
+
+        private final FileChannel channel;
+        private final int chunkShift;
+        private long position = 0;
+
+        Reader(FileChannel channel, int chunkShift) {
+            this.channel = channel;
+            this.chunkShift = chunkShift;
+        }
+
+        int getInt() throws IOException {
+            return read(Integer.BYTES).getInt();
+        }
+
+        double getDouble() throws IOException {
+            return read(Double.BYTES).getDouble();
+        }
+
+        double[] getDoubles(int n) throws IOException {
+            double[] values = new double[n];
+            read(n * Double.BYTES).asDoubleBuffer().get(values);
+            return values;
+        }
+
+        String getString() throws IOException {
+            int length = getInt();
+            if (length < 0 || length > channel.size() - position)
+                throw new IOException(format("Bad string length %d at offset %d", length, position - Integer.BYTES));
+            return new String(read(length).array(), StandardCharsets.UTF_8);
+        }
+
+        void align(int alignment) {
+            position = (position + alignment - 1) / alignment * alignment;
+        }
+
+        // A read-only view of the weights in the file, mapped in chunks
+        Matrix mapWeights(int rows, int cols, Precision precision) throws IOException {
+            int size = precision == Precision.FLOAT ? Float.BYTES : Double.BYTES;
+            long bytes = (long) rows * cols * size;
+            if (position + bytes > channel.size())
+                throw new IOException("The file is truncated");
+
+            long chunkBytes = (long) size << chunkShift;
+            Buffer[] chunks = precision == Precision.FLOAT
+                    ? new FloatBuffer[(int) ((bytes + chunkBytes - 1) / chunkBytes)]
+                    : new DoubleBuffer[(int) ((bytes + chunkBytes - 1) / chunkBytes)];
+            for (int c = 0; c < chunks.length; c++) {
+                long offset = c * chunkBytes;
+                ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, position + offset, Math.min(chunkBytes, bytes - offset))
+                        .order(ByteOrder.LITTLE_ENDIAN);
+                chunks[c] = precision == Precision.FLOAT ? mapped.asFloatBuffer() : mapped.asDoubleBuffer();
+            }
+
+            position += bytes;
+            return precision == Precision.FLOAT
+                    ? new Matrix(rows, cols, (FloatBuffer[]) chunks)
+                    : new Matrix(rows, cols, (DoubleBuffer[]) chunks);
+        }
+
+        private ByteBuffer read(int bytes) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(bytes).order(ByteOrder.LITTLE_ENDIAN);
+            while (buffer.hasRemaining())
+                if (channel.read(buffer, position + buffer.position()) < 0)
+                    throw new IOException("The file is truncated");
+
+            position += bytes;
+            buffer.flip();
+            return buffer;
+        }
+    }
+}
@@ -1,13 +1,26 @@
 package com.tailworks.ml.neuralnet;
 
-import com.google.gson.GsonBuilder;
 import com.tailworks.ml.neuralnet.math.Matrix;
+import com.tailworks.ml.neuralnet.math.Precision;
+import com.tailworks.ml.neuralnet.math.SparseVec;
 import com.tailworks.ml.neuralnet.math.Vec;
 import com.tailworks.ml.neuralnet.optimizer.GradientDescent;
 import com.tailworks.ml.neuralnet.optimizer.Optimizer;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Supplier;
 
 public class NeuralNetwork {
 
@@ -15,9 +28,23 @@ public class NeuralNetwork {
     private final int networkInputSize;
     private final double l2;
     private final Optimizer optimizer;
+    private final Precision precision;
+    private final boolean lockFree;
+
+    // The layers stored off-heap as asked for with Builder.offHeap
+    private final Set<Integer> offHeap;
 
     private List<Layer> layers = new ArrayList<>();
 
+    // The weights and biases of all layers as of the last update, see updateFromLearning()
+    private volatile Layer.Parameters[] parameters;
+
+    // The update started by updateFromLearningAsync, if still running
+    private CompletableFuture<Void> pendingUpdate = CompletableFuture.completedFuture(null);
+
+    // Held by atRest() in lock-free training, lock-free learners wait for it
+    private final StampedLock inPlaceUpdates = new StampedLock();
+
     /**
      * Creates a neural network given the configuration set in the builder
      *
@@ -27,6 +54,9 @@ public class NeuralNetwork {
         costFunction = nb.costFunction;
         networkInputSize = nb.networkInputSize;
         optimizer = nb.optimizer;
+        precision = nb.precision;
+        lockFree = nb.lockFree;
+        offHeap = new HashSet<>(nb.offHeap);
         l2 = nb.l2;
 
         // Adding inputLayer
@@ -38,16 +68,28 @@ public class NeuralNetwork {
 
         for (int i = 0; i < nb.layers.size(); i++) {
             Layer layer = nb.layers.get(i);
-            Matrix w = new Matrix(precedingLayer.size(), layer.size());
-            nb.initializer.initWeights(w, i);
+            Matrix w;
+            if (nb.weights != null) {
+                w = nb.weights.get(i);
+            } else if (nb.offHeap.contains(i + 1)) {
+                w = Matrix.offHeap(precedingLayer.size(), layer.size(), precision);
+                nb.initializer.initWeights(w, i);
+            } else {
+                InitialWeights initial = new InitialWeights(precedingLayer.size(), layer.size(), precision);
+                nb.initializer.initWeights(initial, i);
+                w = initial.initialized();
+            }
             layer.setWeights(w);    // Each layer contains the weights between preceding layer and itself
             layer.setOptimizer(optimizer.copy());
             layer.setL2(l2);
+            layer.setLockFree(lockFree);
             layer.setPrecedingLayer(precedingLayer);
             layers.add(layer);
 
             precedingLayer = layer;
         }
+
+        parameters = currentParameters();
     }
 
 
@@ -65,19 +107,68 @@ public class NeuralNetwork {
      * If <code>expected</code> is specified the result will contain
      * a cost and the network will gather some learning from this
      * operation.
+     * <p>
+     * The outputs of the layers are kept for the duration of the call
+     * only, the layers themselves are not changed by evaluating. Any
+     * number of threads can evaluate at the same time, without locking,
+     * and each sees the weights of all layers as of one update.
      */
     public Result evaluate(Vec input, Vec expected) {
-        Vec signal = input;
-        for (Layer layer : layers)
-            signal = layer.evaluate(signal);
+        Layer.Parameters[] parameters = acquireParameters();
+        try {
+            Vec[] outs = new Vec[layers.size()];
+            Vec signal = input;
+            for (int l = 0; l < layers.size(); l++)
+                signal = outs[l] = layers.get(l).evaluate(signal, parameters[l]);
+
+            if (expected != null) {
+                learnFrom(parameters, outs, expected, null);
+                double cost = costFunction.getTotal(expected, signal);
+                return new Result(signal, cost);
+            }
 
-        if (expected != null) {
-            learnFrom(expected);
-            double cost = costFunction.getTotal(expected, signal);
-            return new Result(signal, cost);
+            return new Result(signal);
+        } finally {
+            releaseParameters(parameters);
         }
+    }
+
 
-        return new Result(signal);
+    /**
+     * Evaluates a sparse input vector, returning the networks output,
+     * without cost or learning anything from it.
+     */
+    public Result evaluate(SparseVec input) {
+        return evaluate(input, null);
+    }
+
+
+    /**
+     * Same as <code>evaluate(Vec, Vec)</code> for a sparse input vector.
+     * The first layer only reads (and when learning only updates the
+     * deltas of) the weights of the non-zero inputs.
+     */
+    public Result evaluate(SparseVec input, Vec expected) {
+        if (layers.size() == 1)
+            return evaluate(input.toDense(), expected);
+
+        Layer.Parameters[] parameters = acquireParameters();
+        try {
+            Vec[] outs = new Vec[layers.size()];
+            Vec signal = outs[1] = layers.get(1).evaluate(input, parameters[1]);
+            for (int l = 2; l < layers.size(); l++)
+                signal = outs[l] = layers.get(l).evaluate(signal, parameters[l]);
+
+            if (expected != null) {
+                learnFrom(parameters, outs, expected, input);
+                double cost = costFunction.getTotal(expected, signal);
+                return new Result(signal, cost);
+            }
+
+            return new Result(signal);
+        } finally {
+            releaseParameters(parameters);
+        }
     }
 
 
@@ -88,27 +179,189 @@ public class NeuralNetwork {
      * it possible to use mini batches the learning is not immediately
      * realized - i.e. <code>learnFrom</code> does not alter any weights.
      * Use <code>updateFromLearning()</code> to do that.
+     * <p>
+     * <code>outs</code> holds the output of each layer for this input,
+     * computed with <code>parameters</code>. <code>sparseInput</code> is the input when it was a SparseVec, in
+     * which case there is no dense output of the input layer, and null
+     * otherwise.
      */
-    private void learnFrom(Vec expected) {
-        Layer layer = getLastLayer();
+    private void learnFrom(Layer.Parameters[] parameters, Vec[] outs, Vec expected, SparseVec sparseInput) {
+        Layer deepest = getDeepestTrainableLayer();
+        if (deepest == null)
+            return;     // All layers are frozen
+
+        if (lockFree)
+            awaitRest();
+
+        int l = layers.size() - 1;
+        Layer layer = layers.get(l);
 
         // The error is initially the derivative of the cost-function.
-        Vec dCdO = costFunction.getDerivative(expected, layer.getOut());
+        Vec dCdO = costFunction.getDerivative(expected, outs[l]);
 
         // iterate backwards through the layers
-        do {
-            Vec dCdI = layer.getActivation().dCdI(layer.getOut(), dCdO);
-            Matrix dCdW = dCdI.outerProduct(layer.getPrecedingLayer().getOut());
-
-            // Store the deltas for weights and biases
-            layer.addDeltaWeightsAndBiases(dCdW, dCdI);
+        while (true) {
+            Vec dCdI = layer.getActivation().dCdI(outs[l], dCdO);
+
+            // prepare error propagation for the next iteration. Stop at the deepest
+            // trainable layer, nothing below it needs the error (for the first
+            // hidden layer it would be the error of the input). Done before the
+            // deltas are stored since lock-free updates change the weights.
+            Vec dCdOBelow = layer != deepest ? parameters[l].weights.multiply(dCdI) : null;
+
+            // Store the deltas for weights and biases (frozen layers only pass the error on)
+            if (!layer.isFrozen()) {
+                boolean sparse = sparseInput != null && l == 1;
+                if (lockFree && sparse)
+                    layer.updateInPlace(sparseInput, dCdI);
+                else if (lockFree)
+                    layer.updateInPlace(outs[l - 1], dCdI);
+                else if (sparse)
+                    layer.addDeltas(sparseInput, dCdI);
+                else
+                    layer.addDeltas(outs[l - 1], dCdI);
+            }
 
-            // prepare error propagation and store for next iteration
-            dCdO = layer.getWeights().multiply(dCdI);
+            if (dCdOBelow == null)
+                break;
 
+            dCdO = dCdOBelow;
             layer = layer.getPrecedingLayer();
+            l--;
+        }
+    }
+
+
+    // Waits while atRest() holds the lock. Learners only read the state of
+    // the lock (once per sample), so they never contend for it. A sample
+    // under way when atRest() starts may still change the weights while it
+    // runs, giving it a racy copy like any lock-free reader gets.
+    private void awaitRest() {
+        if (inPlaceUpdates.isWriteLocked())
+            inPlaceUpdates.unlockRead(inPlaceUpdates.readLock());
+    }
+
+
+    /**
+     * Creates a workspace for evaluating this network without allocating
+     * anything on the heap. Use one workspace per thread.
+     */
+    public InferenceWorkspace newInferenceWorkspace() {
+        return new InferenceWorkspace(this);
+    }
+
+
+    /**
+     * Evaluates a batch of input vectors, one per row, returning the
+     * networks output for each of them without cost or learning anything.
+     */
+    public BatchResult evaluateBatch(Matrix inputs) {
+        return evaluateBatch(inputs, null);
+    }
+
+
+    /**
+     * Evaluates a batch of input vectors, one per row. Gives the same result
+     * as calling <code>evaluate(input, expected)</code> for each row, but
+     * each layer is computed as a single matrix product over the batch.
+     * If <code>expected</code> is specified (one row per input) the result
+     * will contain the costs and the network will gather learning from
+     * the whole batch.
+     */
+    public BatchResult evaluateBatch(Matrix inputs, Matrix expected) {
+        return evaluateBatch(inputs, expected, null);
+    }
+
+
+    /**
+     * Same as <code>evaluateBatch(inputs, expected)</code> but when
+     * <code>gradients</code> is given the learning is gathered there
+     * instead of in the layers, which are then not touched at all.
+     */
+    BatchResult evaluateBatch(Matrix inputs, Matrix expected, Gradients gradients) {
+        Layer.Parameters[] parameters = acquireParameters();
+        try {
+            Matrix[] outs = new Matrix[layers.size()];
+            Matrix signal = inputs;
+            for (int l = 0; l < layers.size(); l++)
+                signal = outs[l] = layers.get(l).evaluate(signal, parameters[l]);
+
+            if (expected != null) {
+                learnFrom(parameters, outs, expected, gradients);
+                return new BatchResult(signal, getCosts(signal, expected));
+            }
+
+            return new BatchResult(signal);
+        } finally {
+            releaseParameters(parameters);
         }
-        while (layer.hasPrecedingLayer());     // Stop when we are at input layer
+    }
+
+
+    // The cost of each sample (row) of a batch
+    double[] getCosts(Matrix out, Matrix expected) {
+        double[] costs = new double[out.rows()];
+        for (int row = 0; row < costs.length; row++)
+            costs[row] = costFunction.getTotal(expected.getRow(row), out.getRow(row));
+        return costs;
+    }
+
+
+    /**
+     * Batch version of <code>learnFrom</code>. The weight
+     * deltas of a layer are accumulated as one product, Oᵀ·dC/dI, which sums
+     * the outer products of all samples in the batch.
+     * The deltas go to <code>gradients</code> when given, else to the layers.
+     */
+    private void learnFrom(Layer.Parameters[] parameters, Matrix[] outs, Matrix expected, Gradients gradients) {
+        // The error is initially the derivative of the cost-function.
+        int l = layers.size() - 1;
+        Matrix dCdO = getCostDerivative(outs[l], expected);
+
+        // iterate backwards through the layers, until no layer below needs the error
+        for (; dCdO != null; l--)
+            dCdO = backpropagate(l, parameters, outs, dCdO, gradients);
+    }
+
+
+    // The derivative of the cost of each sample (row) of a batch with respect to the output
+    Matrix getCostDerivative(Matrix out, Matrix expected) {
+        Matrix dCdO = new Matrix(out.rows(), out.cols());
+        for (int row = 0; row < out.rows(); row++)
+            dCdO.setRow(row, costFunction.getDerivative(expected.getRow(row), out.getRow(row)));
+        return dCdO;
+    }
+
+
+    /**
+     * One step of batch backpropagation: given the error at the output of
+     * layer <code>l</code>, stores the deltas of the layer (unless frozen)
+     * and returns the error at the output of the layer below. Returns null
+     * when no layer below needs it, i.e. at the deepest trainable layer or
+     * when all layers are frozen.
+     */
+    Matrix backpropagate(int l, Layer.Parameters[] parameters, Matrix[] outs, Matrix dCdO, Gradients gradients) {
+        Layer deepest = getDeepestTrainableLayer();
+        if (deepest == null)
+            return null;     // All layers are frozen
+
+        Layer layer = layers.get(l);
+        Matrix dCdI = layer.getActivation().dCdI(outs[l], dCdO);
+
+        // Store the deltas for weights and biases (frozen layers only pass the error on)
+        if (!layer.isFrozen()) {
+            if (gradients != null)
+                gradients.addDeltas(l, outs[l - 1], dCdI);
+            else
+                layer.addDeltas(outs[l - 1], dCdI);
+        }
+
+        // Stop at the deepest trainable layer
+        if (layer == deepest)
+            return null;
+
+        // error propagation for the layer below
+        return dCdI.multiplyTransposed(parameters[l].weights);
     }
 
 
@@ -116,12 +369,122 @@ public class NeuralNetwork {
      * Let all gathered (but not yet realised) learning "sink in".
      * That is: Update the weights and biases based on the deltas
      * collected during evaluation & training.
+     * <p>
+     * The layers are updated on copies of their weights, which are then
+     * published together: evaluations never wait for an update and never
+     * see some layers updated and others not.
      */
     public synchronized void updateFromLearning() {
+        pendingUpdate.join();
+
         for (Layer l : layers)
             if (l.hasPrecedingLayer())         // Skip input layer
                 l.updateWeightsAndBias();
 
+        parameters = currentParameters();
+    }
+
+
+    /**
+     * Same as <code>updateFromLearningAsync(executor)</code> on the
+     * common ForkJoinPool.
+     */
+    public CompletableFuture<Void> updateFromLearningAsync() {
+        return updateFromLearningAsync(ForkJoinPool.commonPool());
+    }
+
+
+    /**
+     * Pipelined version of <code>updateFromLearning()</code>: the deltas
+     * gathered so far are set aside (each layer switches to its other
+     * delta buffer) and applied by <code>executor</code>, while this
+     * method returns at once. Learning can go on during the update, into
+     * the other buffers, and the new weights are published when it is done.
+     * <p>
+     * At most one update runs at a time: this method (and
+     * <code>updateFromLearning()</code>) first waits for the previous
+     * one. Deltas are thus at most one step stale: what is learned while
+     * update k runs is computed with the weights before update k and
+     * applied in update k + 1, on top of update k.
+     *
+     * @return Completes when the new weights are published
+     */
+    public synchronized CompletableFuture<Void> updateFromLearningAsync(Executor executor) {
+        pendingUpdate.join();
+
+        StripedDeltas[] filled = new StripedDeltas[layers.size()];
+        for (int l = 1; l < layers.size(); l++)         // Skip input layer
+            filled[l] = layers.get(l).swapDeltas();
+
+        pendingUpdate = CompletableFuture.runAsync(() -> {
+            for (int l = 1; l < layers.size(); l++)
+                layers.get(l).updateWeightsAndBias(filled[l]);
+
+            parameters = currentParameters();
+        }, executor);
+
+        return pendingUpdate;
+    }
+
+    /**
+     * The weights and biases of all layers as of the last update.
+     */
+    Layer.Parameters[] getParameters() {
+        return parameters;
+    }
+
+    /**
+     * Same as <code>getParameters()</code>, pinned so that no update
+     * reuses their off-heap buffers (see Layer.updateWeightsAndBias) until
+     * given back with <code>releaseParameters</code>. Evaluations hold
+     * them while they run.
+     */
+    Layer.Parameters[] acquireParameters() {
+        while (true) {
+            Layer.Parameters[] current = parameters;
+            for (Layer.Parameters p : current)
+                p.pin();
+            if (parameters == current)
+                return current;     // Still current once pinned, an update will see the pins
+            releaseParameters(current);
+        }
+    }
+
+    static void releaseParameters(Layer.Parameters[] parameters) {
+        for (Layer.Parameters p : parameters)
+            p.release();
+    }
+
+    /**
+     * Replaces the weights and biases of the layers after the input layer
+     * (index 0 is not used) and publishes them together.
+     */
+    synchronized void setParameters(Matrix[] weights, Vec[] biases) {
+        for (int l = 1; l < layers.size(); l++)
+            layers.get(l).setParameters(weights[l], biases[l]);
+
+        parameters = currentParameters();
+    }
+
+    /**
+     * Runs <code>action</code> when no update is in progress, and
+     * keeps updates from starting until it returns. In lock-free training
+     * the learning threads also wait before their next sample. Samples
+     * already under way are not waited for, so <code>action</code> may see
+     * some of their changes, as is usual in lock-free training.
+     */
+    synchronized <T> T atRest(Supplier<T> action) {
+        pendingUpdate.join();
+        if (!lockFree)
+            return action.get();
+
+        // Holds off the lock-free learners, see awaitRest()
+        long stamp = inPlaceUpdates.writeLock();
+        try {
+            return action.get();
+        } finally {
+            inPlaceUpdates.unlockWrite(stamp);
+        }
     }
 
     // --------------------------------------------------------------------
@@ -131,15 +494,98 @@ public class NeuralNetwork {
         return layers;
     }
 
+    public Precision getPrecision() {
+        return precision;
+    }
+
+    public CostFunction getCostFunction() {
+        return costFunction;
+    }
+
+    public double getL2() {
+        return l2;
+    }
+
+    public boolean isLockFree() {
+        return lockFree;
+    }
+
     public String toJson(boolean pretty) {
-        GsonBuilder gsonBuilder = new GsonBuilder();
-        if (pretty) gsonBuilder.setPrettyPrinting();
-        return gsonBuilder.create().toJson(new NetworkState(this));
+        StringWriter out = new StringWriter();
+        try {
+            toJson(out, pretty);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toString();
     }
 
+    /**
+     * Writes the same JSON as <code>toJson(pretty)</code>, streamed layer by
+     * layer and row by row so that no copy of the weights is made.
+     */
+    public void toJson(Writer out, boolean pretty) throws IOException {
+        JsonFormat.write(this, out, pretty);
+    }
 
-    private Layer getLastLayer() {
-        return layers.get(layers.size() - 1);
+    /**
+     * Reads a network written by <code>toJson</code>, streaming. Only
+     * predefined activations and cost functions can be read, and the
+     * network gets the default optimizer and precision.
+     */
+    public static NeuralNetwork fromJson(Reader in) throws IOException {
+        return JsonFormat.read(in);
+    }
+
+
+    private Layer.Parameters[] currentParameters() {
+        Layer.Parameters[] current = new Layer.Parameters[layers.size()];
+        for (int l = 0; l < current.length; l++)
+            current[l] = layers.get(l).getParameters();
+        return current;
+    }
+
+
+    // The layer closest to the input that is not frozen, null if there is none
+    private Layer getDeepestTrainableLayer() {
+        for (int l = 1; l < layers.size(); l++)
+            if (!layers.get(l).isFrozen())
+                return layers.get(l);
+        return null;
+    }
+
+
+    /**
+     * The weights of a layer while its initializer runs. They are stored
+     * flat, so <code>getData()</code> returns a copy: the initializer gets
+     * the same copy each time it asks, and what it writes there is copied
+     * in when it returns. Afterwards <code>getData()</code> is as usual.
+     */
+    private static final class InitialWeights extends Matrix {
+
+        private double[][] data;
+        private boolean initialized;
+
+        InitialWeights(int rows, int cols, Precision precision) {
+            super(rows, cols, precision);
+        }
+
+        @Override
+        public double[][] getData() {
+            if (initialized)
+                return super.getData();
+            if (data == null)
+                data = super.getData();
+            return data;
+        }
+
+        Matrix initialized() {
+            if (data != null)
+                fillFrom(new Matrix(data));
+            data = null;
+            initialized = true;
+            return this;
+        }
     }
 
 
@@ -157,7 +603,13 @@ public class NeuralNetwork {
         private Initializer initializer = new Initializer.Random(-0.5, 0.5);
         private CostFunction costFunction = new CostFunction.Quadratic();
         private Optimizer optimizer = new GradientDescent(0.005);
+        private Precision precision = Precision.DOUBLE;
+        private boolean lockFree = false;
         private double l2 = 0;
+        private Set<Integer> offHeap = new HashSet<>();
+
+        // Used as they are instead of initialized, see ModelFile
+        private List<Matrix> weights;
 
         public Builder(int networkInputSize) {
             this.networkInputSize = networkInputSize;
@@ -166,24 +618,28 @@ public class NeuralNetwork {
         /**
          * Create a builder from an existing neural network, hence making
          * it possible to do a copy of the entire state and modify as needed.
+         * Setting another precision on the builder converts the weights.
          */
         public Builder(NeuralNetwork other) {
             networkInputSize = other.networkInputSize;
             costFunction = other.costFunction;
             optimizer = other.optimizer;
+            precision = other.precision;
+            lockFree = other.lockFree;
             l2 = other.l2;
 
             List<Layer> otherLayers = other.getLayers();
             for (int i = 1; i < otherLayers.size(); i++) {
                 Layer otherLayer = otherLayers.get(i);
-                layers.add(
-                        new Layer(
-                                otherLayer.size(),
-                                otherLayer.getActivation(),
-                                otherLayer.getBias()
-                        )
+                Layer layer = new Layer(
+                        otherLayer.size(),
+                        otherLayer.getActivation(),
+                        new Vec(otherLayer.getBias().getData().clone())
                 );
+                layer.setFrozen(otherLayer.isFrozen());
+                layers.add(layer);
             }
+            offHeap.addAll(other.offHeap);
 
             initializer = (weights, layer) -> {
                 Layer otherLayer = otherLayers.get(layer + 1);
@@ -207,17 +663,96 @@ public class NeuralNetwork {
             return this;
         }
 
+        /**
+         * How the weights, their gradients and the optimizer state are stored.
+         * FLOAT halves the memory (and memory bandwidth) needed for them at the
+         * cost of precision. Default is DOUBLE.
+         */
+        public Builder precision(Precision precision) {
+            this.precision = precision;
+            return this;
+        }
+
+        /**
+         * Lock-free (Hogwild) training: <code>evaluate(input, expected)</code>
+         * applies the gradient of the sample to the weights right away,
+         * without taking any lock, and there is nothing left for
+         * <code>updateFromLearning()</code> to do. Meant for many threads
+         * learning at once from sparse inputs, where they seldom update the
+         * same weights. Batches are learned from as usual, but their
+         * updates too are made in place: each layer then has a single
+         * version of its weights, which evaluations may see partly updated.
+         * <p>
+         * Needs an optimizer that supports it (GradientDescent, Momentum).
+         */
+        public Builder lockFree(boolean lockFree) {
+            this.lockFree = lockFree;
+            return this;
+        }
+
         public Builder l2(double l2) {
             this.l2 = l2;
             return this;
         }
 
+        /**
+         * Stores the weights of these layers off the Java heap, in direct
+         * memory, and with them their deltas, gradients and optimizer
+         * state. Meant for huge layers, e.g. an embedding-like first layer
+         * of several GB: the garbage collector then never scans or copies
+         * them, so its pauses do not grow with them. Layers are numbered as
+         * in <code>getLayers()</code>, 1 being the first after the input.
+         * <p>
+         * Set -XX:MaxDirectMemorySize to hold, for each such layer with
+         * weights of W bytes (rows × columns × 8, or 4 for floats):
+         * <ul>
+         * <li>2 W for the weights, updated in two buffers used in turn (see
+         * Layer.updateWeightsAndBias), and W more for the weights the
+         * layer was created with, until they are collected after the
+         * first update. An evaluation still running two updates later
+         * keeps its version, and the update makes another W instead.</li>
+         * <li>W for the sum of the deltas, made at the first update</li>
+         * <li>up to 2 × S W for the stripes the deltas are gathered in,
+         * plus 5 bytes per row each. S is StripedDeltas.MAX_STRIPES, a
+         * quarter of the processors (rounded down to a power of two), or
+         * fewer so that the stripes of a set take at most
+         * StripedDeltas.MAX_STRIPE_BYTES (256 MB), but at least one. There
+         * are two sets of them (the second used by updateFromLearningAsync)
+         * and stripes are only added when learning threads collide. A
+         * single learning thread needs one.</li>
+         * <li>W for the state of Momentum or Nesterov, 2 W for Momentum in
+         * lock-free training</li>
+         * <li>W per gradient buffer of a Trainer, at most one per thread
+         * of its pool</li>
+         * </ul>
+         * The same goes for the heap of layers not stored off heap.
+         */
+        public Builder offHeap(int... layers) {
+            for (int layer : layers)
+                offHeap.add(layer);
+            return this;
+        }
+
+        /**
+         * Use these weights as they are, without copying, instead of
+         * creating and initializing them. One per layer added.
+         */
+        Builder useWeights(List<Matrix> weights) {
+            this.weights = weights;
+            return this;
+        }
+
         public Builder addLayer(Layer layer) {
             layers.add(layer);
             return this;
         }
 
         public NeuralNetwork create() {
+            if (lockFree && !optimizer.supportsLockFree())
+                throw new IllegalStateException(optimizer.getClass().getSimpleName() + " does not support lock-free training");
+            for (int layer : offHeap)
+                if (layer < 1 || layer > layers.size())
+                    throw new IllegalArgumentException(String.format("There is no layer %d to store off heap, the layers are 1 to %d", layer, layers.size()));
             return new NeuralNetwork(this);
         }
 
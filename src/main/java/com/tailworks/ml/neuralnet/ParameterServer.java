@@ -0,0 +1,156 @@
+package com.tailworks.ml.neuralnet;
+
+import com.tailworks.ml.neuralnet.math.Precision;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+
+import static java.lang.String.format;
+
+/**
+ * Holds the weights of a network trained by several worker processes,
+ * each running a DistributedTrainer on its own shard of the data.
+ * <p>
+ * Training goes in rounds. In each round every worker sends the deltas
+ * of one mini-batch of its shard, summed over its samples. When all
+ * workers have sent theirs the server adds them to the layers and calls
+ * <code>updateFromLearning()</code>, exactly as for one mini-batch made
+ * of the samples of all workers on a single node, and sends the new
+ * weights back to every worker.
+ * <p>
+ * Workers connect over TCP, typically as processes on the same machine
+ * through the loopback interface, see DistributedWorker. All workers must
+ * train for the same number of rounds; when one disconnects the others are
+ * disconnected too.
+ */
+public class ParameterServer implements AutoCloseable {
+
+    private final NeuralNetwork network;
+    private final int workers;
+    private final ServerSocket serverSocket;
+    private final CyclicBarrier round;
+    private final List<Worker> connected = new ArrayList<>();
+    private volatile IOException failure;
+
+    /**
+     * Listens on the loopback interface.
+     *
+     * @param workers The number of workers taking part in each round
+     * @param port    The port to listen on, 0 for any free port
+     */
+    public ParameterServer(NeuralNetwork network, int workers, int port) throws IOException {
+        this(network, workers, new ServerSocket(port, workers, InetAddress.getLoopbackAddress()));
+    }
+
+    public ParameterServer(NeuralNetwork network, int workers, ServerSocket serverSocket) {
+        this.network = network;
+        this.workers = workers;
+        this.serverSocket = serverSocket;
+        round = new CyclicBarrier(workers, this::update);
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Waits for all workers to connect and serves them until they
+     * disconnect.
+     */
+    public void serve() throws IOException {
+        for (int i = 0; i < workers; i++) {
+            Socket socket = serverSocket.accept();
+            socket.setTcpNoDelay(true);
+            connected.add(new Worker(socket));
+        }
+
+        List<Thread> threads = new ArrayList<>();
+        for (Worker worker : connected) {
+            Thread thread = new Thread(worker, "ParameterServer-" + threads.size());
+            threads.add(thread);
+            thread.start();
+        }
+
+        try {
+            for (Thread thread : threads)
+                thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            close();
+        }
+
+        if (failure != null)
+            throw failure;
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        for (Worker worker : connected)
+            worker.socket.close();
+    }
+
+    // Runs in the last worker thread to arrive, while the others wait
+    private void update() {
+        Gradients total = connected.get(0).gradients;
+        for (int i = 1; i < connected.size(); i++)
+            total.add(connected.get(i).gradients);
+
+        total.applyTo(network.getLayers());
+        network.updateFromLearning();
+    }
+
+    // -------------------------------------------------------------------------
+
+    private class Worker implements Runnable {
+
+        private final Socket socket;
+        private final Gradients gradients = new Gradients(network.getLayers());
+
+        Worker(Socket socket) {
+            this.socket = socket;
+        }
+
+        @Override
+        public void run() {
+            int layers = network.getLayers().size();
+            try (Socket socket = this.socket) {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+                int ordinal = in.readInt();
+                if (ordinal < 0 || ordinal >= Precision.values().length)
+                    throw new IOException(format("Unknown gradient precision %d", ordinal));
+                Precision precision = Precision.values()[ordinal];
+                WireFormat.writeParameters(out, network.getParameters());
+
+                // A worker that disconnects without saying it is done, even
+                // in the middle of its gradients, fails with an EOFException
+                while (WireFormat.readGradients(in, gradients, layers, precision)) {
+                    round.await();
+                    WireFormat.writeParameters(out, network.getParameters());
+                    gradients.clear();
+                }
+            } catch (IOException e) {
+                failure = e;
+            } catch (BrokenBarrierException e) {
+                // Another worker left
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                // Let no one wait for a round this worker will not take part in
+                round.reset();
+            }
+        }
+    }
+}
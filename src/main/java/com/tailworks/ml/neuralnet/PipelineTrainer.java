@@ -0,0 +1,186 @@
+package com.tailworks.ml.neuralnet;
+
+import com.tailworks.ml.neuralnet.math.Matrix;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static java.lang.String.format;
+
+/**
+ * Trains a network on mini-batches with its layers split in stages, each
+ * stage a group of consecutive layers run by a thread of its own (pipeline
+ * parallelism, as in GPipe). Meant for deep networks with layers too
+ * small to be split across threads themselves.
+ * <p>
+ * Each mini-batch is split in micro-batches that stream through the
+ * stages: while one stage computes the forward pass of a micro-batch
+ * the stage after it works on the previous one. The error of each
+ * micro-batch streams back the same way once it has reached the last
+ * layer. Every stage gathers the deltas of its own layers, summed over
+ * all micro-batches, and when the whole mini-batch is done they are
+ * handed to the layers followed by <code>updateFromLearning()</code>.
+ * All micro-batches use the weights as they were at the start of the
+ * mini-batch.
+ * <p>
+ * The result is the same as calling <code>evaluateBatch(inputs, expected)</code>
+ * and <code>updateFromLearning()</code> for each mini-batch, up to rounding.
+ * More micro-batches keep the stages busier (the pipeline fills and
+ * drains once per mini-batch) but make each matrix product smaller.
+ * <p>
+ * A trainer should only be used by one thread at a time. Close it to
+ * stop the stage threads.
+ */
+public class PipelineTrainer implements AutoCloseable {
+
+    private final NeuralNetwork network;
+    private final int microBatches;
+    private final int[] firstLayer;     // The first layer of each stage, and one past the last layer
+    private final ExecutorService[] stages;
+    private final Gradients gradients;
+
+    /**
+     * Splits the layers (after the input layer) in <code>stages</code>
+     * stages of about as many layers each.
+     */
+    public PipelineTrainer(NeuralNetwork network, int stages, int microBatches) {
+        this(network, evenStages(network.getLayers().size() - 1, stages), microBatches);
+    }
+
+    /**
+     * @param stageSizes   The number of layers in each stage, in order from the input. The
+     *                     sum is the number of layers after the input layer.
+     * @param microBatches The number of micro-batches each mini-batch is split in
+     */
+    public PipelineTrainer(NeuralNetwork network, int[] stageSizes, int microBatches) {
+        int layers = network.getLayers().size() - 1;
+        if (Arrays.stream(stageSizes).sum() != layers || Arrays.stream(stageSizes).anyMatch(size -> size < 1))
+            throw new IllegalArgumentException(format("Stages of %s layers do not cover the %d layers", Arrays.toString(stageSizes), layers));
+        if (microBatches < 1)
+            throw new IllegalArgumentException("At least one micro-batch is needed");
+
+        this.network = network;
+        this.microBatches = microBatches;
+        gradients = new Gradients(network.getLayers());
+
+        firstLayer = new int[stageSizes.length + 1];
+        firstLayer[0] = 1;
+        for (int s = 0; s < stageSizes.length; s++)
+            firstLayer[s + 1] = firstLayer[s] + stageSizes[s];
+
+        stages = new ExecutorService[stageSizes.length];
+        for (int s = 0; s < stages.length; s++) {
+            String name = "PipelineTrainer-stage-" + s;
+            stages[s] = Executors.newSingleThreadExecutor(task -> {
+                Thread thread = new Thread(task, name);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    /**
+     * Learns from one mini-batch, one sample per row, and updates the network.
+     *
+     * @return The cost of each sample
+     */
+    public double[] train(Matrix inputs, Matrix expected) {
+        if (inputs.rows() != expected.rows())
+            throw new IllegalArgumentException(format("Got %d inputs but %d expected", inputs.rows(), expected.rows()));
+
+        Layer.Parameters[] parameters = network.acquireParameters();
+        double[] costs = new double[inputs.rows()];
+        int count = Math.min(microBatches, inputs.rows());
+
+        CompletableFuture<?>[] done = new CompletableFuture[count];
+        for (int m = 0; m < count; m++) {
+            int from = inputs.rows() * m / count;
+            int rows = inputs.rows() * (m + 1) / count - from;
+            MicroBatch micro = new MicroBatch(inputs.subMatrix(from, 0, rows, inputs.cols()), expected.subMatrix(from, 0, rows, expected.cols()));
+
+            CompletableFuture<Void> step = CompletableFuture.completedFuture(null);
+            for (int s = 0; s < stages.length; s++) {
+                int stage = s;
+                step = step.thenRunAsync(() -> forward(stage, parameters, micro), stages[s]);
+            }
+            step = step.thenRun(() -> {
+                micro.dCdO = network.getCostDerivative(micro.outs[micro.outs.length - 1], micro.expected);
+                System.arraycopy(network.getCosts(micro.outs[micro.outs.length - 1], micro.expected), 0, costs, from, rows);
+            });
+            for (int s = stages.length - 1; s >= 0; s--) {
+                int stage = s;
+                step = step.thenRunAsync(() -> backward(stage, parameters, micro), stages[s]);
+            }
+            done[m] = step;
+        }
+
+        try {
+            CompletableFuture.allOf(done).join();
+            gradients.applyTo(network.getLayers());
+        } finally {
+            gradients.clear();
+            NeuralNetwork.releaseParameters(parameters);
+        }
+
+        network.updateFromLearning();
+        return costs;
+    }
+
+    /**
+     * Learns from all samples, in mini-batches of <code>batchSize</code>
+     * consecutive rows, updating the network after each of them.
+     *
+     * @return The average cost of the samples
+     */
+    public double trainEpoch(Matrix inputs, Matrix expected, int batchSize) {
+        double sum = 0;
+        for (int row = 0; row < inputs.rows(); row += batchSize) {
+            int rows = Math.min(batchSize, inputs.rows() - row);
+            for (double cost : train(inputs.subMatrix(row, 0, rows, inputs.cols()), expected.subMatrix(row, 0, rows, expected.cols())))
+                sum += cost;
+        }
+
+        return sum / inputs.rows();
+    }
+
+    @Override
+    public void close() {
+        for (ExecutorService stage : stages)
+            stage.shutdown();
+    }
+
+    // -------------------------------------------------------------------------
+
+    // A micro-batch on its way through the stages
+    private class MicroBatch {
+        final Matrix expected;
+        final Matrix[] outs = new Matrix[network.getLayers().size()];
+        Matrix dCdO;    // The error at the output of the last layer of the stage working on it
+
+        MicroBatch(Matrix inputs, Matrix expected) {
+            this.expected = expected;
+            outs[0] = inputs;
+        }
+    }
+
+    private void forward(int stage, Layer.Parameters[] parameters, MicroBatch micro) {
+        for (int l = firstLayer[stage]; l < firstLayer[stage + 1]; l++)
+            micro.outs[l] = network.getLayers().get(l).evaluate(micro.outs[l - 1], parameters[l]);
+    }
+
+    // Each stage only adds to the deltas of its own layers
+    private void backward(int stage, Layer.Parameters[] parameters, MicroBatch micro) {
+        for (int l = firstLayer[stage + 1] - 1; l >= firstLayer[stage] && micro.dCdO != null; l--)
+            micro.dCdO = network.backpropagate(l, parameters, micro.outs, micro.dCdO, gradients);
+    }
+
+    private static int[] evenStages(int layers, int stages) {
+        int count = Math.max(1, Math.min(stages, layers));
+        int[] sizes = new int[count];
+        for (int s = 0; s < count; s++)
+            sizes[s] = layers * (s + 1) / count - layers * s / count;
+        return sizes;
+    }
+}
@@ -0,0 +1,351 @@
+package com.tailworks.ml.neuralnet;
+
+import com.tailworks.ml.neuralnet.math.Matrix;
+import com.tailworks.ml.neuralnet.math.Precision;
+import com.tailworks.ml.neuralnet.math.SparseVec;
+import com.tailworks.ml.neuralnet.math.Vec;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The not yet realized changes to the weights and biases of a layer,
+ * spread over stripes the way a LongAdder spreads a sum over cells.
+ * <p>
+ * There is a single stripe until two threads actually collide: a thread
+ * whose <code>tryLock</code> of a stripe fails doubles the number of
+ * stripes and moves on to another one. Each stripe is as large as the
+ * weights, so there are never more than MAX_STRIPES, a quarter of the
+ * processors (rounded down to a power of two), nor more than fit in
+ * MAX_STRIPE_BYTES (but always one). Past that a thread tries the other
+ * stripes and finally waits for one.
+ * <p>
+ * Each stripe remembers which rows of the weights it has deltas for, so
+ * draining (summing the stripes) and clearing only visit those rows. For
+ * sparse inputs that is a small part of the weights.
+ * <p>
+ * The threads between <code>acquire()</code> and <code>release()</code>
+ * are counted, so that a buffer switched out for pipelined updates can
+ * wait for the last of them before it is drained.
+ */
+class StripedDeltas {
+
+    static final int MAX_STRIPES = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() / 4));
+
+    // The memory all stripes of one buffer may take together
+    static final long MAX_STRIPE_BYTES = 256L << 20;
+
+    static final class Stripe {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Writers writers;
+        private final Matrix weights;
+        private final Vec bias;
+        private int samples;
+
+        // The rows of weights holding deltas, all of them once allTouched
+        private final boolean[] touched;
+        private final int[] touchedRows;
+        private int touchedCount;
+        private boolean allTouched;
+
+        private Stripe(int rows, int cols, Precision precision, boolean offHeap, Writers writers) {
+            this.writers = writers;
+            weights = offHeap ? Matrix.offHeap(rows, cols, precision) : new Matrix(rows, cols, precision);
+            bias = new Vec(cols);
+            touched = new boolean[rows];
+            touchedRows = new int[rows];
+        }
+
+        /**
+         * Adds deltas summed over <code>samples</code> samples.
+         */
+        void add(Matrix dW, Vec dB, int samples) {
+            weights.add(dW);
+            allTouched = true;
+            addBias(dB, samples);
+        }
+
+        /**
+         * Adds the deltas of one sample, the outer product of the input and the error.
+         */
+        void addOuterProduct(Vec in, Vec dCdI) {
+            weights.addOuterProduct(in, dCdI);
+            allTouched = true;
+            addBias(dCdI, 1);
+        }
+
+        /**
+         * Same as <code>addOuterProduct(Vec, Vec)</code>, touching only the
+         * rows where the input is non-zero.
+         */
+        void addOuterProduct(SparseVec in, Vec dCdI) {
+            weights.addOuterProduct(in, dCdI);
+            for (int row : in.getIndices())
+                touch(row);
+            addBias(dCdI, 1);
+        }
+
+        /**
+         * Adds the deltas of a batch, one sample per row of <code>in</code> and <code>dCdI</code>.
+         */
+        void addProduct(Matrix in, Matrix dCdI) {
+            weights.addProduct(in.transpose(), dCdI);
+            allTouched = true;
+            addBias(dCdI.columnSums(), dCdI.rows());
+        }
+
+        void release() {
+            lock.unlock();
+            writers.release();
+        }
+
+        int samples() {
+            return samples;
+        }
+
+        private void addBias(Vec dB, int samples) {
+            bias.addInPlace(dB);
+            this.samples += samples;
+        }
+
+        private void touch(int row) {
+            if (!touched[row]) {
+                touched[row] = true;
+                touchedRows[touchedCount++] = row;
+            }
+        }
+
+        // Adds the deltas to dW and dB, and clears them if asked to
+        private void sumTo(Matrix dW, Vec dB, boolean clear) {
+            if (allTouched) {
+                dW.add(weights);
+            } else {
+                for (int i = 0; i < touchedCount; i++)
+                    dW.row(touchedRows[i]).add(weights.row(touchedRows[i]));
+            }
+
+            dB.addInPlace(bias);
+            if (clear)
+                clear();
+        }
+
+        private void clear() {
+            if (allTouched) {
+                weights.map(a -> 0);
+                Arrays.fill(touched, false);
+            } else {
+                for (int i = 0; i < touchedCount; i++) {
+                    weights.row(touchedRows[i]).map(a -> 0);
+                    touched[touchedRows[i]] = false;
+                }
+            }
+            bias.mapInPlace(a -> 0);
+            samples = 0;
+            touchedCount = 0;
+            allTouched = false;
+        }
+    }
+
+    // The threads holding or waiting for a stripe, which awaitWriters() waits for
+    private static final class Writers {
+        private final AtomicInteger count = new AtomicInteger();
+
+        // The threads waiting, changed only while synchronized. Releasing
+        // only notifies when there are any
+        private volatile int waiting;
+
+        void acquire() {
+            count.incrementAndGet();
+        }
+
+        void release() {
+            if (count.decrementAndGet() == 0 && waiting > 0) {
+                synchronized (this) {
+                    notifyAll();
+                }
+            }
+        }
+
+        synchronized void await() {
+            boolean interrupted = false;
+            waiting++;
+            try {
+                while (count.get() > 0) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;     // The deltas must all be in, wait on
+                    }
+                }
+            } finally {
+                waiting--;
+                if (interrupted)
+                    Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private final int rows, cols;
+    private final Precision precision;
+    private final boolean offHeap;
+    private final int maxStripes;
+
+    // Grows (doubling) up to maxStripes, created on first use
+    private volatile Stripe[] stripes = new Stripe[0];
+
+    private final Writers writers = new Writers();
+
+    StripedDeltas(int rows, int cols, Precision precision) {
+        this(rows, cols, precision, false);
+    }
+
+    /**
+     * @param offHeap Keep the stripes in direct memory, as the weights of the layer
+     */
+    StripedDeltas(int rows, int cols, Precision precision, boolean offHeap) {
+        this.rows = rows;
+        this.cols = cols;
+        this.precision = precision;
+        this.offHeap = offHeap;
+        maxStripes = maxStripes(rows, cols, precision);
+    }
+
+    /**
+     * The number of stripes for weights of <code>rows</code> × <code>cols</code>:
+     * MAX_STRIPES, or as many as fit in MAX_STRIPE_BYTES (a power of two, at least one).
+     */
+    static int maxStripes(int rows, int cols, Precision precision) {
+        long bytes = stripeBytes(rows, cols, precision);
+        return (int) Math.min(MAX_STRIPES, Long.highestOneBit(Math.max(1, MAX_STRIPE_BYTES / bytes)));
+    }
+
+    /**
+     * The memory taken by one stripe: the weights, the bias and the
+     * bookkeeping of the rows touched (5 bytes per row).
+     */
+    static long stripeBytes(int rows, int cols, Precision precision) {
+        int size = precision == Precision.FLOAT ? Float.BYTES : Double.BYTES;
+        return (long) rows * cols * size + (long) cols * Double.BYTES + rows * 5L;
+    }
+
+    /**
+     * Returns a locked stripe for the calling thread to add deltas to.
+     * Must be given back with <code>release()</code>.
+     */
+    Stripe acquire() {
+        writers.acquire();
+
+        // The stripe to start from, rehashed when it collides. Kept per call
+        // (not per thread), a thread starts from the same stripe each time
+        int probe = spread(System.identityHashCode(Thread.currentThread()));
+
+        for (int collisions = 0; ; collisions++) {
+            Stripe[] current = stripes;
+            if (current.length == 0) {
+                grow(current);
+                continue;
+            }
+
+            Stripe stripe = current[probe & (current.length - 1)];
+            if (stripe.lock.tryLock())
+                return stripe;
+
+            if (current.length < maxStripes) {
+                grow(current);
+            } else if (collisions >= current.length) {
+                // All busy, wait for this one
+                stripe.lock.lock();
+                return stripe;
+            }
+            probe = rehash(probe);
+        }
+    }
+
+    /**
+     * Waits until no thread holds a stripe. Once no thread can acquire
+     * one any more (the buffer was switched out) all deltas are then in.
+     * The waiting thread is parked, and woken by the last one to release
+     * its stripe.
+     */
+    void awaitWriters() {
+        writers.await();
+    }
+
+    /**
+     * Moves the deltas of all stripes to <code>dW</code> and <code>dB</code>
+     * (adding to what they hold) and returns the number of samples they
+     * were summed over. Deltas added while draining end up either in this
+     * drain or in the next.
+     */
+    int drainTo(Matrix dW, Vec dB) {
+        return sumTo(dW, dB, true);
+    }
+
+    /**
+     * Like <code>drainTo</code>, but leaves the deltas where they are.
+     */
+    int copyTo(Matrix dW, Vec dB) {
+        return sumTo(dW, dB, false);
+    }
+
+    /**
+     * Discards the deltas of all stripes.
+     */
+    void clear() {
+        for (Stripe stripe : stripes) {
+            stripe.lock.lock();
+            try {
+                stripe.clear();
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * The number of stripes created so far.
+     */
+    int stripeCount() {
+        return stripes.length;
+    }
+
+    private int sumTo(Matrix dW, Vec dB, boolean clear) {
+        int samples = 0;
+        for (Stripe stripe : stripes) {
+            stripe.lock.lock();
+            try {
+                if (stripe.samples > 0) {
+                    samples += stripe.samples;
+                    stripe.sumTo(dW, dB, clear);
+                }
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+
+        return samples;
+    }
+
+    private synchronized void grow(Stripe[] current) {
+        if (stripes != current)
+            return;     // Grown by another thread
+
+        Stripe[] grown = Arrays.copyOf(current, Math.max(1, current.length * 2));
+        for (int i = current.length; i < grown.length; i++)
+            grown[i] = new Stripe(rows, cols, precision, offHeap, writers);
+        stripes = grown;
+    }
+
+    private static int spread(int h) {
+        return (h * 0x9E3779B9) | 1;
+    }
+
+    // Marsaglia xorshift, as used by LongAdder
+    private static int rehash(int h) {
+        h ^= h << 13;
+        h ^= h >>> 17;
+        h ^= h << 5;
+        return h;
+    }
+}
@@ -0,0 +1,172 @@
+package com.tailworks.ml.neuralnet;
+
+import com.tailworks.ml.neuralnet.math.Matrix;
+
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import static java.lang.String.format;
+
+/**
+ * Trains a network on mini-batches using all threads of a ForkJoinPool.
+ * <p>
+ * Each mini-batch is split into one shard per thread. A shard is
+ * evaluated as a batch and its learning gathered in a Gradients buffer
+ * private to the task, so the workers never touch the layers and never
+ * contend on their locks. The buffers are summed pairwise as the tasks
+ * are joined (a tree reduction, where the sums in different subtrees run
+ * in parallel) and the total is handed to the layers once per mini-batch,
+ * followed by <code>updateFromLearning()</code>.
+ * <p>
+ * The result is the same as calling <code>evaluateBatch(inputs, expected)</code>
+ * and <code>updateFromLearning()</code> for each mini-batch, up to rounding.
+ * <p>
+ * With asynchronous updates the weights are updated with
+ * <code>updateFromLearningAsync</code> instead, in the pool, while the
+ * next mini-batch is learned from: its deltas are computed with weights
+ * one update behind.
+ * <p>
+ * Gradient buffers are reused between mini-batches. A trainer should only
+ * be used by one thread at a time.
+ */
+public class Trainer {
+
+    // Fewer samples than this per task do not pay for the task and its buffer
+    private static final int MIN_SAMPLES_PER_TASK = 16;
+
+    private final NeuralNetwork network;
+    private final ForkJoinPool pool;
+    private final int minSamplesPerTask;
+    private final Queue<Gradients> buffers = new ConcurrentLinkedQueue<>();
+    private boolean asyncUpdates = false;
+    private CompletableFuture<Void> lastUpdate = CompletableFuture.completedFuture(null);
+
+    public Trainer(NeuralNetwork network) {
+        this(network, ForkJoinPool.commonPool());
+    }
+
+    public Trainer(NeuralNetwork network, ForkJoinPool pool) {
+        this(network, pool, MIN_SAMPLES_PER_TASK);
+    }
+
+    /**
+     * @param minSamplesPerTask Shards are not made smaller than this
+     */
+    public Trainer(NeuralNetwork network, ForkJoinPool pool, int minSamplesPerTask) {
+        this.network = network;
+        this.pool = pool;
+        this.minSamplesPerTask = Math.max(1, minSamplesPerTask);
+    }
+
+    /**
+     * Overlaps the update of the weights after each mini-batch with
+     * learning from the next one, see <code>updateFromLearningAsync</code>.
+     */
+    public void setAsyncUpdates(boolean asyncUpdates) {
+        this.asyncUpdates = asyncUpdates;
+    }
+
+    /**
+     * Learns from one mini-batch, one sample per row, and updates the network.
+     * With asynchronous updates the update may still be running on return.
+     *
+     * @return The cost of each sample
+     */
+    public double[] train(Matrix inputs, Matrix expected) {
+        double[] costs = new double[inputs.rows()];
+
+        Gradients total = computeGradients(inputs, expected, costs);
+        total.applyTo(network.getLayers());
+        release(total);
+
+        if (asyncUpdates)
+            lastUpdate = network.updateFromLearningAsync(pool);
+        else
+            network.updateFromLearning();
+        return costs;
+    }
+
+    /**
+     * Learns from all samples, in mini-batches of <code>batchSize</code>
+     * consecutive rows, updating the network after each of them. Returns
+     * when the last update is done.
+     *
+     * @return The average cost of the samples
+     */
+    public double trainEpoch(Matrix inputs, Matrix expected, int batchSize) {
+        double sum = 0;
+        for (int row = 0; row < inputs.rows(); row += batchSize) {
+            int rows = Math.min(batchSize, inputs.rows() - row);
+            for (double cost : train(inputs.subMatrix(row, 0, rows, inputs.cols()), expected.subMatrix(row, 0, rows, expected.cols())))
+                sum += cost;
+        }
+        lastUpdate.join();
+
+        return sum / inputs.rows();
+    }
+
+    /**
+     * The deltas of one mini-batch summed over all its samples, without
+     * touching the network. <code>costs</code> receives the cost of each
+     * sample. The buffer returned should be given back with <code>release</code>.
+     */
+    Gradients computeGradients(Matrix inputs, Matrix expected, double[] costs) {
+        if (inputs.rows() != expected.rows())
+            throw new IllegalArgumentException(format("Got %d inputs but %d expected", inputs.rows(), expected.rows()));
+
+        int shardSize = Math.max(minSamplesPerTask, (inputs.rows() + pool.getParallelism() - 1) / pool.getParallelism());
+        return pool.invoke(new Shard(inputs, expected, costs, 0, inputs.rows(), shardSize));
+    }
+
+    private Gradients acquire() {
+        Gradients gradients = buffers.poll();
+        return gradients != null ? gradients : new Gradients(network.getLayers());
+    }
+
+    void release(Gradients gradients) {
+        gradients.clear();
+        buffers.add(gradients);
+    }
+
+    // Rows [from, to) of the mini-batch, split in halves until no larger than shardSize
+    private class Shard extends RecursiveTask<Gradients> {
+
+        private final Matrix inputs, expected;
+        private final double[] costs;
+        private final int from, to, shardSize;
+
+        Shard(Matrix inputs, Matrix expected, double[] costs, int from, int to, int shardSize) {
+            this.inputs = inputs;
+            this.expected = expected;
+            this.costs = costs;
+            this.from = from;
+            this.to = to;
+            this.shardSize = shardSize;
+        }
+
+        @Override
+        protected Gradients compute() {
+            if (to - from <= shardSize) {
+                Gradients gradients = acquire();
+                int rows = to - from;
+                BatchResult result = network.evaluateBatch(
+                        inputs.subMatrix(from, 0, rows, inputs.cols()),
+                        expected.subMatrix(from, 0, rows, expected.cols()),
+                        gradients);
+                System.arraycopy(result.getCosts(), 0, costs, from, rows);
+                return gradients;
+            }
+
+            int mid = (from + to) >>> 1;
+            Shard left = new Shard(inputs, expected, costs, from, mid, shardSize);
+            left.fork();
+            Gradients right = new Shard(inputs, expected, costs, mid, to, shardSize).compute();
+            Gradients sum = left.join().add(right);
+            release(right);
+            return sum;
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package com.tailworks.ml.neuralnet;
+
+import com.tailworks.ml.neuralnet.math.Matrix;
+import com.tailworks.ml.neuralnet.math.Precision;
+import com.tailworks.ml.neuralnet.math.Vec;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import static java.lang.String.format;
+
+/**
+ * How weights, biases and gradients are sent between a ParameterServer
+ * and its workers. Values are written big-endian as doubles or, when
+ * compressing, as floats.
+ * <p>
+ * Parameters are written as: the number of layers, then for each layer
+ * after the input layer its rows and columns, the weights row by row and
+ * the bias, always as doubles so that every worker holds exactly the
+ * weights of the server.
+ * <p>
+ * Gradients are written as: the marker GRADIENTS, then for each layer
+ * after the input layer the number of samples and, if not 0, the weight
+ * and bias deltas. A worker ends with the marker DONE, so that a
+ * connection lost at any other point is told apart from a worker that is
+ * done.
+ */
+final class WireFormat {
+
+    static final int DONE = 0;
+    static final int GRADIENTS = 1;
+
+    private WireFormat() {
+    }
+
+    static void writeParameters(DataOutputStream out, Layer.Parameters[] parameters) throws IOException {
+        out.writeInt(parameters.length);
+        for (int l = 1; l < parameters.length; l++) {
+            Matrix weights = parameters[l].weights;
+            out.writeInt(weights.rows());
+            out.writeInt(weights.cols());
+            write(out, weights, Precision.DOUBLE);
+            write(out, parameters[l].bias, Precision.DOUBLE);
+        }
+        out.flush();
+    }
+
+    /**
+     * Reads parameters into new matrices and vectors, checking that they
+     * have the shape of the layers.
+     */
+    static void readParameters(DataInputStream in, List<Layer> layers, Matrix[] weights, Vec[] biases) throws IOException {
+        int count = in.readInt();
+        if (count != layers.size())
+            throw new IOException(format("Got %d layers but the network has %d", count, layers.size()));
+
+        for (int l = 1; l < count; l++) {
+            Matrix current = layers.get(l).getWeights();
+            int rows = in.readInt();
+            int cols = in.readInt();
+            if (rows != current.rows() || cols != current.cols())
+                throw new IOException(format("Got %dx%d weights for layer %d, expected %dx%d", rows, cols, l, current.rows(), current.cols()));
+
+            weights[l] = read(in, current.like(), Precision.DOUBLE);
+            biases[l] = read(in, new Vec(cols), Precision.DOUBLE);
+        }
+    }
+
+    static void writeGradients(DataOutputStream out, Gradients gradients, int layers, Precision precision) throws IOException {
+        out.writeInt(GRADIENTS);
+        for (int l = 1; l < layers; l++) {
+            int samples = gradients.getSamples(l);
+            out.writeInt(samples);
+            if (samples > 0) {
+                write(out, gradients.getDeltaWeights(l), precision);
+                write(out, gradients.getDeltaBias(l), precision);
+            }
+        }
+        out.flush();
+    }
+
+    static void writeDone(DataOutputStream out) throws IOException {
+        out.writeInt(DONE);
+        out.flush();
+    }
+
+    /**
+     * Reads gradients into <code>gradients</code>, replacing what it holds.
+     *
+     * @return False if the worker sent DONE instead
+     */
+    static boolean readGradients(DataInputStream in, Gradients gradients, int layers, Precision precision) throws IOException {
+        int marker = in.readInt();
+        if (marker == DONE)
+            return false;
+        if (marker != GRADIENTS)
+            throw new IOException(format("Expected gradients, got %d", marker));
+
+        for (int l = 1; l < layers; l++) {
+            int samples = in.readInt();
+            gradients.setSamples(l, samples);
+            if (samples > 0) {
+                read(in, gradients.getDeltaWeights(l), precision);
+                read(in, gradients.getDeltaBias(l), precision);
+            }
+        }
+        return true;
+    }
+
+    // -------------------------------------------------------------------------
+
+    static void write(DataOutputStream out, Matrix m, Precision precision) throws IOException {
+        for (int row = 0; row < m.rows(); row++)
+            write(out, m.getRow(row), precision);
+    }
+
+    static void write(DataOutputStream out, Vec v, Precision precision) throws IOException {
+        for (double value : v.getData()) {
+            if (precision == Precision.FLOAT)
+                out.writeFloat((float) value);
+            else
+                out.writeDouble(value);
+        }
+    }
+
+    static Matrix read(DataInputStream in, Matrix m, Precision precision) throws IOException {
+        Vec row = new Vec(m.cols());
+        for (int r = 0; r < m.rows(); r++)
+            m.setRow(r, read(in, row, precision));
+        return m;
+    }
+
+    static Vec read(DataInputStream in, Vec v, Precision precision) throws IOException {
+        double[] data = v.getData();
+        for (int i = 0; i < data.length; i++)
+            data[i] = precision == Precision.FLOAT ? in.readFloat() : in.readDouble();
+        return v;
+    }
+}
@@ -0,0 +1,16 @@
+package com.tailworks.ml.neuralnet.math;
+
+/**
+ * An element-wise function applied to many elements in one call, which
+ * lets the implementation be a plain loop the JIT can inline and vectorize
+ * instead of one call per element.
+ */
+@FunctionalInterface
+public interface ArrayFunction {
+
+    /**
+     * dst[j] = f(src[j]) for the first n elements. src and dst may be
+     * the same array.
+     */
+    void apply(double[] src, double[] dst, int n);
+}
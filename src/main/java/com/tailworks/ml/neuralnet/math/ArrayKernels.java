@@ -0,0 +1,65 @@
+package com.tailworks.ml.neuralnet.math;
+
+/**
+ * The loops over contiguous ranges of double[] that most of the time is
+ * spent in: the row kernels of double storage, the Vec operations, the
+ * Gemm micro-kernel and the approximate exp of FastMath.
+ * <p>
+ * There are two implementations. The one in use is picked when the class
+ * is loaded:
+ * <ul>
+ * <li>SimdKernels, written with the JDK Vector API. It is only part of the
+ * jar for Java 17+ (it is a multi-release jar) and can only be loaded when
+ * the JVM runs with <code>--add-modules jdk.incubator.vector</code>.</li>
+ * <li>ScalarKernels, plain loops, used everywhere else.</li>
+ * </ul>
+ * Setting the system property <code>neuralnet.simd</code> to false forces
+ * the scalar kernels.
+ */
+abstract class ArrayKernels {
+
+    static final ArrayKernels INSTANCE = load();
+
+    /**
+     * ∑ x[xi + j] * y[yi + j]
+     */
+    abstract double dot(double[] x, int xi, double[] y, int yi, int n);
+
+    /**
+     * y[yi + j] += a * x[xi + j]
+     */
+    abstract void axpy(double a, double[] x, int xi, double[] y, int yi, int n);
+
+    /**
+     * y[yi + j] *= x[xi + j]
+     */
+    abstract void mul(double[] x, int xi, double[] y, int yi, int n);
+
+    /**
+     * y[yi + j] *= a
+     */
+    abstract void scale(double a, double[] y, int yi, int n);
+
+    /**
+     * y[yi + j] = FastMath.exp(x[xi + j]), x and y may be the same array
+     */
+    abstract void exp(double[] x, int xi, double[] y, int yi, int n);
+
+    /**
+     * The 4 x 4 Gemm micro-kernel: tile = A·B for a packed 4 x kc panel of A
+     * and a packed kc x 4 panel of B.
+     */
+    abstract void gemmTile(int kc, double[] aPack, int ai, double[] bPack, int bi, double[] tile);
+
+    private static ArrayKernels load() {
+        if (!Boolean.parseBoolean(System.getProperty("neuralnet.simd", "true")))
+            return new ScalarKernels();
+
+        try {
+            return (ArrayKernels) Class.forName("com.tailworks.ml.neuralnet.math.SimdKernels").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            // Older JVM, or the vector module was not added
+            return new ScalarKernels();
+        }
+    }
+}
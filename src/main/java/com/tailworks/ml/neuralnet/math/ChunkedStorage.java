@@ -0,0 +1,177 @@
+package com.tailworks.ml.neuralnet.math;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static java.lang.String.format;
+
+/**
+ * Storage in direct (off-heap) memory, allocated in chunks since a single
+ * direct buffer can hold at most 2 GB. The elements are invisible to the
+ * garbage collector, which only sees a few small buffer objects however
+ * large the storage is.
+ * <p>
+ * Each chunk is a DoubleBufferStorage or FloatBufferStorage. The strided
+ * kernels are split in one run per chunk they cross, and each run is done
+ * by the kernel of its chunk. The chunks can also be given, e.g. as the
+ * mappings of consecutive parts of a file.
+ */
+final class ChunkedStorage extends Storage {
+
+    // 2^27 elements: 1 GB of doubles or 512 MB of floats per chunk
+    static final int CHUNK_SHIFT = 27;
+
+    private final Precision precision;
+    private final int length;
+    private final int shift;
+    private final int mask;
+    private final Storage[] chunks;
+
+    ChunkedStorage(int length, Precision precision) {
+        this(length, precision, CHUNK_SHIFT);
+    }
+
+    /**
+     * @param shift Chunks hold 2^shift elements, made small to test runs across chunks
+     */
+    ChunkedStorage(int length, Precision precision, int shift) {
+        this(allocate(length, precision, shift), precision, shift);
+    }
+
+    /**
+     * Uses the given chunks, which must all hold 2^shift elements but
+     * the last, which may hold less.
+     */
+    ChunkedStorage(Storage[] chunks, Precision precision, int shift) {
+        this.precision = precision;
+        this.shift = shift;
+        this.chunks = chunks;
+        mask = (1 << shift) - 1;
+
+        long length = 0;
+        for (int c = 0; c < chunks.length; c++) {
+            int size = chunks[c].length();
+            if (size > 1 << shift || (size < 1 << shift && c < chunks.length - 1))
+                throw new IllegalArgumentException(format("Chunk %d holds %d elements, not %d", c, size, 1 << shift));
+            length += size;
+        }
+        if (length > Integer.MAX_VALUE)
+            throw new IllegalArgumentException(format("%d elements are too many for one storage", length));
+        this.length = (int) length;
+    }
+
+    private static Storage[] allocate(int length, Precision precision, int shift) {
+        Storage[] chunks = new Storage[(int) (((long) length + (1 << shift) - 1) >>> shift)];
+        for (int c = 0; c < chunks.length; c++) {
+            int size = Math.min(1 << shift, length - (c << shift));
+            ByteBuffer memory = ByteBuffer.allocateDirect(size * (precision == Precision.FLOAT ? Float.BYTES : Double.BYTES)).order(ByteOrder.nativeOrder());
+            chunks[c] = precision == Precision.FLOAT
+                    ? new FloatBufferStorage(memory.asFloatBuffer())
+                    : new DoubleBufferStorage(memory.asDoubleBuffer());
+        }
+        return chunks;
+    }
+
+    @Override
+    Precision precision() {
+        return precision;
+    }
+
+    @Override
+    int length() {
+        return length;
+    }
+
+    @Override
+    boolean isDirect() {
+        return chunks.length == 0 || chunks[0].isDirect();
+    }
+
+    @Override
+    double get(int i) {
+        return chunks[i >>> shift].get(i & mask);
+    }
+
+    @Override
+    void set(int i, double value) {
+        chunks[i >>> shift].set(i & mask, value);
+    }
+
+    @Override
+    Storage allocate(int length) {
+        return new ChunkedStorage(length, precision, shift);
+    }
+
+    // A run of elements, all in one chunk, of a strided kernel
+    private interface Run {
+        void apply(Storage chunk, int i, int j, int n);
+    }
+
+    // Calls run for each chunk crossed by n elements from i with stride s, with
+    // the index in the chunk, the index of the first element of the run and
+    // the number of elements in it
+    private void split(int i, int s, int n, Run run) {
+        int j = 0;
+        while (j < n) {
+            int c = i >>> shift;
+            int m = run(c, i, s, n - j);
+            run.apply(chunks[c], i & mask, j, m);
+            j += m;
+            i += m * s;
+        }
+    }
+
+    // How many of n elements from i with stride s are in chunk c
+    private int run(int c, int i, int s, int n) {
+        long left = ((long) (c + 1) << shift) - i;
+        return (int) Math.min(n, (left + s - 1) / s);
+    }
+
+    @Override
+    void read(int i, int s, double[] dst, int di, int n) {
+        split(i, s, n, (chunk, ci, j, m) -> chunk.read(ci, s, dst, di + j, m));
+    }
+
+    @Override
+    void write(int i, int s, double[] x, int xi, int xs, int n) {
+        split(i, s, n, (chunk, ci, j, m) -> chunk.write(ci, s, x, xi + j * xs, xs, m));
+    }
+
+    @Override
+    void map(int i, int s, int n, Function fn) {
+        split(i, s, n, (chunk, ci, j, m) -> chunk.map(ci, s, m, fn));
+    }
+
+    @Override
+    void scale(int i, int s, double a, int n) {
+        split(i, s, n, (chunk, ci, j, m) -> chunk.scale(ci, s, a, m));
+    }
+
+    @Override
+    void axpy(int i, int s, double a, double[] x, int xi, int xs, int n) {
+        split(i, s, n, (chunk, ci, j, m) -> chunk.axpy(ci, s, a, x, xi + j * xs, xs, m));
+    }
+
+    @Override
+    void mul(int i, int s, double[] x, int xi, int xs, int n) {
+        split(i, s, n, (chunk, ci, j, m) -> chunk.mul(ci, s, x, xi + j * xs, xs, m));
+    }
+
+    @Override
+    void axpyTo(int i, int s, double a, double[] x, int xi, int xs, int n) {
+        split(i, s, n, (chunk, ci, j, m) -> chunk.axpyTo(ci, s, a, x, xi + j * xs, xs, m));
+    }
+
+    @Override
+    double dot(int i, int s, double[] x, int xi, int xs, int n) {
+        double sum = 0;
+        for (int j = 0; j < n; ) {
+            int c = i >>> shift;
+            int m = run(c, i, s, n - j);
+            sum += chunks[c].dot(i & mask, s, x, xi + j * xs, xs, m);
+            j += m;
+            i += m * s;
+        }
+        return sum;
+    }
+}
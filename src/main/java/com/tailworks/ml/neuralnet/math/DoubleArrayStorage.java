@@ -0,0 +1,115 @@
+package com.tailworks.ml.neuralnet.math;
+
+/**
+ * Storage backed by a double[] on the heap.
+ * Contiguous ranges are handed to the (possibly SIMD) ArrayKernels.
+ */
+final class DoubleArrayStorage extends Storage {
+
+    private static final ArrayKernels KERNELS = ArrayKernels.INSTANCE;
+
+    private final double[] data;
+
+    DoubleArrayStorage(double[] data) {
+        this.data = data;
+    }
+
+    @Override
+    Precision precision() {
+        return Precision.DOUBLE;
+    }
+
+    @Override
+    int length() {
+        return data.length;
+    }
+
+    @Override
+    double get(int i) {
+        return data[i];
+    }
+
+    @Override
+    void set(int i, double value) {
+        data[i] = value;
+    }
+
+    @Override
+    Storage allocate(int length) {
+        return new DoubleArrayStorage(new double[length]);
+    }
+
+    @Override
+    double[] array() {
+        return data;
+    }
+
+    @Override
+    void read(int i, int s, double[] dst, int di, int n) {
+        for (int j = 0; j < n; j++, i += s)
+            dst[di + j] = data[i];
+    }
+
+    @Override
+    void write(int i, int s, double[] x, int xi, int xs, int n) {
+        for (int j = 0; j < n; j++, i += s, xi += xs)
+            data[i] = x[xi];
+    }
+
+    @Override
+    void map(int i, int s, int n, Function fn) {
+        for (int j = 0; j < n; j++, i += s)
+            data[i] = fn.apply(data[i]);
+    }
+
+    @Override
+    void scale(int i, int s, double a, int n) {
+        if (s == 1) {
+            KERNELS.scale(a, data, i, n);
+            return;
+        }
+        for (int j = 0; j < n; j++, i += s)
+            data[i] *= a;
+    }
+
+    @Override
+    void axpy(int i, int s, double a, double[] x, int xi, int xs, int n) {
+        if (s == 1 && xs == 1) {
+            KERNELS.axpy(a, x, xi, data, i, n);
+            return;
+        }
+        for (int j = 0; j < n; j++, i += s, xi += xs)
+            data[i] += a * x[xi];
+    }
+
+    @Override
+    void mul(int i, int s, double[] x, int xi, int xs, int n) {
+        if (s == 1 && xs == 1) {
+            KERNELS.mul(x, xi, data, i, n);
+            return;
+        }
+        for (int j = 0; j < n; j++, i += s, xi += xs)
+            data[i] *= x[xi];
+    }
+
+    @Override
+    void axpyTo(int i, int s, double a, double[] x, int xi, int xs, int n) {
+        if (s == 1 && xs == 1) {
+            KERNELS.axpy(a, data, i, x, xi, n);
+            return;
+        }
+        for (int j = 0; j < n; j++, i += s, xi += xs)
+            x[xi] += a * data[i];
+    }
+
+    @Override
+    double dot(int i, int s, double[] x, int xi, int xs, int n) {
+        if (s == 1 && xs == 1)
+            return KERNELS.dot(data, i, x, xi, n);
+
+        double sum = 0;
+        for (int j = 0; j < n; j++, i += s, xi += xs)
+            sum += data[i] * x[xi];
+        return sum;
+    }
+}
@@ -0,0 +1,134 @@
+package com.tailworks.ml.neuralnet.math;
+
+import static java.lang.String.format;
+
+/**
+ * Storage backed by one double[] per row, as given to
+ * <code>Matrix(double[][])</code>. The rows are wrapped, not copied, so
+ * they can be handed out by <code>Matrix.getData()</code> and written to.
+ * <p>
+ * Each row is a DoubleArrayStorage. The strided kernels are split in one
+ * run per row they cross, and each run is done by the kernel of its row.
+ */
+final class DoubleRowsStorage extends Storage {
+
+    private final double[][] rows;
+    private final int cols;
+    private final Storage[] storages;
+
+    DoubleRowsStorage(double[][] rows) {
+        this.rows = rows;
+        cols = rows[0].length;
+        storages = new Storage[rows.length];
+        for (int y = 0; y < rows.length; y++) {
+            if (rows[y].length != cols)
+                throw new IllegalArgumentException(format("Row %d has %d elements, row 0 has %d", y, rows[y].length, cols));
+            storages[y] = new DoubleArrayStorage(rows[y]);
+        }
+    }
+
+    double[][] rows() {
+        return rows;
+    }
+
+    int cols() {
+        return cols;
+    }
+
+    @Override
+    Precision precision() {
+        return Precision.DOUBLE;
+    }
+
+    @Override
+    int length() {
+        return rows.length * cols;
+    }
+
+    @Override
+    double get(int i) {
+        return rows[i / cols][i % cols];
+    }
+
+    @Override
+    void set(int i, double value) {
+        rows[i / cols][i % cols] = value;
+    }
+
+    // Copies are stored flat, only the arrays given by the user are kept as rows
+    @Override
+    Storage allocate(int length) {
+        return new DoubleArrayStorage(new double[length]);
+    }
+
+    // A run of elements, all in one row, of a strided kernel
+    private interface Run {
+        void apply(Storage row, int i, int j, int n);
+    }
+
+    // Calls run for each row crossed by n elements from i with stride s, with
+    // the index in the row, the index of the first element of the run and
+    // the number of elements in it
+    private void split(int i, int s, int n, Run run) {
+        int j = 0;
+        while (j < n) {
+            int m = run(i, s, n - j);
+            run.apply(storages[i / cols], i % cols, j, m);
+            j += m;
+            i += m * s;
+        }
+    }
+
+    // How many of n elements from i with stride s are in the row of i
+    private int run(int i, int s, int n) {
+        int left = cols - i % cols;
+        return Math.min(n, (left + s - 1) / s);
+    }
+
+    @Override
+    void read(int i, int s, double[] dst, int di, int n) {
+        split(i, s, n, (row, ri, j, m) -> row.read(ri, s, dst, di + j, m));
+    }
+
+    @Override
+    void write(int i, int s, double[] x, int xi, int xs, int n) {
+        split(i, s, n, (row, ri, j, m) -> row.write(ri, s, x, xi + j * xs, xs, m));
+    }
+
+    @Override
+    void map(int i, int s, int n, Function fn) {
+        split(i, s, n, (row, ri, j, m) -> row.map(ri, s, m, fn));
+    }
+
+    @Override
+    void scale(int i, int s, double a, int n) {
+        split(i, s, n, (row, ri, j, m) -> row.scale(ri, s, a, m));
+    }
+
+    @Override
+    void axpy(int i, int s, double a, double[] x, int xi, int xs, int n) {
+        split(i, s, n, (row, ri, j, m) -> row.axpy(ri, s, a, x, xi + j * xs, xs, m));
+    }
+
+    @Override
+    void mul(int i, int s, double[] x, int xi, int xs, int n) {
+        split(i, s, n, (row, ri, j, m) -> row.mul(ri, s, x, xi + j * xs, xs, m));
+    }
+
+    @Override
+    void axpyTo(int i, int s, double a, double[] x, int xi, int xs, int n) {
+        split(i, s, n, (row, ri, j, m) -> row.axpyTo(ri, s, a, x, xi + j * xs, xs, m));
+    }
+
+    @Override
+    double dot(int i, int s, double[] x, int xi, int xs, int n) {
+        double sum = 0;
+        for (int j = 0; j < n; ) {
+            int m = run(i, s, n - j);
+            sum += storages[i / cols].dot(i % cols, s, x, xi + j * xs, xs, m);
+            j += m;
+            i += m * s;
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,107 @@
+package com.tailworks.ml.neuralnet.math;
+
+/**
+ * Storage backed by a float[] on the heap.
+ */
+final class FloatArrayStorage extends Storage {
+
+    private final float[] data;
+
+    FloatArrayStorage(float[] data) {
+        this.data = data;
+    }
+
+    @Override
+    Precision precision() {
+        return Precision.FLOAT;
+    }
+
+    @Override
+    int length() {
+        return data.length;
+    }
+
+    @Override
+    double get(int i) {
+        return data[i];
+    }
+
+    @Override
+    void set(int i, double value) {
+        data[i] = (float) value;
+    }
+
+    @Override
+    Storage allocate(int length) {
+        return new FloatArrayStorage(new float[length]);
+    }
+
+    @Override
+    void read(int i, int s, double[] dst, int di, int n) {
+        for (int j = 0; j < n; j++, i += s)
+            dst[di + j] = data[i];
+    }
+
+    @Override
+    void write(int i, int s, double[] x, int xi, int xs, int n) {
+        for (int j = 0; j < n; j++, i += s, xi += xs)
+            data[i] = (float) x[xi];
+    }
+
+    @Override
+    void map(int i, int s, int n, Function fn) {
+        for (int j = 0; j < n; j++, i += s)
+            data[i] = (float) fn.apply(data[i]);
+    }
+
+    @Override
+    void scale(int i, int s, double a, int n) {
+        for (int j = 0; j < n; j++, i += s)
+            data[i] *= a;
+    }
+
+    @Override
+    void axpy(int i, int s, double a, double[] x, int xi, int xs, int n) {
+        for (int j = 0; j < n; j++, i += s, xi += xs)
+            data[i] += a * x[xi];
+    }
+
+    @Override
+    void mul(int i, int s, double[] x, int xi, int xs, int n) {
+        for (int j = 0; j < n; j++, i += s, xi += xs)
+            data[i] *= x[xi];
+    }
+
+    @Override
+    void axpyTo(int i, int s, double a, double[] x, int xi, int xs, int n) {
+        for (int j = 0; j < n; j++, i += s, xi += xs)
+            x[xi] += a * data[i];
+    }
+
+    @Override
+    double dot(int i, int s, double[] x, int xi, int xs, int n) {
+        if (s == 1 && xs == 1)
+            return dot(i, x, xi, n);
+
+        double sum = 0;
+        for (int j = 0; j < n; j++, i += s, xi += xs)
+            sum += data[i] * x[xi];
+        return sum;
+    }
+
+    // Contiguous case with independent partial sums, which lets the
+    // float to double conversions and multiplications run in parallel.
+    private double dot(int i, double[] x, int xi, int n) {
+        double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int j = 0;
+        for (; j + 3 < n; j += 4, i += 4, xi += 4) {
+            s0 += data[i] * x[xi];
+            s1 += data[i + 1] * x[xi + 1];
+            s2 += data[i + 2] * x[xi + 2];
+            s3 += data[i + 3] * x[xi + 3];
+        }
+        for (; j < n; j++, i++, xi++)
+            s0 += data[i] * x[xi];
+        return (s0 + s1) + (s2 + s3);
+    }
+}
@@ -0,0 +1,105 @@
+package com.tailworks.ml.neuralnet.math;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * Storage backed by a FloatBuffer, e.g. a view of a memory-mapped file
+ * or of direct (off-heap) memory. Elements are read and written with
+ * the absolute get and put of the buffer, in its byte order.
+ */
+final class FloatBufferStorage extends Storage {
+
+    private final FloatBuffer data;
+
+    /**
+     * The elements from the position of the buffer to its limit.
+     */
+    FloatBufferStorage(FloatBuffer data) {
+        this.data = data.slice();
+    }
+
+    @Override
+    Precision precision() {
+        return Precision.FLOAT;
+    }
+
+    @Override
+    int length() {
+        return data.limit();
+    }
+
+    @Override
+    boolean isDirect() {
+        return data.isDirect();
+    }
+
+    @Override
+    double get(int i) {
+        return data.get(i);
+    }
+
+    @Override
+    void set(int i, double value) {
+        data.put(i, (float) value);
+    }
+
+    /**
+     * Allocates direct memory, in the native byte order.
+     */
+    @Override
+    Storage allocate(int length) {
+        return new FloatBufferStorage(ByteBuffer.allocateDirect(length * Float.BYTES).order(ByteOrder.nativeOrder()).asFloatBuffer());
+    }
+
+    @Override
+    void read(int i, int s, double[] dst, int di, int n) {
+        for (int j = 0; j < n; j++, i += s)
+            dst[di + j] = data.get(i);
+    }
+
+    @Override
+    void write(int i, int s, double[] x, int xi, int xs, int n) {
+        for (int j = 0; j < n; j++, i += s, xi += xs)
+            data.put(i, (float) x[xi]);
+    }
+
+    @Override
+    void map(int i, int s, int n, Function fn) {
+        for (int j = 0; j < n; j++, i += s)
+            data.put(i, (float) fn.apply(data.get(i)));
+    }
+
+    @Override
+    void scale(int i, int s, double a, int n) {
+        for (int j = 0; j < n; j++, i += s)
+            data.put(i, (float) (data.get(i) * a));
+    }
+
+    @Override
+    void axpy(int i, int s, double a, double[] x, int xi, int xs, int n) {
+        for (int j = 0; j < n; j++, i += s, xi += xs)
+            data.put(i, (float) (data.get(i) + a * x[xi]));
+    }
+
+    @Override
+    void mul(int i, int s, double[] x, int xi, int xs, int n) {
+        for (int j = 0; j < n; j++, i += s, xi += xs)
+            data.put(i, (float) (data.get(i) * x[xi]));
+    }
+
+    @Override
+    void axpyTo(int i, int s, double a, double[] x, int xi, int xs, int n) {
+        for (int j = 0; j < n; j++, i += s, xi += xs)
+            x[xi] += a * data.get(i);
+    }
+
+    @Override
+    double dot(int i, int s, double[] x, int xi, int xs, int n) {
+        double sum = 0;
+        for (int j = 0; j < n; j++, i += s, xi += xs)
+            sum += data.get(i) * x[xi];
+        return sum;
+    }
+}
@@ -0,0 +1,272 @@
+package com.tailworks.ml.neuralnet.math;
+
+import static java.lang.Math.min;
+import static java.lang.String.format;
+
+/**
+ * General matrix multiply: C = alpha * A·B + beta * C.
+ * <p>
+ * Transposed operands (Aᵀ·B, A·Bᵀ) need no special entry points, a
+ * transposed view of a matrix is just a different pair of strides and
+ * is handled by the packing below.
+ * <p>
+ * Larger products are computed the way optimized BLAS libraries do it:
+ * <ul>
+ * <li>B is split into KC x NC blocks that are copied ("packed") into a
+ * contiguous buffer, NR columns at a time, sized to stay in the L2/L3 cache.</li>
+ * <li>A is split into MC x KC blocks packed MR rows at a time, sized to stay
+ * in the L2 cache while it is multiplied with the B block.</li>
+ * <li>A micro-kernel computes one MR x NR tile of C, keeping the tile in
+ * local variables (registers) while streaming through the packed panels.</li>
+ * </ul>
+ * Small products, and in particular the vector-matrix products of single
+ * sample evaluation, are computed directly without packing.
+ */
+final class Gemm {
+
+    private static final ArrayKernels KERNELS = ArrayKernels.INSTANCE;
+
+    // Register tile, the size computed by ArrayKernels.gemmTile
+    private static final int MR = 4;
+    private static final int NR = 4;
+
+    // Cache blocks
+    private static final int KC = 256;
+    private static final int MC = 64;
+    private static final int NC = 1024;
+
+    // Below this many multiply-adds packing does not pay off
+    private static final long BLOCKED_MIN_WORK = 32 * 32 * 32;
+
+    private Gemm() {
+    }
+
+    static void gemm(double alpha, Matrix a, Matrix b, double beta, Matrix c) {
+        int m = a.rows(), k = a.cols(), n = b.cols();
+        if (b.rows() != k || c.rows() != m || c.cols() != n)
+            throw new IllegalArgumentException(format("Can not multiply a %d x %d matrix with a %d x %d matrix into a %d x %d matrix", m, k, b.rows(), n, c.rows(), c.cols()));
+
+        if (beta == 0)
+            c.map(x -> 0);      // Also clears any NaN in C, as in BLAS
+        else if (beta != 1)
+            c.mul(beta);
+
+        if (alpha == 0 || m == 0 || n == 0 || k == 0)
+            return;
+
+        // Large products are split by rows of C, or by columns when C is wide
+        long work = (long) m * n * k;
+        if (m >= n && Parallelism.worthSplitting(work, m))
+            Parallelism.split(m, (from, to) -> product(alpha, a.subMatrix(from, 0, to - from, k), b, c.subMatrix(from, 0, to - from, n)));
+        else if (Parallelism.worthSplitting(work, n))
+            Parallelism.split(n, (from, to) -> product(alpha, a, b.subMatrix(0, from, k, to - from), c.subMatrix(0, from, m, to - from)));
+        else
+            product(alpha, a, b, c);
+    }
+
+    /**
+     * y += alpha * x·B for a row vector x, with x and y given as contiguous arrays.
+     */
+    static void vecMat(double alpha, double[] x, Matrix b, double[] y) {
+        vecMat(alpha, x, b.storage(), b.index(0, 0), b.rowStride(), b.colStride(), b.rows(), b.cols(), y);
+    }
+
+    /**
+     * y += alpha * A·x for a column vector x, with x and y given as contiguous
+     * arrays. Same as the row vector product x·Aᵀ, without creating the view.
+     */
+    static void matVec(double alpha, Matrix a, double[] x, double[] y) {
+        vecMat(alpha, x, a.storage(), a.index(0, 0), a.colStride(), a.rowStride(), a.cols(), a.rows(), y);
+    }
+
+    // Large products are split by elements of y
+    private static void vecMat(double alpha, double[] x, Storage b, int bi, int bRs, int bCs, int k, int n, double[] y) {
+        if (Parallelism.worthSplitting((long) k * n, n))
+            Parallelism.split(n, (from, to) -> vecMat(alpha, x, 0, 1, b, bi + from * bCs, bRs, bCs, k, to - from, y, from, 1));
+        else
+            vecMat(alpha, x, 0, 1, b, bi, bRs, bCs, k, n, y, 0, 1);
+    }
+
+    /**
+     * y += alpha * x·B for a sparse row vector x given as the indices and
+     * values of its non-zero elements. Only those rows of B are read.
+     */
+    static void sparseVecMat(double alpha, int[] indices, double[] values, Matrix b, double[] y) {
+        int n = b.cols();
+        if (Parallelism.worthSplitting((long) indices.length * n, n))
+            Parallelism.split(n, (from, to) -> sparseVecMat(alpha, indices, values, b, from, to, y));
+        else
+            sparseVecMat(alpha, indices, values, b, 0, n, y);
+    }
+
+    // Columns [from, to) of the sparse product
+    private static void sparseVecMat(double alpha, int[] indices, double[] values, Matrix b, int from, int to, double[] y) {
+        Storage storage = b.storage();
+        for (int p = 0; p < indices.length; p++)
+            storage.axpyTo(b.index(indices[p], from), b.colStride(), alpha * values[p], y, from, 1, to - from);
+    }
+
+    // C += alpha * A·B on the calling thread
+    private static void product(double alpha, Matrix a, Matrix b, Matrix c) {
+        int m = a.rows(), k = a.cols(), n = b.cols();
+        if (m >= MR && n >= NR && k >= MR && (long) m * n * k >= BLOCKED_MIN_WORK)
+            blocked(alpha, a, b, c);
+        else
+            byRows(alpha, a, b, c);
+    }
+
+    // -------------------------------------------------------------------------
+    // --- Small products --------------------------------------------------------
+    // -------------------------------------------------------------------------
+
+    // Small products are computed one row of A (and C) at a time. Rows not
+    // stored in a double[] are copied to a row buffer (and for C back again).
+    private static void byRows(double alpha, Matrix a, Matrix b, Matrix c) {
+        int k = a.cols(), n = c.cols();
+        Storage aStorage = a.storage(), bStorage = b.storage(), cStorage = c.storage();
+        double[] aArray = aStorage.array(), cArray = cStorage.array();
+        double[] aRow = aArray == null ? new double[k] : null;
+        double[] cRow = cArray == null ? new double[n] : null;
+        int bi = b.index(0, 0), bRs = b.rowStride(), bCs = b.colStride();
+
+        for (int i = 0; i < a.rows(); i++) {
+            double[] x = aArray;
+            int xi = a.index(i, 0), xs = a.colStride();
+            if (aArray == null) {
+                aStorage.read(xi, xs, aRow, 0, k);
+                x = aRow;
+                xi = 0;
+                xs = 1;
+            }
+
+            if (cArray != null) {
+                vecMat(alpha, x, xi, xs, bStorage, bi, bRs, bCs, k, n, cArray, c.index(i, 0), c.colStride());
+            } else {
+                cStorage.read(c.index(i, 0), c.colStride(), cRow, 0, n);
+                vecMat(alpha, x, xi, xs, bStorage, bi, bRs, bCs, k, n, cRow, 0, 1);
+                cStorage.write(c.index(i, 0), c.colStride(), cRow, 0, 1, n);
+            }
+        }
+    }
+
+    /**
+     * y += alpha * x·B where B is a k x n matrix and x and y are vectors,
+     * all given as storage, start index and strides.
+     */
+    private static void vecMat(double alpha, double[] x, int xi, int xs,
+                               Storage b, int bi, int bRs, int bCs, int k, int n,
+                               double[] y, int yi, int ys) {
+        if (bCs != 1 && bRs == 1)
+            dotColumns(alpha, x, xi, xs, b, bi, bRs, bCs, k, n, y, yi, ys);
+        else
+            axpyRows(alpha, x, xi, xs, b, bi, bRs, bCs, k, n, y, yi, ys);
+    }
+
+    /**
+     * y += alpha * x(p) * B(p, :) for each p, i.e. y is built up from scaled
+     * rows of B. Walks B in storage order when it is row-major and skips the
+     * work for zeros in x (common after ReLU and for one-hot inputs).
+     */
+    private static void axpyRows(double alpha, double[] x, int xi, int xs,
+                                 Storage b, int bi, int bRs, int bCs, int k, int n,
+                                 double[] y, int yi, int ys) {
+        for (int p = 0; p < k; p++, xi += xs, bi += bRs) {
+            double s = alpha * x[xi];
+            if (s == 0) continue;
+            b.axpyTo(bi, bCs, s, y, yi, ys, n);
+        }
+    }
+
+    /**
+     * y(j) += alpha * x·B(:, j) for each j, used when the columns of B are
+     * contiguous, i.e. when B is the transpose of a row-major matrix.
+     */
+    private static void dotColumns(double alpha, double[] x, int xi, int xs,
+                                   Storage b, int bi, int bRs, int bCs, int k, int n,
+                                   double[] y, int yi, int ys) {
+        for (int j = 0; j < n; j++, bi += bCs, yi += ys)
+            y[yi] += alpha * b.dot(bi, bRs, x, xi, xs, k);
+    }
+
+    // -------------------------------------------------------------------------
+    // --- Cache blocked product -------------------------------------------------
+    // -------------------------------------------------------------------------
+
+    private static void blocked(double alpha, Matrix a, Matrix b, Matrix c) {
+        int m = a.rows(), k = a.cols(), n = b.cols();
+
+        double[] aPack = new double[roundUp(min(m, MC), MR) * min(k, KC)];
+        double[] bPack = new double[roundUp(min(n, NC), NR) * min(k, KC)];
+        double[] tile = new double[MR * NR];
+
+        for (int jc = 0; jc < n; jc += NC) {
+            int nc = min(NC, n - jc);
+            for (int pc = 0; pc < k; pc += KC) {
+                int kc = min(KC, k - pc);
+                packB(b, pc, jc, kc, nc, bPack);
+                for (int ic = 0; ic < m; ic += MC) {
+                    int mc = min(MC, m - ic);
+                    packA(alpha, a, ic, pc, mc, kc, aPack);
+                    for (int jr = 0; jr < nc; jr += NR) {
+                        for (int ir = 0; ir < mc; ir += MR) {
+                            KERNELS.gemmTile(kc, aPack, ir * kc, bPack, jr * kc, tile);
+                            addTile(tile, c, ic + ir, jc + jr, min(MR, mc - ir), min(NR, nc - jr));
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Packs the mc x kc block of A at (ic, pc), scaled by alpha, as panels of
+     * MR rows. Within a panel the MR elements of each column are adjacent.
+     * Rows beyond the edge of A are zero padded.
+     */
+    private static void packA(double alpha, Matrix a, int ic, int pc, int mc, int kc, double[] pack) {
+        Storage storage = a.storage();
+        int rs = a.rowStride();
+        int dst = 0;
+        for (int ir = 0; ir < mc; ir += MR) {
+            int rowsInPanel = min(MR, mc - ir);
+            for (int p = 0; p < kc; p++) {
+                storage.read(a.index(ic + ir, pc + p), rs, pack, dst, rowsInPanel);
+                int r = 0;
+                for (; r < rowsInPanel; r++)
+                    pack[dst++] *= alpha;
+                for (; r < MR; r++)
+                    pack[dst++] = 0;
+            }
+        }
+    }
+
+    /**
+     * Packs the kc x nc block of B at (pc, jc) as panels of NR columns.
+     * Within a panel the NR elements of each row are adjacent.
+     * Columns beyond the edge of B are zero padded.
+     */
+    private static void packB(Matrix b, int pc, int jc, int kc, int nc, double[] pack) {
+        Storage storage = b.storage();
+        int cs = b.colStride();
+        int dst = 0;
+        for (int jr = 0; jr < nc; jr += NR) {
+            int colsInPanel = min(NR, nc - jr);
+            for (int p = 0; p < kc; p++) {
+                storage.read(b.index(pc + p, jc + jr), cs, pack, dst, colsInPanel);
+                dst += colsInPanel;
+                for (int col = colsInPanel; col < NR; col++)
+                    pack[dst++] = 0;
+            }
+        }
+    }
+
+    private static void addTile(double[] tile, Matrix c, int row, int col, int rows, int cols) {
+        Storage storage = c.storage();
+        for (int r = 0; r < rows; r++)
+            storage.axpy(c.index(row + r, col), c.colStride(), 1, tile, r * NR, 1, cols);
+    }
+
+    private static int roundUp(int value, int multiple) {
+        return (value + multiple - 1) / multiple * multiple;
+    }
+}
@@ -1,41 +1,286 @@
 package com.tailworks.ml.neuralnet.math;
 
 
+import java.nio.Buffer;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
 import java.util.Arrays;
 
 import static java.lang.String.format;
-import static java.util.Arrays.stream;
 
 /**
  * Careful: not immutable. Most matrix operations are made on same object.
+ * <p>
+ * The elements are stored row-major in one flat storage rather than as one
+ * array per row. Element (row, col) lives at
+ * <code>offset + row * rowStride + col * colStride</code>, which makes it
+ * possible to hand out views (a row, the transpose or a sub block) sharing
+ * the storage of the matrix they were taken from. Writes through a view are
+ * seen by the original and vice versa.
+ * <p>
+ * The storage is a double[] unless another Precision is asked for, or
+ * the double[][] rows of a matrix made from them, which are kept as they
+ * are so that <code>getData()</code> can hand them out.
+ * Matrices of different precision can be freely combined, values are
+ * always computed in double and rounded when stored.
  */
 public class Matrix {
 
-    private double[][] data;
-    private int rows, cols;
+    // this[i + j * s] op= x[xi + j * xs], the row kernels of the element-wise operations
+    private interface Combiner {
+        void apply(Storage dst, int i, int s, double[] x, int xi, int xs, int n);
+    }
 
+    private static final Combiner ADD = (dst, i, s, x, xi, xs, n) -> dst.axpy(i, s, 1, x, xi, xs, n);
+    private static final Combiner SUB = (dst, i, s, x, xi, xs, n) -> dst.axpy(i, s, -1, x, xi, xs, n);
+    private static final Combiner MUL = Storage::mul;
+    private static final Combiner ASSIGN = Storage::write;
+
+    private final Storage storage;
+    private final int offset;
+    private final int rows, cols;
+    private final int rowStride, colStride;
+
+    /**
+     * Wraps (without copying) <code>data</code>, one array per row, all of
+     * the same length. Writes to the arrays are seen by the matrix and
+     * vice versa, see <code>getData()</code>.
+     */
     public Matrix(double[][] data) {
-        this.data = data;
-        rows = data.length;
-        cols = data[0].length;
+        this(new DoubleRowsStorage(data), data.length, data[0].length);
     }
 
     public Matrix(int rows, int cols) {
-        this(new double[rows][cols]);
+        this(rows, cols, Precision.DOUBLE);
+    }
+
+    public Matrix(int rows, int cols, Precision precision) {
+        this(Storage.allocate(rows * cols, precision), rows, cols);
+    }
+
+    /**
+     * Wraps (without copying) a flat array holding <code>rows</code> rows
+     * of <code>cols</code> elements each, one row after the other.
+     */
+    public Matrix(int rows, int cols, double[] data) {
+        this(new DoubleArrayStorage(data), rows, cols);
+    }
+
+    /**
+     * Wraps (without copying) a flat array holding <code>rows</code> rows
+     * of <code>cols</code> elements each, one row after the other.
+     */
+    public Matrix(int rows, int cols, float[] data) {
+        this(new FloatArrayStorage(data), rows, cols);
+    }
+
+    /**
+     * Wraps (without copying) a buffer holding <code>rows</code> rows of
+     * <code>cols</code> elements each from its position, e.g. a view of a
+     * memory-mapped file. Copies of the matrix are made in direct memory.
+     */
+    public Matrix(int rows, int cols, DoubleBuffer data) {
+        this(new DoubleBufferStorage(data), rows, cols);
+    }
+
+    /**
+     * Wraps (without copying) a buffer holding <code>rows</code> rows of
+     * <code>cols</code> elements each from its position, e.g. a view of a
+     * memory-mapped file. Copies of the matrix are made in direct memory.
+     */
+    public Matrix(int rows, int cols, FloatBuffer data) {
+        this(new FloatBufferStorage(data), rows, cols);
+    }
+
+    /**
+     * Wraps (without copying) buffers holding together <code>rows</code>
+     * rows of <code>cols</code> elements each, one buffer after the other,
+     * e.g. consecutive mappings of a file too large for a single buffer.
+     * All buffers but the last must hold the same power of two elements.
+     */
+    public Matrix(int rows, int cols, DoubleBuffer[] chunks) {
+        this(chunked(chunks, Precision.DOUBLE), rows, cols);
+    }
+
+    /**
+     * Same as <code>Matrix(int, int, DoubleBuffer[])</code> for floats.
+     */
+    public Matrix(int rows, int cols, FloatBuffer[] chunks) {
+        this(chunked(chunks, Precision.FLOAT), rows, cols);
+    }
+
+    /**
+     * A matrix of zeros in direct (off-heap) memory, which the garbage
+     * collector never scans or moves, e.g. for the weights of a huge layer.
+     * It can be larger than the 2 GB a single direct buffer holds. Copies
+     * of it, and matrices made with <code>like()</code>, are off-heap too.
+     */
+    public static Matrix offHeap(int rows, int cols, Precision precision) {
+        return new Matrix(new ChunkedStorage(Math.multiplyExact(rows, cols), precision), rows, cols);
+    }
+
+    Matrix(Storage storage, int rows, int cols) {
+        this(storage, 0, rows, cols, cols, 1);
+        if (storage.length() < rows * cols)
+            throw new IllegalArgumentException(format("Data of length %d can not hold a %d x %d matrix", storage.length(), rows, cols));
+    }
+
+    private static Storage chunked(Buffer[] chunks, Precision precision) {
+        Storage[] storages = new Storage[chunks.length];
+        for (int c = 0; c < chunks.length; c++)
+            storages[c] = precision == Precision.FLOAT
+                    ? new FloatBufferStorage((FloatBuffer) chunks[c])
+                    : new DoubleBufferStorage((DoubleBuffer) chunks[c]);
+        if (storages.length == 1)
+            return storages[0];
+
+        int size = storages[0].length();
+        if (Integer.bitCount(size) != 1)
+            throw new IllegalArgumentException(format("Chunks must hold a power of two elements, not %d", size));
+        return new ChunkedStorage(storages, precision, Integer.numberOfTrailingZeros(size));
+    }
+
+    private Matrix(Storage storage, int offset, int rows, int cols, int rowStride, int colStride) {
+        this.storage = storage;
+        this.offset = offset;
+        this.rows = rows;
+        this.cols = cols;
+        this.rowStride = rowStride;
+        this.colStride = colStride;
     }
 
     public Vec multiply(Vec v) {
-        double[] out = new double[rows];
-        for (int y = 0; y < rows; y++)
-            out[y] = new Vec(data[y]).dot(v);
+        return multiplyInto(v, new Vec(rows));
+    }
+
+    /**
+     * Stores the product of this and the column vector <code>v</code> in
+     * <code>dst</code>, which must not be <code>v</code>, and returns
+     * <code>dst</code>. Does not allocate.
+     */
+    public Vec multiplyInto(Vec v, Vec dst) {
+        assertCorrectVecDimension(v.dimension(), cols);
+        assertCorrectVecDimension(dst.dimension(), rows);
+
+        Arrays.fill(dst.getData(), 0);
+        Gemm.matVec(1, this, v.getData(), dst.getData());
+
+        return dst;
+    }
+
+    /**
+     * The matrix product of this (n x m) and <code>other</code> (m x p)
+     * as a new n x p matrix, stored with the least precise of the two.
+     */
+    public Matrix multiply(Matrix other) {
+        Matrix result = new Matrix(rows, other.cols, precision().min(other.precision()));
+        Gemm.gemm(1, this, other, 0, result);
+        return result;
+    }
 
-        return new Vec(out);
+    /**
+     * The matrix product of the transpose of this (m x n) and
+     * <code>other</code> (m x p) as a new n x p matrix.
+     */
+    public Matrix transposeMultiply(Matrix other) {
+        return transpose().multiply(other);
+    }
+
+    /**
+     * The matrix product of this (n x m) and the transpose of
+     * <code>other</code> (p x m) as a new n x p matrix.
+     */
+    public Matrix multiplyTransposed(Matrix other) {
+        return multiply(other.transpose());
+    }
+
+    /**
+     * Adds the matrix product of <code>a</code> (n x m) and <code>b</code>
+     * (m x p) to this n x p matrix. Nothing is allocated for the product,
+     * it is accumulated directly into this.
+     */
+    public Matrix addProduct(Matrix a, Matrix b) {
+        Gemm.gemm(1, a, b, 1, this);
+        return this;
+    }
+
+    /**
+     * Adds the outer product of <code>u</code> and <code>v</code> to this
+     * matrix, i.e. element (i, j) is incremented by u(i) * v(j). Same as
+     * <code>add(v.outerProduct(u))</code> without creating the product.
+     * Rows where u is zero are skipped.
+     */
+    public Matrix addOuterProduct(Vec u, Vec v) {
+        Gemm.gemm(1, u.asRow().transpose(), v.asRow(), 1, this);
+        return this;
+    }
+
+    /**
+     * Adds the outer product of the sparse vector <code>u</code> and
+     * <code>v</code> to this matrix. Only the rows where u is non-zero
+     * are touched.
+     */
+    public Matrix addOuterProduct(SparseVec u, Vec v) {
+        return addOuterProduct(1, u, v);
+    }
+
+    /**
+     * Adds <code>alpha</code> times the outer product of the sparse vector
+     * <code>u</code> and <code>v</code> to this matrix.
+     */
+    public Matrix addOuterProduct(double alpha, SparseVec u, Vec v) {
+        if (rows != u.dimension() || cols != v.dimension())
+            throw new IllegalArgumentException(format("Matrix of different dim: Input is %d x %d, Vec is %d x %d", rows, cols, u.dimension(), v.dimension()));
+
+        int[] indices = u.getIndices();
+        double[] values = u.getValues();
+        for (int p = 0; p < indices.length; p++)
+            storage.axpy(index(indices[p], 0), colStride, alpha * values[p], v.getData(), 0, 1, cols);
+
+        return this;
+    }
+
+    /**
+     * Adds <code>alpha * v</code> to row <code>row</code>.
+     */
+    public Matrix addToRow(int row, double alpha, Vec v) {
+        assertCorrectVecDimension(v.dimension(), cols);
+        assertInRange(row, 0, 1, cols);
+
+        storage.axpy(index(row, 0), colStride, alpha, v.getData(), 0, 1, cols);
+
+        return this;
     }
 
     public Matrix map(Function fn) {
-        for (int y = 0; y < rows; y++)
-            for (int x = 0; x < cols; x++)
-                data[y][x] = fn.apply(data[y][x]);
+        if (isContiguous()) {
+            storage.map(offset, 1, rows * cols, fn);
+        } else {
+            for (int y = 0; y < rows; y++)
+                storage.map(index(y, 0), colStride, cols, fn);
+        }
+
+        return this;
+    }
+
+    /**
+     * Same as <code>map(Function)</code> for a function working on arrays.
+     * When the elements are a double[] without gaps fn is called once for
+     * all of them, otherwise once per row through a row buffer.
+     */
+    public Matrix map(ArrayFunction fn) {
+        double[] array = storage.array();
+        if (array != null && offset == 0 && isContiguous()) {
+            fn.apply(array, array, rows * cols);
+            return this;
+        }
+
+        double[] row = new double[cols];
+        for (int y = 0; y < rows; y++) {
+            storage.read(index(y, 0), colStride, row, 0, cols);
+            fn.apply(row, row, cols);
+            storage.write(index(y, 0), colStride, row, 0, 1, cols);
+        }
 
         return this;
     }
@@ -48,66 +293,257 @@ public class Matrix {
         return cols;
     }
 
+    public Precision precision() {
+        return storage.precision();
+    }
+
+    public double get(int row, int col) {
+        return storage.get(index(row, col));
+    }
+
+    public void set(int row, int col, double value) {
+        storage.set(index(row, col), value);
+    }
+
     public Matrix mul(double s) {
-        return map(value -> s * value);
+        if (isContiguous()) {
+            storage.scale(offset, 1, s, rows * cols);
+        } else {
+            for (int y = 0; y < rows; y++)
+                storage.scale(index(y, 0), colStride, s, cols);
+        }
+
+        return this;
     }
 
+    /**
+     * The elements, one array per row. For a matrix made from a double[][]
+     * these are the arrays it is stored in and changing them changes the
+     * matrix. Other matrices (copies of it too), and views, return a copy.
+     */
     public double[][] getData() {
-        return data;
+        if (storage instanceof DoubleRowsStorage && offset == 0 && isContiguous()
+                && ((DoubleRowsStorage) storage).cols() == cols && storage.length() == rows * cols)
+            return ((DoubleRowsStorage) storage).rows();
+
+        double[][] result = new double[rows][cols];
+        for (int y = 0; y < rows; y++)
+            storage.read(index(y, 0), colStride, result[y], 0, cols);
+
+        return result;
     }
 
     public Matrix add(Matrix other) {
-        assertCorrectDimension(other);
+        return combine(other, ADD);
+    }
 
-        for (int y = 0; y < rows; y++)
-            for (int x = 0; x < cols; x++)
-                data[y][x] += other.data[y][x];
+    public Matrix sub(Matrix other) {
+        return combine(other, SUB);
+    }
 
-        return this;
+    /**
+     * this += alpha * other, in place.
+     */
+    public Matrix add(double alpha, Matrix other) {
+        return combine(other, (dst, i, s, x, xi, xs, n) -> dst.axpy(i, s, alpha, x, xi, xs, n));
     }
 
-    public Matrix sub(Matrix other) {
-        assertCorrectDimension(other);
+    public Matrix elementProduct(Matrix other) {
+        return combine(other, MUL);
+    }
+
+    /**
+     * Adds <code>v</code> to every row.
+     */
+    public Matrix addRowVector(Vec v) {
+        assertCorrectVecDimension(v.dimension(), cols);
 
+        double[] vData = v.getData();
         for (int y = 0; y < rows; y++)
-            for (int x = 0; x < cols; x++)
-                data[y][x] -= other.data[y][x];
+            storage.axpy(index(y, 0), colStride, 1, vData, 0, 1, cols);
 
         return this;
     }
 
-    public Matrix fillFrom(Matrix other) {
-        assertCorrectDimension(other);
-
+    /**
+     * The sum of all rows, i.e. a vector holding the sum of each column.
+     */
+    public Vec columnSums() {
+        double[] result = new double[cols];
         for (int y = 0; y < rows; y++)
-            if (cols >= 0) System.arraycopy(other.data[y], 0, data[y], 0, cols);
+            storage.axpyTo(index(y, 0), colStride, 1, result, 0, 1, cols);
+
+        return new Vec(result);
+    }
+
+    public Vec getRow(int row) {
+        double[] result = new double[cols];
+        storage.read(index(row, 0), colStride, result, 0, cols);
+
+        return new Vec(result);
+    }
+
+    public Matrix setRow(int row, Vec v) {
+        assertCorrectVecDimension(v.dimension(), cols);
+
+        storage.write(index(row, 0), colStride, v.getData(), 0, 1, cols);
 
         return this;
     }
 
+    public Matrix fillFrom(Matrix other) {
+        return combine(other, ASSIGN);
+    }
+
     public double average() {
-        return stream(data).flatMapToDouble(Arrays::stream).average().getAsDouble();
+        double[] row = new double[cols];
+        double sum = 0;
+        for (int y = 0; y < rows; y++) {
+            storage.read(index(y, 0), colStride, row, 0, cols);
+            for (double a : row)
+                sum += a;
+        }
+
+        return sum / (rows * cols);
     }
 
     public double variance() {
         double avg = average();
-        return stream(data).flatMapToDouble(Arrays::stream).map(a -> (a - avg) * (a - avg)).average().getAsDouble();
+        double[] row = new double[cols];
+        double sum = 0;
+        for (int y = 0; y < rows; y++) {
+            storage.read(index(y, 0), colStride, row, 0, cols);
+            for (double a : row)
+                sum += (a - avg) * (a - avg);
+        }
+
+        return sum / (rows * cols);
     }
 
     // -------------------------------------------------------------------------
+    // --- Views ---------------------------------------------------------------
+    // -------------------------------------------------------------------------
+
+    /**
+     * A 1 x cols view of a single row.
+     */
+    public Matrix row(int row) {
+        assertInRange(row, 0, 1, cols);
+        return new Matrix(storage, index(row, 0), 1, cols, rowStride, colStride);
+    }
+
+    /**
+     * A cols x rows view where element (x, y) is element (y, x) of this matrix.
+     */
+    public Matrix transpose() {
+        return new Matrix(storage, offset, cols, rows, colStride, rowStride);
+    }
+
+    /**
+     * A <code>rows</code> x <code>cols</code> view of the block starting at
+     * (<code>row</code>, <code>col</code>).
+     */
+    public Matrix subMatrix(int row, int col, int rows, int cols) {
+        assertInRange(row, col, rows, cols);
+        return new Matrix(storage, index(row, col), rows, cols, rowStride, colStride);
+    }
+
+    /**
+     * True if the elements are laid out row after row without gaps,
+     * i.e. as in a freshly created matrix.
+     */
+    public boolean isContiguous() {
+        return colStride == 1 && (rowStride == cols || rows == 1);
+    }
+
+    // -------------------------------------------------------------------------
+
+    // Raw access to the storage, used by Gemm
+    Storage storage() {
+        return storage;
+    }
+
+    int index(int row, int col) {
+        return offset + row * rowStride + col * colStride;
+    }
+
+    int rowStride() {
+        return rowStride;
+    }
+
+    int colStride() {
+        return colStride;
+    }
+
+    /**
+     * Applies <code>kernel</code> to the elements of this and the corresponding
+     * elements of <code>other</code>. The elements of other are used in place
+     * when they are stored in a double[], otherwise they are copied into a
+     * row buffer first.
+     */
+    private Matrix combine(Matrix other, Combiner kernel) {
+        assertCorrectDimension(other);
+
+        double[] x = other.storage.array();
+        if (x != null && isContiguous() && other.isContiguous()) {
+            kernel.apply(storage, offset, 1, x, other.offset, 1, rows * cols);
+            return this;
+        }
+
+        double[] row = x == null ? new double[cols] : null;
+        for (int y = 0; y < rows; y++) {
+            if (x != null) {
+                kernel.apply(storage, index(y, 0), colStride, x, other.index(y, 0), other.colStride, cols);
+            } else {
+                other.storage.read(other.index(y, 0), other.colStride, row, 0, cols);
+                kernel.apply(storage, index(y, 0), colStride, row, 0, 1, cols);
+            }
+        }
+
+        return this;
+    }
 
     private void assertCorrectDimension(Matrix other) {
         if (rows != other.rows || cols != other.cols)
             throw new IllegalArgumentException(format("Matrix of different dim: Input is %d x %d, Vec is %d x %d", rows, cols, other.rows, other.cols));
     }
 
+    private static void assertCorrectVecDimension(int vecDim, int expected) {
+        if (vecDim != expected)
+            throw new IllegalArgumentException(format("Different dimensions: Input is %d, Vec is %d", vecDim, expected));
+    }
+
+    private void assertInRange(int row, int col, int rows, int cols) {
+        if (row < 0 || col < 0 || rows < 0 || cols < 0 || row + rows > this.rows || col + cols > this.cols)
+            throw new IndexOutOfBoundsException(format("Block %d x %d at (%d, %d) is outside of %d x %d matrix", rows, cols, row, col, this.rows, this.cols));
+    }
+
+    /**
+     * A new matrix of zeros with the shape and precision of this one, in
+     * the same kind of memory: off-heap if this one is.
+     */
+    public Matrix like() {
+        return new Matrix(storage.allocate(rows * cols), rows, cols);
+    }
+
+    /**
+     * True if the elements are in direct (off-heap) memory, as for
+     * <code>offHeap</code> matrices or views of a memory-mapped file.
+     */
+    public boolean isOffHeap() {
+        return storage.isDirect();
+    }
+
     public Matrix copy() {
-        Matrix m = new Matrix(rows, cols);
-        for (int y = 0; y < rows; y++)
-            if (cols >= 0) System.arraycopy(data[y], 0, m.data[y], 0, cols);
+        return new Matrix(storage.allocate(rows * cols), rows, cols).fillFrom(this);
+    }
 
-        return m;
+    /**
+     * A copy stored with the given precision, e.g. to convert weights
+     * between double and float.
+     */
+    public Matrix copy(Precision precision) {
+        return new Matrix(rows, cols, precision).fillFrom(this);
     }
 
 }
-
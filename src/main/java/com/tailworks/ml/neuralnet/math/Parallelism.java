@@ -0,0 +1,104 @@
+package com.tailworks.ml.neuralnet.math;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Intra-operation parallelism. Matrix products with at least
+ * <code>threshold</code> multiply-adds are split in parts computed by the
+ * threads of a shared ForkJoinPool: vector-matrix products (the forward
+ * pass and the error propagation of a single sample) by output element,
+ * matrix products by rows or columns of the result (batches and weight
+ * gradients). Each part writes its own elements of the result.
+ * <p>
+ * Smaller products run on the calling thread, since handing work to other
+ * threads costs a few microseconds. The default threshold, about a million
+ * multiply-adds, corresponds to a 1024 x 1024 layer evaluated for a single
+ * sample. Setting a threshold of Long.MAX_VALUE turns this off.
+ */
+public final class Parallelism {
+
+    // Parts are a multiple of this many elements, so that two threads
+    // do not write to the same cache line (8 doubles)
+    static final int ALIGN = 8;
+
+    private static volatile ForkJoinPool pool = ForkJoinPool.commonPool();
+    private static volatile long threshold = 1 << 20;
+
+    private Parallelism() {
+    }
+
+    public static ForkJoinPool getPool() {
+        return pool;
+    }
+
+    public static void setPool(ForkJoinPool pool) {
+        Parallelism.pool = pool;
+    }
+
+    public static long getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * @param threshold The number of multiply-adds from which a product is split
+     */
+    public static void setThreshold(long threshold) {
+        Parallelism.threshold = threshold;
+    }
+
+    // -------------------------------------------------------------------------
+
+    // The part [from, to) of a range
+    interface Part {
+        void compute(int from, int to);
+    }
+
+    /**
+     * True if <code>work</code> multiply-adds, over a range of
+     * <code>n</code> elements to split, are worth splitting.
+     */
+    static boolean worthSplitting(long work, int n) {
+        return work >= threshold && n >= 2 * ALIGN && pool.getParallelism() > 1;
+    }
+
+    /**
+     * Computes the range [0, n) split in about as many parts as there are
+     * threads in the pool and returns when all parts are done.
+     */
+    static void split(int n, Part part) {
+        ForkJoinPool pool = Parallelism.pool;
+        int parts = Math.max(1, Math.min(pool.getParallelism(), n / ALIGN));
+        int grain = roundUp((n + parts - 1) / parts, ALIGN);
+        pool.invoke(new PartTask(part, 0, n, grain));
+    }
+
+    private static int roundUp(int value, int multiple) {
+        return (value + multiple - 1) / multiple * multiple;
+    }
+
+    // Halves the range until no larger than grain
+    private static class PartTask extends RecursiveAction {
+
+        private final Part part;
+        private final int from, to, grain;
+
+        PartTask(Part part, int from, int to, int grain) {
+            this.part = part;
+            this.from = from;
+            this.to = to;
+            this.grain = grain;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= grain) {
+                part.compute(from, to);
+                return;
+            }
+
+            int mid = Math.min(to, from + roundUp((to - from) / 2, grain));
+            invokeAll(new PartTask(part, from, mid, grain), new PartTask(part, mid, to, grain));
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package com.tailworks.ml.neuralnet.math;
+
+/**
+ * The number format used to store the elements of a Matrix.
+ * <p>
+ * FLOAT halves the memory, and the memory bandwidth, needed for a matrix.
+ * Arithmetic is still done in double, only the stored values are rounded
+ * to the nearest float.
+ */
+public enum Precision {
+    DOUBLE,
+    FLOAT;
+
+    /**
+     * The least precise of this and <code>other</code>.
+     */
+    public Precision min(Precision other) {
+        return this == FLOAT || other == FLOAT ? FLOAT : DOUBLE;
+    }
+}
@@ -0,0 +1,66 @@
+package com.tailworks.ml.neuralnet.math;
+
+/**
+ * The kernels as plain loops. Used when the Vector API is not available.
+ */
+class ScalarKernels extends ArrayKernels {
+
+    @Override
+    double dot(double[] x, int xi, double[] y, int yi, int n) {
+        double sum = 0;
+        for (int j = 0; j < n; j++)
+            sum += x[xi + j] * y[yi + j];
+        return sum;
+    }
+
+    @Override
+    void axpy(double a, double[] x, int xi, double[] y, int yi, int n) {
+        for (int j = 0; j < n; j++)
+            y[yi + j] += a * x[xi + j];
+    }
+
+    @Override
+    void mul(double[] x, int xi, double[] y, int yi, int n) {
+        for (int j = 0; j < n; j++)
+            y[yi + j] *= x[xi + j];
+    }
+
+    @Override
+    void scale(double a, double[] y, int yi, int n) {
+        for (int j = 0; j < n; j++)
+            y[yi + j] *= a;
+    }
+
+    @Override
+    void exp(double[] x, int xi, double[] y, int yi, int n) {
+        for (int j = 0; j < n; j++)
+            y[yi + j] = FastMath.exp(x[xi + j]);
+    }
+
+    /**
+     * The 16 accumulators are plain locals so that the JIT can keep them in
+     * registers for the whole loop.
+     */
+    @Override
+    void gemmTile(int kc, double[] aPack, int ai, double[] bPack, int bi, double[] tile) {
+        double c00 = 0, c01 = 0, c02 = 0, c03 = 0;
+        double c10 = 0, c11 = 0, c12 = 0, c13 = 0;
+        double c20 = 0, c21 = 0, c22 = 0, c23 = 0;
+        double c30 = 0, c31 = 0, c32 = 0, c33 = 0;
+
+        for (int p = 0; p < kc; p++, ai += 4, bi += 4) {
+            double a0 = aPack[ai], a1 = aPack[ai + 1], a2 = aPack[ai + 2], a3 = aPack[ai + 3];
+            double b0 = bPack[bi], b1 = bPack[bi + 1], b2 = bPack[bi + 2], b3 = bPack[bi + 3];
+
+            c00 += a0 * b0; c01 += a0 * b1; c02 += a0 * b2; c03 += a0 * b3;
+            c10 += a1 * b0; c11 += a1 * b1; c12 += a1 * b2; c13 += a1 * b3;
+            c20 += a2 * b0; c21 += a2 * b1; c22 += a2 * b2; c23 += a2 * b3;
+            c30 += a3 * b0; c31 += a3 * b1; c32 += a3 * b2; c33 += a3 * b3;
+        }
+
+        tile[0] = c00;  tile[1] = c01;  tile[2] = c02;  tile[3] = c03;
+        tile[4] = c10;  tile[5] = c11;  tile[6] = c12;  tile[7] = c13;
+        tile[8] = c20;  tile[9] = c21;  tile[10] = c22; tile[11] = c23;
+        tile[12] = c30; tile[13] = c31; tile[14] = c32; tile[15] = c33;
+    }
+}
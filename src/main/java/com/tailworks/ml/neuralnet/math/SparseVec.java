@@ -0,0 +1,139 @@
+package com.tailworks.ml.neuralnet.math;
+
+import java.util.Arrays;
+
+import static java.lang.String.format;
+
+/**
+ * A vector where most elements are zero, e.g. bag-of-words or one-hot
+ * encoded input. Only the non-zero elements are stored, as the index and
+ * the value of each, with the indices in increasing order.
+ * <p>
+ * Operations cost time proportional to the number of non-zeros, not
+ * to the dimension.
+ */
+public class SparseVec {
+
+    private final int dimension;
+    private final int[] indices;
+    private final double[] values;
+
+    /**
+     * Wraps (without copying) the indices and values of the non-zero
+     * elements. The indices must be increasing and less than dimension.
+     */
+    public SparseVec(int dimension, int[] indices, double[] values) {
+        if (indices.length != values.length)
+            throw new IllegalArgumentException(format("Got %d indices but %d values", indices.length, values.length));
+        for (int p = 0; p < indices.length; p++)
+            if (indices[p] < 0 || indices[p] >= dimension || (p > 0 && indices[p] <= indices[p - 1]))
+                throw new IllegalArgumentException(format("Index %d at position %d is not increasing or not within dimension %d", indices[p], p, dimension));
+
+        this.dimension = dimension;
+        this.indices = indices;
+        this.values = values;
+    }
+
+    /**
+     * The non-zero elements of a dense vector.
+     */
+    public SparseVec(Vec dense) {
+        double[] data = dense.getData();
+        int nonZeros = 0;
+        for (double value : data)
+            if (value != 0) nonZeros++;
+
+        dimension = data.length;
+        indices = new int[nonZeros];
+        values = new double[nonZeros];
+        for (int i = 0, p = 0; i < data.length; i++) {
+            if (data[i] != 0) {
+                indices[p] = i;
+                values[p++] = data[i];
+            }
+        }
+    }
+
+    public int dimension() {
+        return dimension;
+    }
+
+    public int nonZeros() {
+        return indices.length;
+    }
+
+    public int[] getIndices() {
+        return indices;
+    }
+
+    public double[] getValues() {
+        return values;
+    }
+
+    public double dot(Vec u) {
+        assertCorrectDimension(u.dimension());
+
+        double[] data = u.getData();
+        double sum = 0;
+        for (int p = 0; p < indices.length; p++)
+            sum += values[p] * data[indices[p]];
+        return sum;
+    }
+
+    public Vec mul(Matrix m) {
+        return mulAddInto(m, new Vec(m.cols()), new Vec(m.cols()));
+    }
+
+    /**
+     * Stores <code>this·m + b</code> in <code>dst</code> and returns
+     * <code>dst</code>. Only the rows of m where this vector is non-zero
+     * are read. Does not allocate.
+     */
+    public Vec mulAddInto(Matrix m, Vec b, Vec dst) {
+        assertCorrectDimension(m.rows());
+        if (b.dimension() != m.cols() || dst.dimension() != m.cols())
+            throw new IllegalArgumentException(format("Different dimensions: Input is %d, Vec is %d", m.cols(), dst.dimension()));
+
+        System.arraycopy(b.getData(), 0, dst.getData(), 0, dst.dimension());
+        Gemm.sparseVecMat(1, indices, values, m, dst.getData());
+
+        return dst;
+    }
+
+    public Vec toDense() {
+        double[] result = new double[dimension];
+        for (int p = 0; p < indices.length; p++)
+            result[indices[p]] = values[p];
+        return new Vec(result);
+    }
+
+    private void assertCorrectDimension(int inpDim) {
+        if (dimension != inpDim)
+            throw new IllegalArgumentException(format("Different dimensions: Input is %d, Vec is %d", inpDim, dimension));
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        SparseVec sparseVec = (SparseVec) o;
+
+        return dimension == sparseVec.dimension &&
+                Arrays.equals(indices, sparseVec.indices) &&
+                Arrays.equals(values, sparseVec.values);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * dimension + Arrays.hashCode(indices)) + Arrays.hashCode(values);
+    }
+
+    @Override
+    public String toString() {
+        return "SparseVec{" + "dimension=" + dimension +
+                ", indices=" + Arrays.toString(indices) +
+                ", values=" + Arrays.toString(values) +
+                '}';
+    }
+}
@@ -0,0 +1,90 @@
+package com.tailworks.ml.neuralnet.math;
+
+/**
+ * The memory holding the elements of a Matrix, seen as a flat sequence.
+ * <p>
+ * Besides single element access a storage implements the few strided
+ * kernels Matrix and Gemm are built from. Each of them walks <code>n</code>
+ * elements of the storage starting at index <code>i</code> with stride
+ * <code>s</code>, and most of them combine those with the elements of a
+ * double[] <code>x</code> starting at <code>xi</code> with stride <code>xs</code>.
+ * Implementations override them with tight loops over their own memory,
+ * which keeps the virtual call at one per row rather than one per element.
+ */
+abstract class Storage {
+
+    abstract Precision precision();
+
+    abstract int length();
+
+    abstract double get(int i);
+
+    abstract void set(int i, double value);
+
+    /**
+     * A new, zeroed storage of the same kind.
+     */
+    abstract Storage allocate(int length);
+
+    /**
+     * True if the elements are in direct (off-heap) memory, where the
+     * garbage collector does not see them.
+     */
+    boolean isDirect() {
+        return false;
+    }
+
+    /**
+     * The backing double[], if the elements are stored in one, otherwise null.
+     * Lets callers use the elements directly instead of copying them.
+     */
+    double[] array() {
+        return null;
+    }
+
+    /**
+     * dst[di + j] = this[i + j * s]
+     */
+    abstract void read(int i, int s, double[] dst, int di, int n);
+
+    /**
+     * this[i + j * s] = x[xi + j * xs]
+     */
+    abstract void write(int i, int s, double[] x, int xi, int xs, int n);
+
+    /**
+     * this[i + j * s] = fn(this[i + j * s])
+     */
+    abstract void map(int i, int s, int n, Function fn);
+
+    /**
+     * this[i + j * s] *= a
+     */
+    abstract void scale(int i, int s, double a, int n);
+
+    /**
+     * this[i + j * s] += a * x[xi + j * xs]
+     */
+    abstract void axpy(int i, int s, double a, double[] x, int xi, int xs, int n);
+
+    /**
+     * this[i + j * s] *= x[xi + j * xs]
+     */
+    abstract void mul(int i, int s, double[] x, int xi, int xs, int n);
+
+    /**
+     * x[xi + j * xs] += a * this[i + j * s], i.e. axpy with the roles swapped.
+     */
+    abstract void axpyTo(int i, int s, double a, double[] x, int xi, int xs, int n);
+
+    /**
+     * ∑ this[i + j * s] * x[xi + j * xs]
+     */
+    abstract double dot(int i, int s, double[] x, int xi, int xs, int n);
+
+    static Storage allocate(int length, Precision precision) {
+        return precision == Precision.FLOAT
+                ? new FloatArrayStorage(new float[length])
+                : new DoubleArrayStorage(new double[length]);
+    }
+}
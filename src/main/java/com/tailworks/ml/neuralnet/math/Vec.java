@@ -1,6 +1,7 @@
 package com.tailworks.ml.neuralnet.math;
 
 import java.util.Arrays;
+import java.util.NoSuchElementException;
 import java.util.stream.DoubleStream;
 
 import static java.lang.String.format;
@@ -8,6 +9,8 @@ import static java.util.Arrays.stream;
 
 public class Vec {
 
+    private static final ArrayKernels KERNELS = ArrayKernels.INSTANCE;
+
     private double[] data;
 
     public Vec(double... data) {
@@ -29,11 +32,7 @@ public class Vec {
     public double dot(Vec u) {
         assertCorrectDimension(u.dimension());
 
-        double sum = 0;
-        for (int i = 0; i < data.length; i++)
-            sum += data[i] * u.data[i];
-
-        return sum;
+        return KERNELS.dot(data, 0, u.data, 0, data.length);
     }
 
     public Vec map(Function fn) {
@@ -62,10 +61,8 @@ public class Vec {
     public Vec sub(Vec u) {
         assertCorrectDimension(u.dimension());
 
-        double[] result = new double[u.dimension()];
-
-        for (int i = 0; i < data.length; i++)
-            result[i] = data[i] - u.data[i];
+        double[] result = data.clone();
+        KERNELS.axpy(-1, u.data, 0, result, 0, result.length);
 
         return new Vec(result);
     }
@@ -87,26 +84,25 @@ public class Vec {
 
 
     public Vec mul(double s) {
-        return map(value -> s * value);
+        double[] result = data.clone();
+        KERNELS.scale(s, result, 0, result.length);
+
+        return new Vec(result);
     }
 
     public Matrix outerProduct(Vec u) {
-        double[][] result = new double[u.dimension()][dimension()];
+        // uᵀ·v, i.e. a (u.dimension() x 1) times (1 x dimension()) matrix product
+        Matrix result = new Matrix(u.dimension(), dimension());
+        Gemm.gemm(1, u.asRow().transpose(), asRow(), 0, result);
 
-        for (int i = 0; i < data.length; i++)
-            for (int j = 0; j < u.data.length; j++)
-                result[j][i] = data[i] * u.data[j];
-
-        return new Matrix(result);
+        return result;
     }
 
     public Vec elementProduct(Vec u) {
         assertCorrectDimension(u.dimension());
 
-        double[] result = new double[u.dimension()];
-
-        for (int i = 0; i < data.length; i++)
-            result[i] = data[i] * u.data[i];
+        double[] result = data.clone();
+        KERNELS.mul(u.data, 0, result, 0, result.length);
 
         return new Vec(result);
     }
@@ -114,25 +110,77 @@ public class Vec {
     public Vec add(Vec u) {
         assertCorrectDimension(u.dimension());
 
-        double[] result = new double[u.dimension()];
-
-        for (int i = 0; i < data.length; i++)
-            result[i] = data[i] + u.data[i];
+        double[] result = data.clone();
+        KERNELS.axpy(1, u.data, 0, result, 0, result.length);
 
         return new Vec(result);
     }
 
     public Vec mul(Matrix m) {
+        return mulInto(m, new Vec(m.cols()));
+    }
+
+    /**
+     * Stores the product of this and <code>m</code> in <code>dst</code>,
+     * which must not be this vector, and returns <code>dst</code>.
+     * Does not allocate.
+     */
+    public Vec mulInto(Matrix m, Vec dst) {
         assertCorrectDimension(m.rows());
+        dst.assertCorrectDimension(m.cols());
 
-        double[][] mData = m.getData();
-        double[] result = new double[m.cols()];
+        Arrays.fill(dst.data, 0);
+        Gemm.vecMat(1, data, m, dst.data);
 
-        for (int col = 0; col < m.cols(); col++)
-            for (int row = 0; row < m.rows(); row++)
-                result[col] += mData[row][col] * data[row];
+        return dst;
+    }
 
-        return new Vec(result);
+    /**
+     * Stores <code>this·m + b</code> in <code>dst</code>, which must not be
+     * this vector, and returns <code>dst</code>. The product is accumulated
+     * on top of b instead of being added to it in a second pass.
+     * Does not allocate.
+     */
+    public Vec mulAddInto(Matrix m, Vec b, Vec dst) {
+        assertCorrectDimension(m.rows());
+        dst.assertCorrectDimension(m.cols());
+        b.assertCorrectDimension(m.cols());
+
+        System.arraycopy(b.data, 0, dst.data, 0, dst.data.length);
+        Gemm.vecMat(1, data, m, dst.data);
+
+        return dst;
+    }
+
+    public Vec addInPlace(Vec u) {
+        assertCorrectDimension(u.dimension());
+
+        KERNELS.axpy(1, u.data, 0, data, 0, data.length);
+
+        return this;
+    }
+
+    /**
+     * this += alpha * u, in place.
+     */
+    public Vec addInPlace(double alpha, Vec u) {
+        assertCorrectDimension(u.dimension());
+
+        KERNELS.axpy(alpha, u.data, 0, data, 0, data.length);
+
+        return this;
+    }
+
+    public Vec mapInPlace(Function fn) {
+        for (int i = 0; i < data.length; i++)
+            data[i] = fn.apply(data[i]);
+
+        return this;
+    }
+
+    // A 1 x dimension() matrix view of this vector
+    Matrix asRow() {
+        return new Matrix(1, data.length, data);
     }
 
 
@@ -142,7 +190,13 @@ public class Vec {
     }
 
     public double max() {
-        return DoubleStream.of(data).max().getAsDouble();
+        if (data.length == 0)
+            throw new NoSuchElementException("No max of an empty Vec");
+
+        double max = data[0];
+        for (int i = 1; i < data.length; i++)
+            if (data[i] > max) max = data[i];
+        return max;
     }
 
     public Vec sub(double a) {
@@ -1,6 +1,7 @@
 package com.tailworks.ml.neuralnet.optimizer;
 
 import com.tailworks.ml.neuralnet.math.Matrix;
+import com.tailworks.ml.neuralnet.math.SparseVec;
 import com.tailworks.ml.neuralnet.math.Vec;
 
 /**
@@ -24,6 +25,26 @@ public class GradientDescent implements Optimizer {
         return bias.sub(dCdB.mul(learningRate));
     }
 
+    @Override
+    public boolean supportsLockFree() {
+        return true;
+    }
+
+    @Override
+    public void updateInPlace(Matrix weights, Vec bias, SparseVec in, Vec dCdI) {
+        weights.addOuterProduct(-learningRate, in, dCdI);
+        bias.addInPlace(-learningRate, dCdI);
+    }
+
+    @Override
+    public void updateInPlace(Matrix weights, Vec bias, Vec in, Vec dCdI) {
+        double[] values = in.getData();
+        for (int row = 0; row < values.length; row++)
+            if (values[row] != 0)
+                weights.addToRow(row, -learningRate * values[row], dCdI);
+        bias.addInPlace(-learningRate, dCdI);
+    }
+
     @Override
     public Optimizer copy() {
         // no need to make copies since this optimizer has
@@ -1,6 +1,7 @@
 package com.tailworks.ml.neuralnet.optimizer;
 
 import com.tailworks.ml.neuralnet.math.Matrix;
+import com.tailworks.ml.neuralnet.math.SparseVec;
 import com.tailworks.ml.neuralnet.math.Vec;
 
 /**
@@ -18,6 +19,10 @@ public class Momentum implements Optimizer {
     private Matrix lastDW;
     private Vec lastDBias;
 
+    // State of the lock-free updates
+    private volatile Matrix velocity;
+    private Vec biasVelocity;
+
     public Momentum(double learningRate, double momentum) {
         this.learningRate = learningRate;
         this.momentum = momentum;
@@ -32,7 +37,7 @@ public class Momentum implements Optimizer {
         if (lastDW == null) {
             lastDW = dCdW.copy().mul(learningRate);
         } else {
-            lastDW.mul(momentum).add(dCdW.copy().mul(learningRate));
+            lastDW.mul(momentum).add(learningRate, dCdW);
         }
         weights.sub(lastDW);
     }
@@ -47,6 +52,80 @@ public class Momentum implements Optimizer {
         return bias.sub(lastDBias);
     }
 
+    @Override
+    public boolean supportsLockFree() {
+        return true;
+    }
+
+    /**
+     * The velocity is kept per row and only the rows touched by a sample
+     * are decayed and moved (a "lazy" momentum). Rows for inputs that are
+     * zero keep their velocity until the next sample touching them.
+     * These updates keep their own velocity, separate from updateWeights.
+     */
+    @Override
+    public void updateInPlace(Matrix weights, Vec bias, SparseVec in, Vec dCdI) {
+        if (velocity == null)
+            initVelocity(weights, bias);
+
+        int[] indices = in.getIndices();
+        double[] values = in.getValues();
+        for (int p = 0; p < indices.length; p++)
+            updateRowInPlace(weights, indices[p], values[p], dCdI);
+
+        updateBiasInPlace(bias, dCdI);
+    }
+
+    @Override
+    public void updateInPlace(Matrix weights, Vec bias, Vec in, Vec dCdI) {
+        if (velocity == null)
+            initVelocity(weights, bias);
+
+        double[] values = in.getData();
+        for (int row = 0; row < values.length; row++)
+            if (values[row] != 0)
+                updateRowInPlace(weights, row, values[row], dCdI);
+
+        updateBiasInPlace(bias, dCdI);
+    }
+
+    private void updateRowInPlace(Matrix weights, int row, double in, Vec dCdI) {
+        Matrix v = velocity.row(row);
+        v.mul(momentum);
+        velocity.addToRow(row, learningRate * in, dCdI);
+        weights.row(row).sub(v);
+    }
+
+    private void updateBiasInPlace(Vec bias, Vec dCdI) {
+        biasVelocity.mapInPlace(x -> momentum * x).addInPlace(learningRate, dCdI);
+        bias.addInPlace(-1, biasVelocity);
+    }
+
+    private synchronized void initVelocity(Matrix weights, Vec bias) {
+        if (velocity == null) {
+            biasVelocity = new Vec(bias.dimension());
+            velocity = weights.like();
+        }
+    }
+
+    /**
+     * The state is lastDW, lastDBias and the velocities of the lock-free
+     * updates, in that order.
+     */
+    @Override
+    public Matrix[] getState() {
+        return new Matrix[]{OptimizerState.copyState(lastDW), OptimizerState.asState(lastDBias), OptimizerState.copyState(velocity), OptimizerState.asState(biasVelocity)};
+    }
+
+    @Override
+    public void setState(Matrix[] state) {
+        OptimizerState.assertStateLength(state, 4, this);
+        lastDW = state[0];
+        lastDBias = OptimizerState.vecFromState(state[1]);
+        biasVelocity = OptimizerState.vecFromState(state[3]);
+        velocity = state[2];
+    }
+
     @Override
     public Optimizer copy() {
         return new Momentum(learningRate, momentum);
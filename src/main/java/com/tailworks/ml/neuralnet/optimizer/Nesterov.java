@@ -32,11 +32,11 @@ public class Nesterov implements Optimizer {
     @Override
     public void updateWeights(Matrix weights, Matrix dCdW) {
         if (lastDW == null) {
-            lastDW = new Matrix(dCdW.rows(), dCdW.cols());
+            lastDW = dCdW.like();
         }
-        Matrix lastDWCopy = lastDW.copy();
-        lastDW.mul(momentum).sub(dCdW.mul(learningRate));
-        weights.add(lastDWCopy.mul(-momentum).add(lastDW.copy().mul(1 + momentum)));
+        weights.add(-momentum, lastDW);
+        lastDW.mul(momentum).add(-learningRate, dCdW);
+        weights.add(1 + momentum, lastDW);
     }
 
     @Override
@@ -49,6 +49,21 @@ public class Nesterov implements Optimizer {
         return bias.add(lastDBiasCopy.mul(-momentum).add(lastDBias.mul(1 + momentum)));
     }
 
+    /**
+     * The state is lastDW and lastDBias, in that order.
+     */
+    @Override
+    public Matrix[] getState() {
+        return new Matrix[]{OptimizerState.copyState(lastDW), OptimizerState.asState(lastDBias)};
+    }
+
+    @Override
+    public void setState(Matrix[] state) {
+        OptimizerState.assertStateLength(state, 2, this);
+        lastDW = state[0];
+        lastDBias = OptimizerState.vecFromState(state[1]);
+    }
+
     @Override
     public Optimizer copy() {
         return new Nesterov(learningRate, momentum);
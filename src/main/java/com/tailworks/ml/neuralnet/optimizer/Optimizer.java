@@ -1,6 +1,7 @@
 package com.tailworks.ml.neuralnet.optimizer;
 
 import com.tailworks.ml.neuralnet.math.Matrix;
+import com.tailworks.ml.neuralnet.math.SparseVec;
 import com.tailworks.ml.neuralnet.math.Vec;
 
 public interface Optimizer {
@@ -9,4 +10,55 @@ public interface Optimizer {
     Vec updateBias(Vec bias, Vec dCdB);
     Optimizer copy();
 
+    /**
+     * True if the optimizer implements <code>updateInPlace</code>,
+     * as needed for lock-free training.
+     */
+    default boolean supportsLockFree() {
+        return false;
+    }
+
+    /**
+     * Lock-free (Hogwild) training: applies the gradient of a single sample
+     * straight to the weights and biases, changing them in place.
+     * The weight gradient, the outer product of the layer input
+     * <code>in</code> and <code>dCdI</code>, is never created and only the
+     * rows of the weights where the input is non-zero are touched.
+     * <p>
+     * Called from many threads at once without any locking. Updates made
+     * by other threads at the same time may be lost or partly seen, which
+     * lock-free SGD tolerates as long as the gradients are sparse.
+     */
+    default void updateInPlace(Matrix weights, Vec bias, SparseVec in, Vec dCdI) {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " does not support lock-free updates");
+    }
+
+    /**
+     * Same as <code>updateInPlace(Matrix, Vec, SparseVec, Vec)</code> for a
+     * dense input, e.g. the output of a hidden layer. Rows of the weights
+     * where the input is zero are skipped as well.
+     */
+    default void updateInPlace(Matrix weights, Vec bias, Vec in, Vec dCdI) {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " does not support lock-free updates");
+    }
+
+    /**
+     * Copies of the state the optimizer keeps between updates, e.g. the
+     * velocity of Momentum, so that training can be resumed from a
+     * checkpoint. Vectors are given as matrices of one row, state not yet
+     * created as null. Stateless optimizers have none.
+     */
+    default Matrix[] getState() {
+        return new Matrix[0];
+    }
+
+    /**
+     * Restores state as returned by <code>getState()</code>, which is
+     * used as it is (not copied).
+     */
+    default void setState(Matrix[] state) {
+        if (state.length != 0)
+            throw new IllegalArgumentException(getClass().getSimpleName() + " has no state");
+    }
+
 }
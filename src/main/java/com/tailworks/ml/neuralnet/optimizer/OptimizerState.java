@@ -0,0 +1,36 @@
+package com.tailworks.ml.neuralnet.optimizer;
+
+import com.tailworks.ml.neuralnet.math.Matrix;
+import com.tailworks.ml.neuralnet.math.Vec;
+
+import static java.lang.String.format;
+
+/**
+ * Helpers for the optimizers giving and taking their state, see
+ * Optimizer.getState().
+ */
+final class OptimizerState {
+
+    private OptimizerState() {
+    }
+
+    /**
+     * A vector as a matrix of one row, sharing no data with it.
+     */
+    static Matrix asState(Vec v) {
+        return v == null ? null : new Matrix(1, v.dimension(), v.getData().clone());
+    }
+
+    static Vec vecFromState(Matrix m) {
+        return m == null ? null : m.getRow(0);
+    }
+
+    static Matrix copyState(Matrix m) {
+        return m == null ? null : m.copy();
+    }
+
+    static void assertStateLength(Matrix[] state, int length, Optimizer optimizer) {
+        if (state.length != length)
+            throw new IllegalArgumentException(format("%s has %d state matrices, got %d", optimizer.getClass().getSimpleName(), length, state.length));
+    }
+}
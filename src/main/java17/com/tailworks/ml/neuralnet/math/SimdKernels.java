@@ -0,0 +1,111 @@
+package com.tailworks.ml.neuralnet.math;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * The kernels written with the JDK Vector API, using the widest vectors
+ * the CPU supports (e.g. 4 doubles with AVX2, 8 with AVX-512). Elements
+ * that do not fill a whole vector are handled by a scalar tail loop.
+ * <p>
+ * The Gemm micro-kernel is inherited from ScalarKernels: on Java 17 the
+ * C2 compiler boxes the vectors that the 4 x 4 tile keeps across loop
+ * iterations, which makes a vector tile several times slower than the
+ * scalar one (that the JIT already keeps in registers).
+ * <p>
+ * Only compiled for, and packaged as, the Java 17 version of the classes.
+ * See ArrayKernels for how it is picked.
+ */
+class SimdKernels extends ScalarKernels {
+
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+    @Override
+    double dot(double[] x, int xi, double[] y, int yi, int n) {
+        DoubleVector acc = DoubleVector.zero(SPECIES);
+        int j = 0;
+        for (int upper = SPECIES.loopBound(n); j < upper; j += SPECIES.length()) {
+            DoubleVector vx = DoubleVector.fromArray(SPECIES, x, xi + j);
+            DoubleVector vy = DoubleVector.fromArray(SPECIES, y, yi + j);
+            acc = acc.add(vx.mul(vy));
+        }
+
+        double sum = acc.reduceLanes(VectorOperators.ADD);
+        for (; j < n; j++)
+            sum += x[xi + j] * y[yi + j];
+        return sum;
+    }
+
+    @Override
+    void axpy(double a, double[] x, int xi, double[] y, int yi, int n) {
+        int j = 0;
+        for (int upper = SPECIES.loopBound(n); j < upper; j += SPECIES.length()) {
+            DoubleVector vx = DoubleVector.fromArray(SPECIES, x, xi + j);
+            DoubleVector vy = DoubleVector.fromArray(SPECIES, y, yi + j);
+            vy.add(vx.mul(a)).intoArray(y, yi + j);
+        }
+
+        for (; j < n; j++)
+            y[yi + j] += a * x[xi + j];
+    }
+
+    @Override
+    void mul(double[] x, int xi, double[] y, int yi, int n) {
+        int j = 0;
+        for (int upper = SPECIES.loopBound(n); j < upper; j += SPECIES.length()) {
+            DoubleVector vx = DoubleVector.fromArray(SPECIES, x, xi + j);
+            DoubleVector vy = DoubleVector.fromArray(SPECIES, y, yi + j);
+            vy.mul(vx).intoArray(y, yi + j);
+        }
+
+        for (; j < n; j++)
+            y[yi + j] *= x[xi + j];
+    }
+
+    @Override
+    void scale(double a, double[] y, int yi, int n) {
+        int j = 0;
+        for (int upper = SPECIES.loopBound(n); j < upper; j += SPECIES.length())
+            DoubleVector.fromArray(SPECIES, y, yi + j).mul(a).intoArray(y, yi + j);
+
+        for (; j < n; j++)
+            y[yi + j] *= a;
+    }
+
+    /**
+     * The same computation as FastMath.exp, lane by lane. Vectors holding an
+     * element outside of the range FastMath handles by itself (or NaN) are
+     * done by FastMath, one element at a time.
+     */
+    @Override
+    void exp(double[] x, int xi, double[] y, int yi, int n) {
+        int j = 0;
+        for (int upper = SPECIES.loopBound(n); j < upper; j += SPECIES.length()) {
+            DoubleVector v = DoubleVector.fromArray(SPECIES, x, xi + j);
+            if (!v.compare(VectorOperators.GT, FastMath.EXP_MIN_X).and(v.compare(VectorOperators.LT, FastMath.EXP_MAX_X)).allTrue()) {
+                for (int l = 0; l < SPECIES.length(); l++)
+                    y[yi + j + l] = FastMath.exp(x[xi + j + l]);
+                continue;
+            }
+
+            DoubleVector shifted = v.mul(FastMath.LOG2E).add(FastMath.ROUND);
+            DoubleVector k = shifted.sub(FastMath.ROUND);
+            DoubleVector r = v.sub(k.mul(FastMath.LN2_HI)).sub(k.mul(FastMath.LN2_LO));
+            DoubleVector p = r.mul(1.0 / 5040).add(1.0 / 720);
+            p = p.mul(r).add(1.0 / 120);
+            p = p.mul(r).add(1.0 / 24);
+            p = p.mul(r).add(1.0 / 6);
+            p = p.mul(r).add(1.0 / 2);
+            p = p.mul(r).add(1);
+            p = p.mul(r).add(1);
+
+            LongVector twoToK = ((LongVector) shifted.reinterpretAsLongs()).add(1023).lanewise(VectorOperators.LSHL, 52);
+            p.mul(twoToK.reinterpretAsDoubles()).intoArray(y, yi + j);
+        }
+
+        for (; j < n; j++)
+            y[yi + j] = FastMath.exp(x[xi + j]);
+    }
+}
@@ -1,8 +1,10 @@
 package com.tailworks.ml.neuralnet;
 
+import com.tailworks.ml.neuralnet.math.Matrix;
 import com.tailworks.ml.neuralnet.math.Vec;
 import org.junit.Test;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 
 public class ActivationTest {
@@ -21,4 +23,47 @@ public class ActivationTest {
         assertEquals(v, new Vec(-0.01, 0, 1.5, 2));
     }
 
-}
\ No newline at end of file
+    @Test
+    public void testPredefinedMatchTheirFormulas() {
+        double[] in = {-2, -0.5, 0, 0.5, 2};
+        assertArrayEquals(new double[]{0, 0, 0, 0.5, 2}, Activation.ReLU.fn(new Vec(in)).getData(), 0);
+        assertArrayEquals(new double[]{1 / (1 + Math.exp(2)), 1 / (1 + Math.exp(0.5)), 0.5, 1 / (1 + Math.exp(-0.5)), 1 / (1 + Math.exp(-2))},
+                Activation.Sigmoid.fn(new Vec(in)).getData(), 0);
+        assertArrayEquals(new double[]{Math.log(1 + Math.exp(-2)), Math.log(1 + Math.exp(-0.5)), Math.log(2), Math.log(1 + Math.exp(0.5)), Math.log(1 + Math.exp(2))},
+                Activation.Softplus.fn(new Vec(in)).getData(), 0);
+        assertArrayEquals(in, Activation.Identity.fn(new Vec(in)).getData(), 0);
+        assertArrayEquals(new double[]{1, 1, 1, 1, 1}, Activation.Identity.dFn(new Vec(in)).getData(), 0);
+    }
+
+    @Test
+    public void testLambdaActivation() {
+        Activation tanh = new Activation("Tanh", Math::tanh, x -> 1 - x * x);
+        Vec v = new Vec(-1, 0, 1);
+        assertEquals(new Vec(Math.tanh(-1), 0, Math.tanh(1)), tanh.fnInPlace(v));
+        assertEquals(new Vec(1 - Math.tanh(1) * Math.tanh(1), 1, 1 - Math.tanh(1) * Math.tanh(1)), tanh.dFn(v));
+    }
+
+    @Test
+    public void testFastExpVariants() {
+        Vec in = new Vec(-30, -2, -0.5, 0, 0.5, 2, 30);
+        assertArrayEquals(Activation.Sigmoid.fn(in).getData(), Activation.Sigmoid_FastExp.fn(in).getData(), 1e-8);
+        assertArrayEquals(Activation.Softplus.fn(in).getData(), Activation.Softplus_FastExp.fn(in).getData(), 1e-6);
+        assertArrayEquals(Activation.Softplus.dFn(in).getData(), Activation.Softplus_FastExp.dFn(in).getData(), 1e-8);
+        assertArrayEquals(Activation.Softmax.fn(in).getData(), Activation.Softmax_FastExp.fn(in).getData(), 1e-8);
+    }
+
+    @Test
+    public void testBatchSameAsVec() {
+        Matrix in = new Matrix(new double[][]{{-1, 0, 1.5, 2}, {3, 1, -2, 0.5}});
+        for (Activation activation : new Activation[]{Activation.Sigmoid, Activation.Leaky_ReLU, Activation.Softmax}) {
+            Matrix out = activation.fn(in.copy());
+            for (int row = 0; row < in.rows(); row++)
+                assertEquals(activation.fn(in.getRow(row)), out.getRow(row));
+        }
+
+        // Through a row buffer for a transposed view
+        Matrix out = Activation.Sigmoid.fn(in.copy().transpose()).transpose();
+        assertEquals(Activation.Sigmoid.fn(in.getRow(1)), out.getRow(1));
+    }
+
+}
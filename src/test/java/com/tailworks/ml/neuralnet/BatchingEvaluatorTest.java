@@ -0,0 +1,79 @@
+package com.tailworks.ml.neuralnet;
+
+import com.tailworks.ml.neuralnet.math.Vec;
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import static com.tailworks.ml.neuralnet.Activation.ReLU;
+import static com.tailworks.ml.neuralnet.Activation.Softmax;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BatchingEvaluatorTest {
+
+    private static final double EPS = 0.00001;
+
+    private final NeuralNetwork network =
+            new NeuralNetwork.Builder(4)
+                    .addLayer(new Layer(6, ReLU, 0.5))
+                    .addLayer(new Layer(3, Softmax, 0.5))
+                    .initWeights(new Initializer.XavierNormal())
+                    .create();
+
+    @Test
+    public void testEachCallerGetsItsOwnResult() throws Exception {
+        try (BatchingEvaluator evaluator = new BatchingEvaluator(network, 8, 500)) {
+            int perThread = 25;
+            Thread[] threads = new Thread[4];
+            Vec[] inputs = new Vec[threads.length * perThread];
+            @SuppressWarnings("unchecked")
+            CompletableFuture<Result>[] results = new CompletableFuture[inputs.length];
+
+            for (int t = 0; t < threads.length; t++) {
+                int first = t * perThread;
+                (threads[t] = new Thread(() -> {
+                    for (int i = first; i < first + perThread; i++) {
+                        inputs[i] = new Vec(i, 1, i * 0.1, -i);
+                        results[i] = evaluator.submit(inputs[i]);
+                    }
+                })).start();
+            }
+            for (Thread thread : threads)
+                thread.join();
+
+            for (int i = 0; i < inputs.length; i++)
+                assertArrayEquals(network.evaluate(inputs[i]).getOutput().getData(), results[i].get().getOutput().getData(), EPS);
+        }
+    }
+
+    @Test
+    public void testNoDelay() throws Exception {
+        try (BatchingEvaluator evaluator = new BatchingEvaluator(network, 1, 0)) {
+            Vec input = new Vec(1, 2, 3, 4);
+            assertArrayEquals(network.evaluate(input).getOutput().getData(), evaluator.submit(input).get().getOutput().getData(), EPS);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testWrongInputSize() throws Exception {
+        try (BatchingEvaluator evaluator = new BatchingEvaluator(network, 8, 100)) {
+            evaluator.submit(new Vec(1, 2));
+        }
+    }
+
+    @Test
+    public void testSubmitAfterCloseFails() throws Exception {
+        BatchingEvaluator evaluator = new BatchingEvaluator(network, 8, 100);
+        evaluator.close();
+
+        try {
+            evaluator.submit(new Vec(1, 2, 3, 4)).get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package com.tailworks.ml.neuralnet;
+
+import com.tailworks.ml.neuralnet.math.Precision;
+import com.tailworks.ml.neuralnet.math.SparseVec;
+import com.tailworks.ml.neuralnet.math.Vec;
+import com.tailworks.ml.neuralnet.optimizer.Momentum;
+import com.tailworks.ml.neuralnet.optimizer.Nesterov;
+import com.tailworks.ml.neuralnet.optimizer.Optimizer;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+import static com.tailworks.ml.neuralnet.Activation.Leaky_ReLU;
+import static com.tailworks.ml.neuralnet.Activation.Sigmoid;
+import static com.tailworks.ml.neuralnet.Activation.Softmax;
+import static org.junit.Assert.*;
+
+public class CheckpointerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testResumeWithMomentum() throws IOException {
+        assertResumesExactly(() -> new Momentum(0.05), Precision.DOUBLE);
+    }
+
+    @Test
+    public void testResumeWithNesterovAndFloats() throws IOException {
+        assertResumesExactly(() -> new Nesterov(0.05), Precision.FLOAT);
+    }
+
+    @Test
+    public void testKeepsTheLastCheckpoints() throws IOException {
+        Path directory = folder.newFolder().toPath();
+        NeuralNetwork network = network(() -> new Momentum(0.05), Precision.DOUBLE);
+
+        try (Checkpointer checkpointer = new Checkpointer(directory, 2)) {
+            for (int step = 8; step <= 12; step++) {
+                train(network, new Random(step), 1);
+                checkpointer.checkpoint(network, step);
+            }
+        }
+
+        List<Path> files = Checkpointer.list(directory);
+        assertEquals(2, files.size());
+        assertEquals(files.get(1), Checkpointer.latest(directory));
+        try (Stream<Path> all = Files.list(directory)) {
+            assertEquals(2, all.count());   // No temporary files left
+        }
+
+        NeuralNetwork restored = network(() -> new Momentum(0.05), Precision.DOUBLE);
+        assertEquals(12, Checkpointer.restore(files.get(1), restored));
+        assertEquals(11, Checkpointer.restore(files.get(0), restored));
+    }
+
+    @Test
+    public void testLockFreeLearnersWaitWhileCopied() throws InterruptedException {
+        NeuralNetwork network = new NeuralNetwork.Builder(4)
+                .addLayer(new Layer(2, Softmax, 0.1))
+                .setOptimizer(new Momentum(0.5))
+                .lockFree(true)
+                .create();
+        Layer layer = network.getLayers().get(1);
+        double[][] before = layer.getWeights().getData();
+        Thread learner = new Thread(() -> network.evaluate(new SparseVec(4, new int[]{1}, new double[]{1}), new Vec(1, 0)));
+
+        boolean learnerWaited = network.atRest(() -> {
+            learner.start();
+            try {
+                learner.join(200);
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+            return learner.isAlive() && Arrays.deepEquals(before, layer.getWeights().getData());
+        });
+        learner.join();
+
+        assertTrue(learnerWaited);
+        assertFalse(Arrays.deepEquals(before, layer.getWeights().getData()));
+    }
+
+    @Test
+    public void testEmptyDirectoryHasNoLatest() throws IOException {
+        assertNull(Checkpointer.latest(folder.newFolder().toPath()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testOptimizerMustMatch() throws IOException {
+        Path directory = folder.newFolder().toPath();
+        NeuralNetwork network = network(() -> new Momentum(0.05), Precision.DOUBLE);
+        train(network, new Random(1), 2);
+
+        try (Checkpointer checkpointer = new Checkpointer(directory, 1)) {
+            checkpointer.checkpoint(network, 2).join();
+        }
+
+        Checkpointer.restore(Checkpointer.latest(directory), network(() -> new Nesterov(0.05), Precision.DOUBLE));
+    }
+
+    // -------------------------------------------------------------------------
+
+    private void assertResumesExactly(Supplier<Optimizer> optimizer, Precision precision) throws IOException {
+        Path directory = folder.newFolder().toPath();
+        NeuralNetwork network = network(optimizer, precision);
+        train(network, new Random(1), 5);
+
+        // Deltas not yet applied are part of the checkpoint
+        network.evaluate(new Vec(0.5, -1, 2, 0.25), new Vec(0, 1, 0));
+
+        Path file;
+        try (Checkpointer checkpointer = new Checkpointer(directory, 3)) {
+            file = checkpointer.checkpoint(network, 5).join();
+        }
+
+        NeuralNetwork resumed = network(optimizer, precision);
+        assertEquals(5, Checkpointer.restore(file, resumed));
+
+        network.updateFromLearning();
+        resumed.updateFromLearning();
+        train(network, new Random(2), 5);
+        train(resumed, new Random(2), 5);
+
+        for (int l = 1; l < network.getLayers().size(); l++) {
+            double[][] expected = network.getLayers().get(l).getWeights().getData();
+            double[][] actual = resumed.getLayers().get(l).getWeights().getData();
+            for (int row = 0; row < expected.length; row++)
+                assertArrayEquals(expected[row], actual[row], 0);
+            assertArrayEquals(network.getLayers().get(l).getBias().getData(), resumed.getLayers().get(l).getBias().getData(), 0);
+        }
+    }
+
+    private static void train(NeuralNetwork network, Random random, int steps) {
+        for (int step = 0; step < steps; step++) {
+            for (int sample = 0; sample < 4; sample++) {
+                Vec input = new Vec(random.nextGaussian(), random.nextGaussian(), random.nextGaussian(), random.nextGaussian());
+                Vec expected = new Vec(3);
+                expected.getData()[random.nextInt(3)] = 1;
+                network.evaluate(input, expected);
+            }
+            network.updateFromLearning();
+        }
+    }
+
+    private static NeuralNetwork network(Supplier<Optimizer> optimizer, Precision precision) {
+        return new NeuralNetwork.Builder(4)
+                .addLayer(new Layer(6, Leaky_ReLU, 0.5))
+                .addLayer(new Layer(5, Sigmoid, 0.1))
+                .addLayer(new Layer(3, Softmax, 0.5))
+                .setCostFunction(new CostFunction.Quadratic())
+                .setOptimizer(optimizer.get())
+                .precision(precision)
+                .initWeights(new Initializer.XavierNormal())
+                .create();
+    }
+}
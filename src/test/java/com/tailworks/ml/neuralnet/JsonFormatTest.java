@@ -0,0 +1,73 @@
+package com.tailworks.ml.neuralnet;
+
+import com.google.gson.GsonBuilder;
+import com.tailworks.ml.neuralnet.math.Vec;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import static com.tailworks.ml.neuralnet.Activation.Leaky_ReLU;
+import static com.tailworks.ml.neuralnet.Activation.Sigmoid_FastExp;
+import static com.tailworks.ml.neuralnet.Activation.Softmax;
+import static org.junit.Assert.assertEquals;
+
+public class JsonFormatTest {
+
+    @Test
+    public void testSameJsonAsNetworkState() {
+        NeuralNetwork network = network();
+
+        assertEquals(new GsonBuilder().create().toJson(new NeuralNetwork.NetworkState(network)), network.toJson(false));
+        assertEquals(new GsonBuilder().setPrettyPrinting().create().toJson(new NeuralNetwork.NetworkState(network)), network.toJson(true));
+    }
+
+    @Test
+    public void testWriteAndRead() throws IOException {
+        NeuralNetwork network = network();
+
+        NeuralNetwork read = NeuralNetwork.fromJson(new StringReader(network.toJson(true)));
+
+        assertEquals("HalfQuadratic", read.getCostFunction().getName());
+        assertEquals(network.getLayers().size(), read.getLayers().size());
+        for (int l = 0; l < read.getLayers().size(); l++) {
+            assertEquals(network.getLayers().get(l).getActivation().getName(), read.getLayers().get(l).getActivation().getName());
+            assertEquals(network.getLayers().get(l).getBias(), read.getLayers().get(l).getBias());
+        }
+
+        Vec input = new Vec(0.5, -1, 2, 0.25);
+        assertEquals(network.evaluate(input).getOutput(), read.evaluate(input).getOutput());
+        assertEquals(network.toJson(false), read.toJson(false));
+    }
+
+    @Test
+    public void testUnknownFieldsAreSkipped() throws IOException {
+        String json = "{\"version\": 2, \"layers\": [{\"bias\": [0, 0], \"activation\": \"Identity\"}," +
+                "{\"activation\": \"Sigmoid\", \"bias\": [0.5], \"weights\": [[1], [2]], \"name\": \"out\"}]}";
+
+        NeuralNetwork network = NeuralNetwork.fromJson(new StringReader(json));
+
+        assertEquals("Quadratic", network.getCostFunction().getName());
+        assertEquals(new Vec(0.5), network.getLayers().get(1).getBias());
+        assertEquals(1 / (1 + Math.exp(-(1 + 2 * 2 + 0.5))), network.evaluate(new Vec(1, 2)).getOutput().getData()[0], 0.0000001);
+    }
+
+    @Test(expected = IOException.class)
+    public void testWeightsOfWrongShape() throws IOException {
+        String json = "{\"layers\": [{\"bias\": [0, 0], \"activation\": \"Identity\"}," +
+                "{\"weights\": [[1], [2], [3]], \"bias\": [0.5], \"activation\": \"Sigmoid\"}]}";
+        NeuralNetwork.fromJson(new StringReader(json));
+    }
+
+    // -------------------------------------------------------------------------
+
+    private static NeuralNetwork network() {
+        return new NeuralNetwork.Builder(4)
+                .addLayer(new Layer(6, Leaky_ReLU, 0.5))
+                .addLayer(new Layer(5, Sigmoid_FastExp, 0.1))
+                .addLayer(new Layer(3, Softmax, 0.5))
+                .setCostFunction(new CostFunction.HalfQuadratic())
+                .initWeights(new Initializer.XavierNormal())
+                .create();
+    }
+}
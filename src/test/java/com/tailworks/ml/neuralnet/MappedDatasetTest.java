@@ -0,0 +1,168 @@
+package com.tailworks.ml.neuralnet;
+
+import com.tailworks.ml.neuralnet.math.Matrix;
+import com.tailworks.ml.neuralnet.math.Precision;
+import com.tailworks.ml.neuralnet.math.Vec;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import static com.tailworks.ml.neuralnet.Activation.Sigmoid;
+import static com.tailworks.ml.neuralnet.Activation.Softmax;
+import static org.junit.Assert.*;
+
+public class MappedDatasetTest {
+
+    private static final double EPS = 0.00001;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testFixedWidthRecords() throws IOException {
+        // 5 records of 3 inputs and 2 labels, value = 10 * record + index
+        ByteBuffer data = ByteBuffer.allocate(5 * 5 * Float.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        for (int record = 0; record < 5; record++)
+            for (int i = 0; i < 5; i++)
+                data.putFloat(10 * record + i);
+        Path file = write(data.array());
+
+        MappedDataset dataset = MappedDataset.fixedWidth(file, 3, 2, Precision.FLOAT, ByteOrder.LITTLE_ENDIAN);
+
+        assertEquals(5, dataset.size());
+        assertEquals(3, dataset.inputSize());
+        assertEquals(2, dataset.labelSize());
+        assertEquals(new Vec(20, 21, 22), dataset.getInput(2));
+        assertEquals(new Vec(43, 44), dataset.getLabel(4));
+
+        Matrix inputs = dataset.getInputs(1, 3);
+        assertEquals(Precision.FLOAT, inputs.precision());
+        assertArrayEquals(new double[][]{{10, 11, 12}, {20, 21, 22}, {30, 31, 32}}, inputs.getData());
+        assertArrayEquals(new double[][]{{13, 14}, {23, 24}, {33, 34}}, dataset.getLabels(1, 3).getData());
+    }
+
+    @Test
+    public void testNetworkLearnsFromViews() throws IOException {
+        ByteBuffer data = ByteBuffer.allocate(6 * 5 * Double.BYTES);
+        Random random = new Random(1);
+        for (int record = 0; record < 6; record++) {
+            for (int i = 0; i < 3; i++)
+                data.putDouble(random.nextGaussian());
+            data.putDouble(record % 2).putDouble(1 - record % 2);
+        }
+        MappedDataset dataset = MappedDataset.fixedWidth(write(data.array()), 3, 2, Precision.DOUBLE, ByteOrder.BIG_ENDIAN);
+
+        NeuralNetwork network1 = network();
+        NeuralNetwork network2 = new NeuralNetwork.Builder(network1).create();
+        for (MappedDataset.Batch batch : dataset.batches(4)) {
+            double[] costs = network1.evaluateBatch(batch.getInputs(), batch.getLabels()).getCosts();
+            Matrix inputs = new Matrix(batch.getInputs().getData());
+            Matrix labels = new Matrix(batch.getLabels().getData());
+            assertArrayEquals(network2.evaluateBatch(inputs, labels).getCosts(), costs, EPS);
+            network1.updateFromLearning();
+            network2.updateFromLearning();
+        }
+    }
+
+    @Test
+    public void testIdxBytesWithOneHotLabels() throws IOException {
+        // 4 images of 2 x 2 unsigned bytes, and their labels
+        byte[] images = idxHeader(0x08, 4, 2, 2, 16);
+        for (int i = 0; i < 16; i++)
+            images[images.length - 16 + i] = (byte) (i * 17);
+        byte[] labels = idxHeader(0x08, 4, 0, 0, 4);
+        System.arraycopy(new byte[]{2, 0, 1, 2}, 0, labels, labels.length - 4, 4);
+
+        MappedDataset dataset = MappedDataset.idx(write(images), write(labels), 3);
+
+        assertEquals(4, dataset.size());
+        assertEquals(4, dataset.inputSize());
+        assertEquals(3, dataset.labelSize());
+        assertEquals(new Vec(204, 221, 238, 255), dataset.getInput(3));
+        assertEquals(new Vec(1, 0, 0), dataset.getLabel(1));
+        assertArrayEquals(new double[][]{{0, 1, 0}, {0, 0, 1}}, dataset.getLabels(2, 2).getData());
+    }
+
+    @Test
+    public void testBatchesAcrossSegments() throws IOException {
+        // 7 samples of 2 floats, mapped 3 samples per segment
+        byte[] images = idxHeader(0x0D, 7, 2, 0, 7 * 2 * Float.BYTES);
+        ByteBuffer values = ByteBuffer.wrap(images, images.length - 7 * 2 * Float.BYTES, 7 * 2 * Float.BYTES);
+        for (int i = 0; i < 14; i++)
+            values.putFloat(i);
+        byte[] labels = idxHeader(0x08, 7, 0, 0, 7);
+
+        MappedDataset dataset = MappedDataset.idx(write(images), write(labels), 1, 3 * 2 * Float.BYTES);
+
+        assertArrayEquals(new double[][]{{2, 3}, {4, 5}}, dataset.getInputs(1, 2).getData());
+        assertArrayEquals(new double[][]{{4, 5}, {6, 7}, {8, 9}}, dataset.getInputs(2, 3).getData());
+        assertEquals(new Vec(12, 13), dataset.getInput(6));
+    }
+
+    @Test
+    public void testShuffledBatchesVisitEverySampleOnce() throws IOException {
+        byte[] images = idxHeader(0x08, 10, 1, 0, 10);
+        for (int i = 0; i < 10; i++)
+            images[images.length - 10 + i] = (byte) i;
+        MappedDataset dataset = MappedDataset.idx(write(images), write(idxHeader(0x08, 10, 0, 0, 10)));
+
+        double[] seen = new double[10];
+        int batches = 0;
+        for (MappedDataset.Batch batch : dataset.batches(3, new Random(7))) {
+            for (int row = 0; row < batch.getInputs().rows(); row++)
+                seen[batch.getFrom() + row] = batch.getInputs().get(row, 0);
+            batches++;
+        }
+
+        assertEquals(4, batches);
+        assertArrayEquals(new double[]{0, 1, 2, 3, 4, 5, 6, 7, 8, 9}, seen, 0);
+    }
+
+    @Test(expected = IOException.class)
+    public void testTruncatedIdxFile() throws IOException {
+        byte[] images = idxHeader(0x08, 4, 2, 2, 16);
+        MappedDataset.idx(write(Arrays.copyOf(images, images.length - 1)), write(idxHeader(0x08, 4, 0, 0, 4)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInputsAndLabelsMustMatch() throws IOException {
+        MappedDataset.idx(write(idxHeader(0x08, 4, 1, 0, 4)), write(idxHeader(0x08, 3, 0, 0, 3)));
+    }
+
+    // -------------------------------------------------------------------------
+
+    // An IDX file of the given type and dimensions (0 for none) with room for the data
+    private static byte[] idxHeader(int type, int rows, int dim1, int dim2, int dataBytes) {
+        int dimensions = dim1 == 0 ? 1 : dim2 == 0 ? 2 : 3;
+        ByteBuffer buffer = ByteBuffer.allocate(4 + 4 * dimensions + dataBytes);
+        buffer.put((byte) 0).put((byte) 0).put((byte) type).put((byte) dimensions);
+        buffer.putInt(rows);
+        if (dim1 > 0)
+            buffer.putInt(dim1);
+        if (dim2 > 0)
+            buffer.putInt(dim2);
+        return buffer.array();
+    }
+
+    private Path write(byte[] bytes) throws IOException {
+        Path file = folder.newFile().toPath();
+        Files.write(file, bytes);
+        return file;
+    }
+
+    private static NeuralNetwork network() {
+        return new NeuralNetwork.Builder(3)
+                .addLayer(new Layer(4, Sigmoid, 0.5))
+                .addLayer(new Layer(2, Softmax, 0.5))
+                .initWeights(new Initializer.XavierNormal())
+                .create();
+    }
+}
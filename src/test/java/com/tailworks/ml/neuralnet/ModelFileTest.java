@@ -0,0 +1,152 @@
+package com.tailworks.ml.neuralnet;
+
+import com.tailworks.ml.neuralnet.math.Precision;
+import com.tailworks.ml.neuralnet.math.Vec;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static com.tailworks.ml.neuralnet.Activation.Leaky_ReLU;
+import static com.tailworks.ml.neuralnet.Activation.Sigmoid_FastExp;
+import static com.tailworks.ml.neuralnet.Activation.Softmax;
+import static org.junit.Assert.*;
+
+public class ModelFileTest {
+
+    private static final double EPS = 0.0000001;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testSaveAndLoad() throws IOException {
+        NeuralNetwork network = network(Precision.DOUBLE);
+        network.getLayers().get(1).setFrozen(true);
+        Path file = folder.newFile().toPath();
+
+        ModelFile.save(network, file);
+        NeuralNetwork loaded = ModelFile.load(file);
+
+        assertEquals(network.getLayers().size(), loaded.getLayers().size());
+        assertEquals("HalfQuadratic", loaded.getCostFunction().getName());
+        assertEquals(0.001, loaded.getL2(), 0);
+        assertTrue(loaded.getLayers().get(1).isFrozen());
+        assertFalse(loaded.getLayers().get(2).isFrozen());
+        for (int l = 1; l < loaded.getLayers().size(); l++) {
+            assertEquals(network.getLayers().get(l).getActivation().getName(), loaded.getLayers().get(l).getActivation().getName());
+            assertEquals(network.getLayers().get(l).getBias(), loaded.getLayers().get(l).getBias());
+        }
+
+        Vec input = new Vec(0.5, -1, 2, 0.25);
+        assertEquals(network.evaluate(input).getOutput(), loaded.evaluate(input).getOutput());
+    }
+
+    @Test
+    public void testFloatPrecision() throws IOException {
+        NeuralNetwork network = network(Precision.FLOAT);
+        Path file = folder.newFile().toPath();
+
+        ModelFile.save(network, file);
+        NeuralNetwork loaded = ModelFile.load(file);
+
+        assertEquals(Precision.FLOAT, loaded.getPrecision());
+        Vec input = new Vec(0.5, -1, 2, 0.25);
+        assertArrayEquals(network.evaluate(input).getOutput().getData(), loaded.evaluate(input).getOutput().getData(), EPS);
+    }
+
+    @Test
+    public void testLoadedNetworkCanLearn() throws IOException {
+        Path file = folder.newFile().toPath();
+        ModelFile.save(network(Precision.DOUBLE), file);
+        byte[] saved = Files.readAllBytes(file);
+
+        NeuralNetwork loaded = ModelFile.load(file);
+        Vec input = new Vec(0.5, -1, 2, 0.25);
+        Vec before = loaded.evaluate(input).getOutput();
+
+        loaded.evaluate(input, new Vec(1, 0, 0));
+        loaded.updateFromLearning();
+
+        // Updated on copies, the file is left as it was
+        assertNotEquals(before, loaded.evaluate(input).getOutput());
+        assertArrayEquals(saved, Files.readAllBytes(file));
+    }
+
+    @Test
+    public void testWeightsMappedInChunks() throws IOException {
+        for (Precision precision : Precision.values()) {
+            NeuralNetwork network = network(precision);
+            Path file = folder.newFile().toPath();
+            ModelFile.save(network, file);
+
+            // 4 elements per chunk: the 4 x 6, 6 x 5 and 5 x 3 weights each cross several
+            NeuralNetwork loaded = ModelFile.load(file, 2);
+            for (int l = 1; l < loaded.getLayers().size(); l++)
+                assertArrayEquals(network.getLayers().get(l).getWeights().getData(), loaded.getLayers().get(l).getWeights().getData());
+
+            Vec input = new Vec(0.5, -1, 2, 0.25);
+            assertArrayEquals(network.evaluate(input).getOutput().getData(), loaded.evaluate(input).getOutput().getData(), EPS);
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testUnknownPrecision() throws IOException {
+        Path file = folder.newFile().toPath();
+        ModelFile.save(network(Precision.DOUBLE), file);
+
+        // The precision follows the magic, the version and the cost function name
+        byte[] bytes = Files.readAllBytes(file);
+        int at = 3 * Integer.BYTES + "HalfQuadratic".length();
+        bytes[at] = 7;
+        Files.write(file, bytes);
+        ModelFile.load(file);
+    }
+
+    @Test(expected = IOException.class)
+    public void testBadStringLength() throws IOException {
+        Path file = folder.newFile().toPath();
+        ModelFile.save(network(Precision.DOUBLE), file);
+
+        // The length of the cost function name follows the magic and the version
+        byte[] bytes = Files.readAllBytes(file);
+        bytes[2 * Integer.BYTES + 3] = (byte) 0x7f;
+        Files.write(file, bytes);
+        ModelFile.load(file);
+    }
+
+    @Test
+    public void testCopyOfLoadedNetworkIsOnHeap() throws IOException {
+        Path file = folder.newFile().toPath();
+        ModelFile.save(network(Precision.DOUBLE), file);
+        NeuralNetwork loaded = ModelFile.load(file);
+
+        // Mapped, but not asked to be off-heap
+        assertTrue(loaded.getLayers().get(1).getWeights().isOffHeap());
+        assertFalse(new NeuralNetwork.Builder(loaded).create().getLayers().get(1).getWeights().isOffHeap());
+    }
+
+    @Test(expected = IOException.class)
+    public void testNotANetworkFile() throws IOException {
+        Path file = folder.newFile().toPath();
+        Files.write(file, "{\"costFunction\": \"MSE\"}".getBytes());
+        ModelFile.load(file);
+    }
+
+    // -------------------------------------------------------------------------
+
+    private static NeuralNetwork network(Precision precision) {
+        return new NeuralNetwork.Builder(4)
+                .addLayer(new Layer(6, Leaky_ReLU, 0.5))
+                .addLayer(new Layer(5, Sigmoid_FastExp, 0.1))
+                .addLayer(new Layer(3, Softmax, 0.5))
+                .setCostFunction(new CostFunction.HalfQuadratic())
+                .precision(precision)
+                .l2(0.001)
+                .initWeights(new Initializer.XavierNormal())
+                .create();
+    }
+}
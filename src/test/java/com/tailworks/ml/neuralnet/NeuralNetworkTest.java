@@ -1,9 +1,19 @@
 package com.tailworks.ml.neuralnet;
 
+import com.tailworks.ml.neuralnet.math.Matrix;
+import com.tailworks.ml.neuralnet.math.Precision;
+import com.tailworks.ml.neuralnet.math.SparseVec;
 import com.tailworks.ml.neuralnet.math.Vec;
 import com.tailworks.ml.neuralnet.optimizer.GradientDescent;
+import com.tailworks.ml.neuralnet.optimizer.Momentum;
+import com.tailworks.ml.neuralnet.optimizer.Nesterov;
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
 import static com.tailworks.ml.neuralnet.Activation.*;
 import static java.lang.System.arraycopy;
 import static org.junit.Assert.*;
@@ -303,4 +313,524 @@ public class NeuralNetworkTest {
 
     }
 
+    @Test
+    public void testEvaluateBatchGivesSameResultAsPerSample() {
+        NeuralNetwork network1 =
+                new NeuralNetwork.Builder(4)
+                        .addLayer(new Layer(6, Sigmoid, 0.5))
+                        .addLayer(new Layer(5, ReLU, 0.1))
+                        .addLayer(new Layer(3, Softmax, 0.5))
+                        .setCostFunction(new CostFunction.Quadratic())
+                        .setOptimizer(new GradientDescent(0.5))
+                        .initWeights(new Initializer.XavierNormal())
+                        .create();
+
+        NeuralNetwork network2 = new NeuralNetwork.Builder(network1).create();
+
+        double[][] inputs = {
+                {1, 1, 1, 0},
+                {1, 1, 0, 0},
+                {0, 1, 1, 0},
+                {1, 0, 1, 0},
+                {0, 0, 1, 1},
+        };
+
+        double[][] expected = {
+                {1, 0, 0},
+                {0, 1, 0},
+                {0, 0, 1},
+                {1, 0, 0},
+                {0, 1, 0},
+        };
+
+        for (int epoch = 0; epoch < 50; epoch++) {
+            double[] costs = new double[inputs.length];
+            for (int i = 0; i < inputs.length; i++)
+                costs[i] = network1.evaluate(new Vec(inputs[i]), new Vec(expected[i])).getCost();
+            network1.updateFromLearning();
+
+            BatchResult batchResult = network2.evaluateBatch(new Matrix(inputs), new Matrix(expected));
+            network2.updateFromLearning();
+
+            assertArrayEquals(costs, batchResult.getCosts(), EPS);
+        }
+
+        BatchResult batchResult = network2.evaluateBatch(new Matrix(inputs));
+        assertEquals(inputs.length, batchResult.size());
+        for (int i = 0; i < inputs.length; i++) {
+            Vec out = network1.evaluate(new Vec(inputs[i])).getOutput();
+            assertArrayEquals(out.getData(), batchResult.getResult(i).getOutput().getData(), EPS);
+            assertNull(batchResult.getResult(i).getCost());
+        }
+    }
+
+    @Test
+    public void testSparseInputGivesSameResultAsDense() {
+        NeuralNetwork network1 =
+                new NeuralNetwork.Builder(50)
+                        .addLayer(new Layer(6, Sigmoid, 0.5))
+                        .addLayer(new Layer(3, Softmax, 0.5))
+                        .setCostFunction(new CostFunction.Quadratic())
+                        .setOptimizer(new GradientDescent(0.5))
+                        .initWeights(new Initializer.XavierNormal())
+                        .create();
+
+        NeuralNetwork network2 = new NeuralNetwork.Builder(network1).create();
+
+        SparseVec[] inputs = {
+                new SparseVec(50, new int[]{0, 7, 49}, new double[]{1, 1, 1}),
+                new SparseVec(50, new int[]{3}, new double[]{2}),
+                new SparseVec(50, new int[]{7, 20, 21}, new double[]{1, -1, 0.5}),
+                new SparseVec(50, new int[]{}, new double[]{}),
+        };
+
+        double[][] expected = {
+                {1, 0, 0},
+                {0, 1, 0},
+                {0, 0, 1},
+                {1, 0, 0},
+        };
+
+        for (int epoch = 0; epoch < 20; epoch++) {
+            for (int i = 0; i < inputs.length; i++) {
+                Result dense = network1.evaluate(inputs[i].toDense(), new Vec(expected[i]));
+                Result sparse = network2.evaluate(inputs[i], new Vec(expected[i]));
+                assertEquals(dense.getCost(), sparse.getCost(), EPS);
+            }
+            network1.updateFromLearning();
+            network2.updateFromLearning();
+        }
+
+        for (SparseVec input : inputs)
+            assertArrayEquals(network1.evaluate(input.toDense()).getOutput().getData(), network2.evaluate(input).getOutput().getData(), EPS);
+    }
+
+    @Test
+    public void testFrozenLayersKeepTheirWeights() {
+        NeuralNetwork network =
+                new NeuralNetwork.Builder(4)
+                        .addLayer(new Layer(6, Sigmoid, 0.5))
+                        .addLayer(new Layer(5, Sigmoid, 0.1))
+                        .addLayer(new Layer(3, Softmax, 0.5))
+                        .setOptimizer(new GradientDescent(0.5))
+                        .initWeights(new Initializer.XavierNormal())
+                        .create();
+
+        List<Layer> layers = network.getLayers();
+        Vec input = new Vec(1, 0, 1, 1);
+        Vec expected = new Vec(0, 1, 0);
+
+        // Freezing the layer in the middle, the error still reaches the first
+        layers.get(2).setFrozen(true);
+        double[][][] before = weightsOf(layers);
+        network.evaluate(input, expected);
+        network.evaluateBatch(new Matrix(new double[][]{input.getData()}), new Matrix(new double[][]{expected.getData()}));
+        network.updateFromLearning();
+        double[][][] after = weightsOf(layers);
+
+        assertFalse(Arrays.deepEquals(before[1], after[1]));
+        assertTrue(Arrays.deepEquals(before[2], after[2]));
+        assertFalse(Arrays.deepEquals(before[3], after[3]));
+        assertEquals(layers.get(2).getBias(), new Vec(5).map(x -> 0.1));
+
+        // Nothing changes when all are frozen
+        for (int l = 1; l < layers.size(); l++)
+            layers.get(l).setFrozen(true);
+        network.evaluate(input, expected);
+        network.updateFromLearning();
+        assertTrue(Arrays.deepEquals(after, weightsOf(layers)));
+
+        // And the flags survive a copy
+        assertTrue(new NeuralNetwork.Builder(network).create().getLayers().get(2).isFrozen());
+    }
+
+    private static double[][][] weightsOf(List<Layer> layers) {
+        double[][][] result = new double[layers.size()][][];
+        for (int l = 1; l < layers.size(); l++)
+            result[l] = layers.get(l).getWeights().getData();
+        return result;
+    }
+
+    @Test
+    public void testLockFreeGivesSameResultAsUpdatingEverySample() {
+        NeuralNetwork network1 =
+                new NeuralNetwork.Builder(50)
+                        .addLayer(new Layer(6, Sigmoid, 0.5))
+                        .addLayer(new Layer(3, Softmax, 0.5))
+                        .setOptimizer(new GradientDescent(0.5))
+                        .initWeights(new Initializer.XavierNormal())
+                        .create();
+
+        NeuralNetwork network2 = new NeuralNetwork.Builder(network1).lockFree(true).create();
+        assertTrue(network2.isLockFree());
+
+        SparseVec[] inputs = {
+                new SparseVec(50, new int[]{0, 7, 49}, new double[]{1, 1, 1}),
+                new SparseVec(50, new int[]{3}, new double[]{2}),
+                new SparseVec(50, new int[]{7, 20, 21}, new double[]{1, -1, 0.5}),
+        };
+        Vec expected = new Vec(0, 1, 0);
+
+        for (int epoch = 0; epoch < 10; epoch++) {
+            for (SparseVec input : inputs) {
+                double cost1 = network1.evaluate(input, expected).getCost();
+                network1.updateFromLearning();
+                double cost2 = network2.evaluate(input, expected).getCost();
+                assertEquals(cost1, cost2, EPS);
+            }
+        }
+
+        // Only the rows of the inputs seen changed in the first layer
+        assertArrayEquals(network1.getLayers().get(1).getWeights().getData()[7], network2.getLayers().get(1).getWeights().getData()[7], EPS);
+    }
+
+    @Test
+    public void testTrainingACopyLeavesTheOriginal() {
+        NeuralNetwork network1 =
+                new NeuralNetwork.Builder(4)
+                        .addLayer(new Layer(3, Sigmoid, 0.5))
+                        .addLayer(new Layer(2, Softmax, 0.5))
+                        .initWeights(new Initializer.XavierNormal())
+                        .create();
+        double[] bias = network1.getLayers().get(2).getBias().getData().clone();
+        double[] weights = network1.getLayers().get(2).getWeights().getData()[0];
+
+        NeuralNetwork network2 = new NeuralNetwork.Builder(network1).lockFree(true).create();
+        for (int i = 0; i < 10; i++)
+            network2.evaluate(new Vec(1, 0.5, 0, -1), new Vec(1, 0));
+
+        assertArrayEquals(bias, network1.getLayers().get(2).getBias().getData(), 0);
+        assertArrayEquals(weights, network1.getLayers().get(2).getWeights().getData()[0], 0);
+    }
+
+    @Test
+    public void testLockFreeBatchUpdateIsInPlace() {
+        NeuralNetwork network =
+                new NeuralNetwork.Builder(2)
+                        .addLayer(new Layer(2, Sigmoid, 0.5))
+                        .setOptimizer(new GradientDescent(0.5))
+                        .lockFree(true)
+                        .initWeights(new Initializer.XavierNormal())
+                        .create();
+        Matrix weights = network.getLayers().get(1).getWeights();
+        double[] before = weights.getData()[0];
+
+        network.evaluateBatch(new Matrix(new double[][]{{1, 0}, {1, 1}}), new Matrix(new double[][]{{1, 0}, {1, 0}}));
+        network.updateFromLearning();
+
+        // The single version of the layer was updated
+        assertSame(weights, network.getLayers().get(1).getWeights());
+        assertNotEquals(before[0], weights.get(0, 0), EPS);
+    }
+
+    @Test
+    public void testLockFreeFromManyThreads() throws InterruptedException {
+        NeuralNetwork network =
+                new NeuralNetwork.Builder(20)
+                        .addLayer(new Layer(8, Sigmoid, 0.1))
+                        .addLayer(new Layer(2, Softmax, 0.1))
+                        .setOptimizer(new Momentum(0.05))
+                        .lockFree(true)
+                        .initWeights(new Initializer.XavierNormal())
+                        .create();
+
+        // The class is whether the single non-zero input is in the lower half
+        Runnable worker = () -> {
+            for (int i = 0; i < 2000; i++) {
+                int index = (i * 7) % 20;
+                network.evaluate(new SparseVec(20, new int[]{index}, new double[]{1}), index < 10 ? new Vec(1, 0) : new Vec(0, 1));
+            }
+        };
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++)
+            (threads[t] = new Thread(worker)).start();
+        for (Thread thread : threads)
+            thread.join();
+
+        for (int index = 0; index < 20; index++) {
+            Vec out = network.evaluate(new SparseVec(20, new int[]{index}, new double[]{1})).getOutput();
+            assertEquals(index < 10 ? 0 : 1, out.indexOfLargestElement());
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testLockFreeNeedsSupportingOptimizer() {
+        new NeuralNetwork.Builder(2)
+                .addLayer(new Layer(2, Sigmoid))
+                .setOptimizer(new Nesterov(0.1))
+                .lockFree(true)
+                .create();
+    }
+
+    @Test
+    public void testInferenceWorkspaceGivesSameOutputAsEvaluate() {
+        NeuralNetwork network =
+                new NeuralNetwork.Builder(4)
+                        .addLayer(new Layer(6, ReLU, 0.5))
+                        .addLayer(new Layer(5, Sigmoid, 0.1))
+                        .addLayer(new Layer(3, Softmax, 0.5))
+                        .initWeights(new Initializer.XavierNormal())
+                        .create();
+
+        InferenceWorkspace workspace = network.newInferenceWorkspace();
+
+        Vec i1 = new Vec(1, 0, 0.5, -1);
+        Vec i2 = new Vec(0.3, 0.2, 0.1, 0);
+
+        Vec out1 = workspace.evaluate(i1);
+        assertEquals(network.evaluate(i1).getOutput(), out1);
+
+        // The output buffer is reused by the next evaluation
+        Vec out2 = workspace.evaluate(i2);
+        assertSame(out1, out2);
+        assertEquals(network.evaluate(i2).getOutput(), out2);
+
+        // ... and it follows the network as it learns
+        network.evaluate(i1, new Vec(1, 0, 0));
+        network.updateFromLearning();
+        assertEquals(network.evaluate(i1).getOutput(), workspace.evaluate(i1));
+    }
+
+    @Test
+    public void testLearningFromManyThreadsMatchesSingleThread() throws InterruptedException {
+        NeuralNetwork network =
+                new NeuralNetwork.Builder(4)
+                        .addLayer(new Layer(6, ReLU, 0.5))
+                        .addLayer(new Layer(3, Softmax, 0.5))
+                        .setCostFunction(new CostFunction.Quadratic())
+                        .initWeights(new Initializer.XavierNormal())
+                        .create();
+        NeuralNetwork serial = new NeuralNetwork.Builder(network).create();
+
+        // Each thread learns from its own inputs, the outputs of the layers
+        // only live for the duration of each call
+        Vec[] inputs = new Vec[8];
+        Vec[] expected = new Vec[inputs.length];
+        for (int i = 0; i < inputs.length; i++) {
+            inputs[i] = new Vec(i, 1, -i * 0.5, 0.25);
+            expected[i] = new Vec(i % 3 == 0 ? 1 : 0, i % 3 == 1 ? 1 : 0, i % 3 == 2 ? 1 : 0);
+        }
+
+        Thread[] threads = new Thread[inputs.length];
+        for (int t = 0; t < threads.length; t++) {
+            int i = t;
+            (threads[t] = new Thread(() -> {
+                for (int n = 0; n < 100; n++)
+                    network.evaluate(inputs[i], expected[i]);
+            })).start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+        network.updateFromLearning();
+
+        for (int n = 0; n < 100; n++)
+            for (int i = 0; i < inputs.length; i++)
+                serial.evaluate(inputs[i], expected[i]);
+        serial.updateFromLearning();
+
+        for (Vec input : inputs)
+            assertArrayEquals(serial.evaluate(input).getOutput().getData(), network.evaluate(input).getOutput().getData(), EPS);
+    }
+
+    @Test
+    public void testUpdatePublishesNewWeightsAndLeavesOldVersionIntact() {
+        NeuralNetwork network =
+                new NeuralNetwork.Builder(3)
+                        .addLayer(new Layer(4, Sigmoid, 0.5))
+                        .addLayer(new Layer(2, Softmax, 0.5))
+                        .setOptimizer(new Momentum(0.1))
+                        .initWeights(new Initializer.XavierNormal())
+                        .create();
+
+        Vec input = new Vec(0.5, -1, 2);
+        Layer layer = network.getLayers().get(1);
+        Matrix weights = layer.getWeights();
+        Vec bias = layer.getBias();
+        double[][] weightsBefore = weights.getData();
+        double[] biasBefore = bias.getData().clone();
+        Vec outBefore = network.evaluate(input).getOutput();
+
+        network.evaluate(input, new Vec(1, 0));
+        network.updateFromLearning();
+
+        // A new version is published ...
+        assertNotSame(weights, layer.getWeights());
+        assertNotEquals(outBefore, network.evaluate(input).getOutput());
+
+        // ... while a reader still holding the old one sees it unchanged
+        for (int row = 0; row < weightsBefore.length; row++)
+            assertArrayEquals(weightsBefore[row], weights.getData()[row], 0);
+        assertArrayEquals(biasBefore, bias.getData(), 0);
+    }
+
+    @Test
+    public void testAsyncUpdateIsAtMostOneStepStale() {
+        NeuralNetwork network =
+                new NeuralNetwork.Builder(3)
+                        .addLayer(new Layer(4, Sigmoid, 0.5))
+                        .addLayer(new Layer(2, Softmax, 0.5))
+                        .setOptimizer(new GradientDescent(0.1))
+                        .initWeights(new Initializer.XavierNormal())
+                        .create();
+
+        // Two steps of gradients taken at the same weights, with plain gradient
+        // descent the same as one step over both batches at twice the rate
+        NeuralNetwork reference = new NeuralNetwork.Builder(network).setOptimizer(new GradientDescent(0.2)).create();
+
+        Matrix batch1 = new Matrix(new double[][]{{0.5, -1, 2}, {1, 0, 0.25}});
+        Matrix batch2 = new Matrix(new double[][]{{-0.5, 1, 0}, {0.3, 0.2, 0.1}});
+        Matrix expected = new Matrix(new double[][]{{1, 0}, {0, 1}});
+
+        List<Runnable> tasks = new ArrayList<>();
+        network.evaluateBatch(batch1, expected);
+        CompletableFuture<Void> update = network.updateFromLearningAsync(tasks::add);
+
+        // Learned while update 1 is pending: computed with the weights before it
+        network.evaluateBatch(batch2, expected);
+        assertFalse(update.isDone());
+        tasks.get(0).run();
+        assertTrue(update.isDone());
+        network.updateFromLearningAsync(Runnable::run);
+
+        reference.evaluateBatch(batch1, expected);
+        reference.evaluateBatch(batch2, expected);
+        reference.updateFromLearning();
+
+        Vec input = new Vec(0.1, 0.2, 0.3);
+        assertArrayEquals(reference.evaluate(input).getOutput().getData(), network.evaluate(input).getOutput().getData(), EPS);
+    }
+
+    @Test
+    public void testFloatPrecisionLearnsLikeDouble() {
+        double[][][] initWeights = {
+                {{0.15, 0.25}, {0.20, 0.30}},
+                {{0.40, 0.50}, {0.45, 0.55}},
+        };
+
+        NeuralNetwork network =
+                new NeuralNetwork.Builder(2)
+                        .addLayer(new Layer(2, Sigmoid, new Vec(0.35, 0.35)))
+                        .addLayer(new Layer(2, Sigmoid, new Vec(0.60, 0.60)))
+                        .setCostFunction(new CostFunction.HalfQuadratic())
+                        .setOptimizer(new Momentum(0.5))
+                        .precision(Precision.FLOAT)
+                        .initWeights((weights, layer) -> weights.fillFrom(new Matrix(initWeights[layer])))
+                        .create();
+
+        assertEquals(Precision.FLOAT, network.getLayers().get(1).getWeights().precision());
+
+        Vec expected = new Vec(0.01, 0.99);
+        Vec input = new Vec(0.05, 0.1);
+
+        Result result = network.evaluate(input, expected);
+        assertEquals(0.29837110, result.getCost(), 0.000001);
+
+        for (int i = 0; i < 100; i++) {
+            network.updateFromLearning();
+            network.evaluate(input, expected);
+        }
+
+        // Converting to double keeps the learned weights
+        NeuralNetwork doubleNetwork = new NeuralNetwork.Builder(network).precision(Precision.DOUBLE).create();
+        assertEquals(Precision.DOUBLE, doubleNetwork.getLayers().get(1).getWeights().precision());
+        assertArrayEquals(
+                network.evaluate(input).getOutput().getData(),
+                doubleNetwork.evaluate(input).getOutput().getData(),
+                0);
+
+        assertTrue(network.evaluate(input, expected).getCost() < 0.01);
+    }
+
+    @Test
+    public void testOffHeapLayerLearnsLikeHeap() {
+        NeuralNetwork heap =
+                new NeuralNetwork.Builder(4)
+                        .addLayer(new Layer(6, Leaky_ReLU, 0.5))
+                        .addLayer(new Layer(3, Softmax, 0.5))
+                        .setCostFunction(new CostFunction.Quadratic())
+                        .setOptimizer(new Momentum(0.1))
+                        .initWeights(new Initializer.XavierNormal())
+                        .create();
+        NeuralNetwork offHeap = new NeuralNetwork.Builder(heap).offHeap(1).create();
+
+        assertTrue(offHeap.getLayers().get(1).getWeights().isOffHeap());
+        assertFalse(offHeap.getLayers().get(2).getWeights().isOffHeap());
+
+        Matrix inputs = new Matrix(8, 4).map(x -> Math.random());
+        Matrix expected = new Matrix(8, 3);
+        for (int row = 0; row < expected.rows(); row++)
+            expected.set(row, row % 3, 1);
+
+        for (int i = 0; i < 10; i++) {
+            assertArrayEquals(heap.evaluateBatch(inputs, expected).getCosts(), offHeap.evaluateBatch(inputs, expected).getCosts(), EPS);
+            heap.evaluate(inputs.getRow(i % 8), expected.getRow(i % 8));
+            offHeap.evaluate(inputs.getRow(i % 8), expected.getRow(i % 8));
+            heap.updateFromLearning();
+            offHeap.updateFromLearning();
+        }
+
+        // Updated copies stay off heap, and so does a copy of the network
+        assertTrue(offHeap.getLayers().get(1).getWeights().isOffHeap());
+        assertTrue(new NeuralNetwork.Builder(offHeap).create().getLayers().get(1).getWeights().isOffHeap());
+        for (int row = 0; row < 4; row++)
+            assertArrayEquals(heap.getLayers().get(1).getWeights().getData()[row], offHeap.getLayers().get(1).getWeights().getData()[row], EPS);
+    }
+
+    @Test
+    public void testOffHeapWeightsAlternateBetweenTwoBuffers() {
+        NeuralNetwork network =
+                new NeuralNetwork.Builder(3)
+                        .addLayer(new Layer(2, Sigmoid, 0.5))
+                        .setOptimizer(new Momentum(0.1))
+                        .offHeap(1)
+                        .create();
+        Layer layer = network.getLayers().get(1);
+
+        Matrix[] versions = new Matrix[6];
+        for (int i = 0; i < versions.length; i++) {
+            network.evaluate(new Vec(1, 0.5, -1), new Vec(1, 0));
+            network.updateFromLearning();
+            versions[i] = layer.getWeights();
+        }
+
+        // The first two updates make the two buffers, later ones reuse them
+        assertNotSame(versions[0], versions[1]);
+        for (int i = 2; i < versions.length; i++) {
+            assertNotSame(versions[i - 1], versions[i]);
+            assertSame(versions[i - 2], versions[i]);
+        }
+    }
+
+    @Test
+    public void testOffHeapWeightsHeldByAnEvaluationAreNotReused() {
+        NeuralNetwork network =
+                new NeuralNetwork.Builder(3)
+                        .addLayer(new Layer(2, Sigmoid, 0.5))
+                        .setOptimizer(new Momentum(0.1))
+                        .offHeap(1)
+                        .create();
+        network.evaluate(new Vec(1, 0.5, -1), new Vec(1, 0));
+        network.updateFromLearning();
+
+        // As an evaluation running across several updates
+        Layer.Parameters[] held = network.acquireParameters();
+        double[][] seen = held[1].weights.getData();
+        for (int i = 0; i < 4; i++) {
+            network.evaluate(new Vec(1, 0.5, -1), new Vec(1, 0));
+            network.updateFromLearning();
+            assertNotSame(held[1].weights, network.getLayers().get(1).getWeights());
+        }
+
+        assertTrue(Arrays.deepEquals(seen, held[1].weights.getData()));
+        NeuralNetwork.releaseParameters(held);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testOffHeapLayerMustExist() {
+        new NeuralNetwork.Builder(2)
+                .addLayer(new Layer(2, Sigmoid))
+                .offHeap(2)
+                .create();
+    }
+
 }
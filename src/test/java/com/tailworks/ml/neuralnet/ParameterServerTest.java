@@ -0,0 +1,239 @@
+package com.tailworks.ml.neuralnet;
+
+import com.tailworks.ml.neuralnet.math.Matrix;
+import com.tailworks.ml.neuralnet.math.Precision;
+import com.tailworks.ml.neuralnet.math.Vec;
+import com.tailworks.ml.neuralnet.optimizer.Momentum;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static com.tailworks.ml.neuralnet.Activation.Sigmoid;
+import static com.tailworks.ml.neuralnet.Activation.Softmax;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ParameterServerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final double EPS = 0.00001;
+    private static final int WORKERS = 2;
+    private static final int ROUNDS = 10;
+
+    private final Matrix inputs = new Matrix(16, 4).map(x -> Math.random());
+    private final Matrix expected = new Matrix(16, 3);
+
+    {
+        for (int row = 0; row < expected.rows(); row++)
+            expected.set(row, row % 3, 1);
+    }
+
+    @Test
+    public void testWorkersLearnLikeSingleNode() throws Exception {
+        NeuralNetwork single = network();
+        NeuralNetwork server = new NeuralNetwork.Builder(single).create();
+        NeuralNetwork[] workers = train(server, Precision.DOUBLE);
+
+        // The whole mini-batch on a single node, each worker had half of it
+        for (int round = 0; round < ROUNDS; round++) {
+            single.evaluateBatch(inputs, expected);
+            single.updateFromLearning();
+        }
+
+        for (int row = 0; row < inputs.rows(); row++) {
+            Vec input = inputs.getRow(row);
+            double[] out = single.evaluate(input).getOutput().getData();
+            assertArrayEquals(out, server.evaluate(input).getOutput().getData(), EPS);
+            for (NeuralNetwork worker : workers)
+                assertArrayEquals(out, worker.evaluate(input).getOutput().getData(), EPS);
+        }
+    }
+
+    @Test
+    public void testCompressedGradients() throws Exception {
+        NeuralNetwork single = network();
+        NeuralNetwork server = new NeuralNetwork.Builder(single).create();
+        train(server, Precision.FLOAT);
+
+        for (int round = 0; round < ROUNDS; round++) {
+            single.evaluateBatch(inputs, expected);
+            single.updateFromLearning();
+        }
+
+        // Close to, but not exactly, the single node result
+        for (int row = 0; row < inputs.rows(); row++) {
+            Vec input = inputs.getRow(row);
+            assertArrayEquals(single.evaluate(input).getOutput().getData(), server.evaluate(input).getOutput().getData(), 0.0001);
+        }
+    }
+
+    @Test
+    public void testWorkerProcesses() throws Exception {
+        NeuralNetwork single = network();
+        NeuralNetwork network = new NeuralNetwork.Builder(single).create();
+        Path model = folder.newFile().toPath();
+        ModelFile.save(network, model);
+
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        try (ParameterServer server = new ParameterServer(network, WORKERS, 0)) {
+            Thread serving = new Thread(() -> {
+                try {
+                    server.serve();
+                } catch (Exception e) {
+                    failure.set(e);
+                }
+            });
+            serving.start();
+
+            // One JVM per worker, each training ROUNDS epochs of one mini-batch on its shard
+            int shard = inputs.rows() / WORKERS;
+            List<Process> processes = new ArrayList<>();
+            List<Path> logs = new ArrayList<>();
+            for (int w = 0; w < WORKERS; w++) {
+                Path data = folder.newFile().toPath();
+                writeShard(data, w * shard, shard);
+                logs.add(folder.newFile().toPath());
+                processes.add(new ProcessBuilder(
+                        Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                        "-cp", System.getProperty("java.class.path"),
+                        DistributedWorker.class.getName(),
+                        InetAddress.getLoopbackAddress().getHostAddress(), String.valueOf(server.getPort()),
+                        model.toString(), data.toString(), String.valueOf(ROUNDS), String.valueOf(shard))
+                        .redirectErrorStream(true)
+                        .redirectOutput(logs.get(w).toFile())
+                        .start());
+            }
+
+            for (int w = 0; w < WORKERS; w++) {
+                assertTrue(processes.get(w).waitFor(60, TimeUnit.SECONDS));
+                List<String> log = Files.readAllLines(logs.get(w));
+                assertEquals(log.toString(), 0, processes.get(w).exitValue());
+                assertEquals(ROUNDS, log.size());
+            }
+            serving.join();
+        }
+        assertNull(failure.get());
+
+        for (int round = 0; round < ROUNDS; round++) {
+            single.evaluateBatch(inputs, expected);
+            single.updateFromLearning();
+        }
+
+        for (int row = 0; row < inputs.rows(); row++) {
+            Vec input = inputs.getRow(row);
+            assertArrayEquals(single.evaluate(input).getOutput().getData(), network.evaluate(input).getOutput().getData(), EPS);
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testUnknownGradientPrecision() throws Exception {
+        try (ParameterServer server = new ParameterServer(network(), 1, 0)) {
+            try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getPort())) {
+                new DataOutputStream(socket.getOutputStream()).writeInt(7);
+                server.serve();
+            }
+        }
+    }
+
+    @Test(expected = EOFException.class)
+    public void testDisconnectInTheMiddleOfGradients() throws Exception {
+        try (ParameterServer server = new ParameterServer(network(), 1, 0)) {
+            try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getPort())) {
+                DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                out.writeInt(Precision.DOUBLE.ordinal());
+                out.writeInt(WireFormat.GRADIENTS);
+                out.writeInt(1);    // The samples of layer 1, but no deltas
+                socket.shutdownOutput();
+                server.serve();
+            }
+        }
+    }
+
+    // -------------------------------------------------------------------------
+
+    // Writes rows of the samples as little-endian doubles, the inputs then the expected outputs of each
+    private void writeShard(Path file, int from, int rows) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(rows * (inputs.cols() + expected.cols()) * Double.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        for (int row = from; row < from + rows; row++) {
+            for (double value : inputs.getRow(row).getData())
+                buffer.putDouble(value);
+            for (double value : expected.getRow(row).getData())
+                buffer.putDouble(value);
+        }
+        Files.write(file, buffer.array());
+    }
+
+    private static NeuralNetwork network() {
+        return new NeuralNetwork.Builder(4)
+                .addLayer(new Layer(6, Sigmoid, 0.5))
+                .addLayer(new Layer(3, Softmax, 0.5))
+                .setOptimizer(new Momentum(0.1))
+                .initWeights(new Initializer.XavierNormal())
+                .create();
+    }
+
+    // Trains ROUNDS rounds with each worker on its own shard of the rows, returns the networks of the workers
+    private NeuralNetwork[] train(NeuralNetwork network, Precision gradientPrecision) throws Exception {
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        NeuralNetwork[] workers = new NeuralNetwork[WORKERS];
+        Thread[] threads = new Thread[WORKERS];
+        ForkJoinPool pool = new ForkJoinPool(2);
+
+        try (ParameterServer server = new ParameterServer(network, WORKERS, 0)) {
+            Thread serving = new Thread(() -> {
+                try {
+                    server.serve();
+                } catch (Exception e) {
+                    failure.set(e);
+                }
+            });
+            serving.start();
+
+            int shard = inputs.rows() / WORKERS;
+            for (int w = 0; w < WORKERS; w++) {
+                // Starts from other weights, the ones of the server are taken over
+                workers[w] = network();
+                NeuralNetwork worker = workers[w];
+                Matrix shardInputs = inputs.subMatrix(w * shard, 0, shard, inputs.cols());
+                Matrix shardExpected = expected.subMatrix(w * shard, 0, shard, expected.cols());
+                (threads[w] = new Thread(() -> {
+                    try (DistributedTrainer trainer = new DistributedTrainer(worker, InetAddress.getLoopbackAddress().getHostAddress(), server.getPort(), pool, gradientPrecision)) {
+                        for (int round = 0; round < ROUNDS; round++)
+                            trainer.train(shardInputs, shardExpected);
+                    } catch (Exception e) {
+                        failure.set(e);
+                    }
+                })).start();
+            }
+
+            for (Thread thread : threads)
+                thread.join();
+            serving.join();
+        } finally {
+            pool.shutdown();
+        }
+
+        assertNull(failure.get());
+        return workers;
+    }
+}
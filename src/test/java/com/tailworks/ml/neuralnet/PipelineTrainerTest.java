@@ -0,0 +1,87 @@
+package com.tailworks.ml.neuralnet;
+
+import com.tailworks.ml.neuralnet.math.Matrix;
+import com.tailworks.ml.neuralnet.optimizer.Momentum;
+import org.junit.Test;
+
+import static com.tailworks.ml.neuralnet.Activation.Leaky_ReLU;
+import static com.tailworks.ml.neuralnet.Activation.Sigmoid;
+import static com.tailworks.ml.neuralnet.Activation.Softmax;
+import static org.junit.Assert.assertArrayEquals;
+
+public class PipelineTrainerTest {
+
+    private static final double EPS = 0.00001;
+
+    @Test
+    public void testTrainGivesSameResultAsEvaluateBatch() {
+        NeuralNetwork network1 = network();
+        NeuralNetwork network2 = new NeuralNetwork.Builder(network1).create();
+
+        try (PipelineTrainer trainer = new PipelineTrainer(network2, 3, 4)) {
+            assertLearnsLikeEvaluateBatch(network1, network2, trainer);
+        }
+    }
+
+    @Test
+    public void testUnevenStagesAndFrozenLayers() {
+        NeuralNetwork network1 = network();
+        network1.getLayers().get(1).setFrozen(true);
+        network1.getLayers().get(3).setFrozen(true);
+        NeuralNetwork network2 = new NeuralNetwork.Builder(network1).create();
+
+        // More micro-batches than some mini-batches have samples
+        try (PipelineTrainer trainer = new PipelineTrainer(network2, new int[]{1, 3, 2}, 30)) {
+            assertLearnsLikeEvaluateBatch(network1, network2, trainer);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testStagesMustCoverAllLayers() {
+        new PipelineTrainer(network(), new int[]{2, 2}, 4);
+    }
+
+    // -------------------------------------------------------------------------
+
+    private static NeuralNetwork network() {
+        return new NeuralNetwork.Builder(4)
+                .addLayer(new Layer(6, Sigmoid, 0.5))
+                .addLayer(new Layer(6, Leaky_ReLU, 0.1))
+                .addLayer(new Layer(5, Sigmoid, 0.5))
+                .addLayer(new Layer(5, Leaky_ReLU, 0.1))
+                .addLayer(new Layer(4, Sigmoid, 0.5))
+                .addLayer(new Layer(3, Softmax, 0.5))
+                .setCostFunction(new CostFunction.Quadratic())
+                .setOptimizer(new Momentum(0.1))
+                .initWeights(new Initializer.XavierNormal())
+                .create();
+    }
+
+    private static void assertLearnsLikeEvaluateBatch(NeuralNetwork network1, NeuralNetwork network2, PipelineTrainer trainer) {
+        Matrix inputs = new Matrix(23, 4).map(x -> Math.random());
+        Matrix expected = new Matrix(23, 3);
+        for (int row = 0; row < expected.rows(); row++)
+            expected.set(row, row % 3, 1);
+
+        for (int epoch = 0; epoch < 10; epoch++) {
+            for (int row = 0; row < inputs.rows(); row += 10) {
+                int rows = Math.min(10, inputs.rows() - row);
+                Matrix batch = inputs.subMatrix(row, 0, rows, inputs.cols());
+                Matrix batchExpected = expected.subMatrix(row, 0, rows, expected.cols());
+
+                double[] costs = network1.evaluateBatch(batch, batchExpected).getCosts();
+                network1.updateFromLearning();
+
+                assertArrayEquals(costs, trainer.train(batch, batchExpected), EPS);
+            }
+        }
+
+        for (int l = 1; l < network1.getLayers().size(); l++) {
+            double[][] w1 = network1.getLayers().get(l).getWeights().getData();
+            double[][] w2 = network2.getLayers().get(l).getWeights().getData();
+            for (int row = 0; row < w1.length; row++)
+                assertArrayEquals(w1[row], w2[row], EPS);
+            assertArrayEquals(network1.getLayers().get(l).getBias().getData(), network2.getLayers().get(l).getBias().getData(), EPS);
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package com.tailworks.ml.neuralnet;
+
+import com.tailworks.ml.neuralnet.math.Matrix;
+import com.tailworks.ml.neuralnet.math.Precision;
+import com.tailworks.ml.neuralnet.math.SparseVec;
+import com.tailworks.ml.neuralnet.math.Vec;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class StripedDeltasTest {
+
+    @Test
+    public void testConcurrentAddsAreAllCounted() throws InterruptedException {
+        StripedDeltas deltas = new StripedDeltas(3, 2, Precision.DOUBLE);
+        int threads = 8, adds = 2000;
+
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            Thread worker = new Thread(() -> {
+                for (int i = 0; i < adds; i++) {
+                    StripedDeltas.Stripe stripe = deltas.acquire();
+                    try {
+                        stripe.addOuterProduct(new Vec(1, 2, 3), new Vec(1, -1));
+                    } finally {
+                        stripe.release();
+                    }
+                }
+            });
+            workers.add(worker);
+            worker.start();
+        }
+        for (Thread worker : workers)
+            worker.join();
+
+        Matrix dW = new Matrix(3, 2);
+        Vec dB = new Vec(2);
+        assertEquals(threads * adds, deltas.drainTo(dW, dB));
+        assertArrayEquals(new double[]{3.0 * threads * adds, -3.0 * threads * adds}, dW.getData()[2], 0);
+        assertArrayEquals(new double[]{threads * adds, -threads * adds}, dB.getData(), 0);
+
+        // Drained
+        assertEquals(0, deltas.drainTo(dW, dB));
+        assertTrue(deltas.stripeCount() <= StripedDeltas.MAX_STRIPES);
+    }
+
+    @Test
+    public void testOneStripeWithoutContention() {
+        StripedDeltas deltas = new StripedDeltas(3, 2, Precision.DOUBLE);
+        assertEquals(0, deltas.stripeCount());
+
+        for (int i = 0; i < 10; i++) {
+            StripedDeltas.Stripe stripe = deltas.acquire();
+            stripe.addOuterProduct(new Vec(1, 2, 3), new Vec(1, -1));
+            stripe.release();
+        }
+
+        assertEquals(1, deltas.stripeCount());
+    }
+
+    @Test
+    public void testStripesOfLargeWeightsAreCapped() {
+        assertEquals(StripedDeltas.MAX_STRIPES, StripedDeltas.maxStripes(3, 2, Precision.DOUBLE));
+
+        // A single stripe is larger than the cap, there is still one
+        assertEquals(1, StripedDeltas.maxStripes(1 << 20, 64, Precision.DOUBLE));
+
+        int rows = (int) (StripedDeltas.MAX_STRIPE_BYTES / 2 / (64 * Double.BYTES + 5));
+        assertEquals(Math.min(2, StripedDeltas.MAX_STRIPES), StripedDeltas.maxStripes(rows - 1, 64, Precision.DOUBLE));
+    }
+
+    @Test
+    public void testSparseDeltasOnlyTouchTheirRows() {
+        StripedDeltas deltas = new StripedDeltas(4, 2, Precision.DOUBLE);
+        StripedDeltas.Stripe stripe = deltas.acquire();
+        stripe.addOuterProduct(new SparseVec(4, new int[]{1, 3}, new double[]{2, -1}), new Vec(1, 0.5));
+        stripe.release();
+
+        Matrix dW = new Matrix(4, 2).map(a -> 7);
+        Vec dB = new Vec(2);
+        assertEquals(1, deltas.copyTo(dW, dB));
+        assertEquals(1, deltas.drainTo(dW, dB));
+        assertArrayEquals(new double[]{7, 7}, dW.getData()[0], 0);
+        assertArrayEquals(new double[]{11, 9}, dW.getData()[1], 0);
+        assertArrayEquals(new double[]{5, 6}, dW.getData()[3], 0);
+        assertArrayEquals(new double[]{2, 1}, dB.getData(), 0);
+
+        // The touched rows are cleared, then a dense add touches them all
+        stripe = deltas.acquire();
+        stripe.addOuterProduct(new Vec(1, 1, 1, 1), new Vec(1, 1));
+        stripe.release();
+
+        dW = new Matrix(4, 2);
+        assertEquals(1, deltas.drainTo(dW, new Vec(2)));
+        for (double[] row : dW.getData())
+            assertArrayEquals(new double[]{1, 1}, row, 0);
+    }
+
+    @Test
+    public void testAwaitWritersWaitsForRelease() throws InterruptedException {
+        StripedDeltas deltas = new StripedDeltas(1, 1, Precision.DOUBLE);
+        StripedDeltas.Stripe stripe = deltas.acquire();
+
+        Thread drainer = new Thread(deltas::awaitWriters);
+        drainer.start();
+        drainer.join(100);
+        assertTrue(drainer.isAlive());
+
+        stripe.add(new Matrix(1, 1).map(a -> 1), new Vec(1), 1);
+        stripe.release();
+        drainer.join(10_000);
+        assertFalse(drainer.isAlive());
+        assertEquals(1, deltas.drainTo(new Matrix(1, 1), new Vec(1)));
+    }
+
+    @Test
+    public void testClear() {
+        StripedDeltas deltas = new StripedDeltas(1, 1, Precision.FLOAT);
+        StripedDeltas.Stripe stripe = deltas.acquire();
+        stripe.add(new Matrix(1, 1), new Vec(1), 5);
+        stripe.release();
+
+        deltas.clear();
+        assertEquals(0, deltas.drainTo(new Matrix(1, 1), new Vec(1)));
+    }
+}
@@ -0,0 +1,96 @@
+package com.tailworks.ml.neuralnet;
+
+import com.tailworks.ml.neuralnet.math.Matrix;
+import com.tailworks.ml.neuralnet.optimizer.Momentum;
+import org.junit.Test;
+
+import java.util.concurrent.ForkJoinPool;
+
+import static com.tailworks.ml.neuralnet.Activation.ReLU;
+import static com.tailworks.ml.neuralnet.Activation.Sigmoid;
+import static com.tailworks.ml.neuralnet.Activation.Softmax;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TrainerTest {
+
+    private static final double EPS = 0.00001;
+
+    @Test
+    public void testTrainGivesSameResultAsEvaluateBatch() {
+        NeuralNetwork network1 =
+                new NeuralNetwork.Builder(4)
+                        .addLayer(new Layer(6, Sigmoid, 0.5))
+                        .addLayer(new Layer(5, ReLU, 0.1))
+                        .addLayer(new Layer(3, Softmax, 0.5))
+                        .setCostFunction(new CostFunction.Quadratic())
+                        .setOptimizer(new Momentum(0.1))
+                        .initWeights(new Initializer.XavierNormal())
+                        .create();
+
+        NeuralNetwork network2 = new NeuralNetwork.Builder(network1).create();
+
+        Matrix inputs = new Matrix(23, 4).map(x -> Math.random());
+        Matrix expected = new Matrix(23, 3);
+        for (int row = 0; row < expected.rows(); row++)
+            expected.set(row, row % 3, 1);
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            Trainer trainer = new Trainer(network2, pool, 2);
+            for (int epoch = 0; epoch < 20; epoch++) {
+                double[] costs = network1.evaluateBatch(inputs, expected).getCosts();
+                network1.updateFromLearning();
+
+                assertArrayEquals(costs, trainer.train(inputs, expected), EPS);
+            }
+        } finally {
+            pool.shutdown();
+        }
+
+        for (int l = 1; l < network1.getLayers().size(); l++) {
+            double[][] w1 = network1.getLayers().get(l).getWeights().getData();
+            double[][] w2 = network2.getLayers().get(l).getWeights().getData();
+            for (int row = 0; row < w1.length; row++)
+                assertArrayEquals(w1[row], w2[row], EPS);
+            assertArrayEquals(network1.getLayers().get(l).getBias().getData(), network2.getLayers().get(l).getBias().getData(), EPS);
+        }
+    }
+
+    @Test
+    public void testTrainEpochLowersCost() {
+        trainEpochLowersCost(false);
+    }
+
+    @Test
+    public void testTrainEpochWithAsyncUpdatesLowersCost() {
+        trainEpochLowersCost(true);
+    }
+
+    private static void trainEpochLowersCost(boolean async) {
+        NeuralNetwork network =
+                new NeuralNetwork.Builder(2)
+                        .addLayer(new Layer(8, Sigmoid, 0.1))
+                        .addLayer(new Layer(1, Sigmoid, 0.1))
+                        .setOptimizer(new Momentum(0.5))
+                        .initWeights(new Initializer.XavierNormal())
+                        .create();
+
+        // x + y > 1
+        Matrix inputs = new Matrix(200, 2).map(x -> Math.random());
+        Matrix expected = new Matrix(200, 1);
+        for (int row = 0; row < inputs.rows(); row++)
+            expected.set(row, 0, inputs.get(row, 0) + inputs.get(row, 1) > 1 ? 1 : 0);
+
+        Trainer trainer = new Trainer(network);
+        trainer.setAsyncUpdates(async);
+        double first = trainer.trainEpoch(inputs, expected, 32);
+        double last = first;
+        for (int epoch = 0; epoch < 50; epoch++)
+            last = trainer.trainEpoch(inputs, expected, 32);
+
+        assertTrue(first + " -> " + last, last < first);
+        assertEquals(200, network.evaluateBatch(inputs).size());
+    }
+}
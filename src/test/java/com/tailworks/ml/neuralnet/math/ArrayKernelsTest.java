@@ -0,0 +1,83 @@
+package com.tailworks.ml.neuralnet.math;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the kernels in use (SIMD when available) against the scalar ones,
+ * for lengths that do and do not fill whole vectors and at odd offsets.
+ */
+public class ArrayKernelsTest {
+
+    private static final double EPS = 0.000000001;
+
+    private final ArrayKernels kernels = ArrayKernels.INSTANCE;
+    private final ArrayKernels scalar = new ScalarKernels();
+    private final Random rnd = new Random(17);
+
+    @Test
+    public void testDot() {
+        for (int n = 0; n < 40; n++) {
+            double[] x = random(n + 3), y = random(n + 1);
+            assertEquals(scalar.dot(x, 3, y, 1, n), kernels.dot(x, 3, y, 1, n), EPS);
+        }
+    }
+
+    @Test
+    public void testAxpyMulAndScale() {
+        for (int n = 0; n < 40; n++) {
+            double[] x = random(n + 2);
+            double[] y1 = random(n + 1), y2 = y1.clone();
+
+            scalar.axpy(-0.7, x, 2, y1, 1, n);
+            kernels.axpy(-0.7, x, 2, y2, 1, n);
+            assertArrayEquals(y1, y2, EPS);
+
+            scalar.mul(x, 2, y1, 1, n);
+            kernels.mul(x, 2, y2, 1, n);
+            assertArrayEquals(y1, y2, EPS);
+
+            scalar.scale(3.5, y1, 1, n);
+            kernels.scale(3.5, y2, 1, n);
+            assertArrayEquals(y1, y2, EPS);
+        }
+    }
+
+    @Test
+    public void testGemmTile() {
+        int kc = 37;
+        double[] a = random(4 * kc + 4), b = random(4 * kc + 8);
+        double[] tile1 = new double[16], tile2 = new double[16];
+
+        scalar.gemmTile(kc, a, 4, b, 8, tile1);
+        kernels.gemmTile(kc, a, 4, b, 8, tile2);
+        assertArrayEquals(tile1, tile2, EPS);
+    }
+
+    @Test
+    public void testExp() {
+        for (int n = 0; n < 40; n++) {
+            double[] x = random(n + 2);
+            for (int i = 0; i < x.length; i++)
+                x[i] *= 100;
+            if (n > 10)
+                x[7] = -800;   // Outside of the polynomial range, in the middle of a vector
+            double[] y1 = new double[n + 1], y2 = new double[n + 1];
+
+            scalar.exp(x, 2, y1, 1, n);
+            kernels.exp(x, 2, y2, 1, n);
+            assertArrayEquals(y1, y2, 0);
+        }
+    }
+
+    private double[] random(int n) {
+        double[] result = new double[n];
+        for (int i = 0; i < n; i++)
+            result[i] = rnd.nextDouble() - 0.5;
+        return result;
+    }
+}
@@ -0,0 +1,45 @@
+package com.tailworks.ml.neuralnet.math;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static com.tailworks.ml.neuralnet.math.FastMath.EXP_MAX_RELATIVE_ERROR;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FastMathTest {
+
+    @Test
+    public void testExpErrorBound() {
+        Random rnd = new Random(3);
+        for (int i = 0; i < 100000; i++) {
+            double x = (rnd.nextDouble() - 0.5) * (i % 2 == 0 ? 40 : 1500);
+            double exact = Math.exp(x);
+            if (exact == 0 || Double.isInfinite(exact))
+                assertEquals(exact, FastMath.exp(x), 0);
+            else
+                assertTrue("exp(" + x + ")", Math.abs(FastMath.exp(x) / exact - 1) < EXP_MAX_RELATIVE_ERROR);
+        }
+    }
+
+    @Test
+    public void testExpSpecialValues() {
+        assertEquals(1, FastMath.exp(0), 0);
+        assertEquals(Double.POSITIVE_INFINITY, FastMath.exp(1000), 0);
+        assertEquals(Double.POSITIVE_INFINITY, FastMath.exp(Double.POSITIVE_INFINITY), 0);
+        assertEquals(0, FastMath.exp(Double.NEGATIVE_INFINITY), 0);
+        assertEquals(0, FastMath.exp(-1000), 0);
+        assertTrue(Double.isNaN(FastMath.exp(Double.NaN)));
+    }
+
+    @Test
+    public void testExpArray() {
+        double[] x = {-3, -1, 0, 0.5, 1, 2, 4, 8, 16};
+        double[] y = x.clone();
+
+        FastMath.exp(y, y, y.length);
+        for (int i = 0; i < x.length; i++)
+            assertEquals(Math.exp(x[i]), y[i], Math.exp(x[i]) * EXP_MAX_RELATIVE_ERROR);
+    }
+}
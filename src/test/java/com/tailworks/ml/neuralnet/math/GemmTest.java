@@ -0,0 +1,131 @@
+package com.tailworks.ml.neuralnet.math;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class GemmTest {
+
+    private static final double EPS = 0.0000001;
+
+    private final Random rnd = new Random(4711);
+
+    @Test
+    public void testSmallAndBlockedProductsMatchNaive() {
+        int[][] shapes = {
+                {1, 1, 1}, {1, 7, 5}, {3, 2, 9}, {5, 1, 6},
+                {4, 4, 4}, {37, 41, 43}, {64, 300, 5}, {130, 70, 1030}
+        };
+        for (int[] shape : shapes) {
+            Matrix a = random(shape[0], shape[1]);
+            Matrix b = random(shape[1], shape[2]);
+            assertEqual(naive(a, b), a.multiply(b));
+        }
+    }
+
+    @Test
+    public void testTransposedOperands() {
+        Matrix a = random(70, 50);
+        Matrix b = random(70, 90);
+        Matrix c = random(50, 90);
+
+        assertEqual(naive(a.transpose(), b), a.transposeMultiply(b));
+        assertEqual(naive(b, c.transpose()), b.multiplyTransposed(c));
+        assertEqual(naive(c.transpose(), a.transpose()), c.transpose().multiply(a.transpose()));
+    }
+
+    @Test
+    public void testAlphaBetaAndViews() {
+        Matrix a = random(40, 60);
+        Matrix b = random(60, 50);
+        Matrix c = random(50, 50);
+        Matrix block = c.subMatrix(5, 5, 40, 40);
+
+        Matrix expected = block.copy().mul(0.5).add(naive(a, b.subMatrix(0, 10, 60, 40)).mul(2));
+        Gemm.gemm(2, a, b.subMatrix(0, 10, 60, 40), 0.5, block);
+
+        assertEqual(expected, block);
+    }
+
+    @Test
+    public void testFloatOperands() {
+        Matrix a = random(37, 60).copy(Precision.FLOAT);
+        Matrix b = random(60, 45);
+        Matrix c = new Matrix(37, 45, Precision.FLOAT);
+
+        Gemm.gemm(1, a, b, 0, c);
+        assertEqual(naive(a, b), c, 0.00001);
+
+        Matrix small = random(2, 60).copy(Precision.FLOAT);
+        assertEqual(naive(small, b.copy(Precision.FLOAT)), small.multiply(b.copy(Precision.FLOAT)), 0.00001);
+    }
+
+    @Test
+    public void testSplitProductsMatchSerial() {
+        Matrix tall = random(90, 30);
+        Matrix wide = random(30, 130);
+        Vec x = new Vec(90).map(v -> rnd.nextDouble() - 0.5);
+        SparseVec sparse = new SparseVec(90, new int[]{3, 17, 40, 89}, new double[]{0.5, -1, 2, 0.25});
+
+        Matrix expectedTall = tall.multiply(wide);
+        Matrix expectedWide = wide.transposeMultiply(wide);
+        Vec expectedVecMat = x.mul(tall);
+        Vec expectedSparse = sparse.mul(tall);
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        ForkJoinPool previousPool = Parallelism.getPool();
+        long previousThreshold = Parallelism.getThreshold();
+        try {
+            Parallelism.setPool(pool);
+            Parallelism.setThreshold(0);
+
+            assertEqual(expectedTall, tall.multiply(wide));
+            assertEqual(expectedWide, wide.transposeMultiply(wide));
+            assertArrayEquals(expectedVecMat.getData(), x.mul(tall).getData(), EPS);
+            assertArrayEquals(expectedSparse.getData(), sparse.mul(tall).getData(), EPS);
+
+            double[] y = new double[tall.rows()];
+            Gemm.matVec(1, tall, expectedVecMat.getData(), y);
+            for (int i = 0; i < tall.rows(); i++)
+                assertEquals(new Vec(tall.getData()[i]).dot(expectedVecMat), y[i], EPS);
+        } finally {
+            Parallelism.setPool(previousPool);
+            Parallelism.setThreshold(previousThreshold);
+            pool.shutdown();
+        }
+    }
+
+    // -------------------------------------------------------------------------
+
+    private Matrix random(int rows, int cols) {
+        return new Matrix(rows, cols).map(x -> rnd.nextDouble() - 0.5);
+    }
+
+    private static Matrix naive(Matrix a, Matrix b) {
+        Matrix c = new Matrix(a.rows(), b.cols());
+        for (int i = 0; i < a.rows(); i++)
+            for (int j = 0; j < b.cols(); j++) {
+                double sum = 0;
+                for (int p = 0; p < a.cols(); p++)
+                    sum += a.get(i, p) * b.get(p, j);
+                c.set(i, j, sum);
+            }
+        return c;
+    }
+
+    private static void assertEqual(Matrix expected, Matrix actual) {
+        assertEqual(expected, actual, EPS);
+    }
+
+    private static void assertEqual(Matrix expected, Matrix actual, double eps) {
+        assertEquals(expected.rows(), actual.rows());
+        assertEquals(expected.cols(), actual.cols());
+        for (int i = 0; i < expected.rows(); i++)
+            for (int j = 0; j < expected.cols(); j++)
+                assertEquals(expected.get(i, j), actual.get(i, j), eps);
+    }
+}
@@ -2,11 +2,19 @@ package com.tailworks.ml.neuralnet.math;
 
 import org.junit.Test;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
 public class MatrixTest {
 
+    private static final double EPS = 0.00001;
+
     /*
     [2 3 4]   [1]    [20]
     [3 4 5] * [2] =  [26]
@@ -77,4 +85,210 @@ public class MatrixTest {
         assertEquals(((11-6)*(11-6) + (6-3)*(6-3) + (6-3)*(6-3) + (7-6)*(7-6)) / 4, U.variance(), 0.1);
     }
 
-}
\ No newline at end of file
+    @Test
+    public void testGetDataWritesThrough() {
+        double[][] data = {{2, 3, 4}, {3, 4, 5}};
+        Matrix W = new Matrix(data);
+        W.getData()[0][0] = 17;
+        W.mul(2);
+
+        assertSame(data, W.getData());
+        assertEquals(34, W.get(0, 0), 0.1);
+        assertEquals(10, data[1][2], 0.1);
+    }
+
+    @Test
+    public void testGetDataOfFlatMatrixIsACopy() {
+        Matrix W = new Matrix(2, 3).fillFrom(new Matrix(new double[][]{{2, 3, 4}, {3, 4, 5}}));
+        W.getData()[0][0] = 17;
+
+        assertEquals(2, W.get(0, 0), 0.1);
+    }
+
+    @Test
+    public void testWrapBuffer() {
+        ByteBuffer bytes = ByteBuffer.allocate(7 * Double.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < 7; i++)
+            bytes.putDouble(i);
+        bytes.position(Double.BYTES);
+
+        // From the position of the buffer, writes go through to it
+        Matrix W = new Matrix(2, 3, bytes.asDoubleBuffer());
+        assertArrayEquals(new double[]{4, 5, 6}, W.getRow(1).getData(), 0);
+        assertArrayEquals(new double[]{14, 32}, W.multiply(new Vec(1, 2, 3)).getData(), 0);
+        W.set(0, 0, 10);
+        assertEquals(10, bytes.getDouble(Double.BYTES), 0);
+
+        // Copies are of the same kind and precision
+        Matrix F = new Matrix(2, 3, ByteBuffer.allocateDirect(6 * Float.BYTES).asFloatBuffer()).fillFrom(W);
+        assertEquals(Precision.FLOAT, F.precision());
+        assertArrayEquals(W.getRow(0).getData(), F.copy().getRow(0).getData(), 0);
+    }
+
+    @Test
+    public void testRowView() {
+        Matrix W = new Matrix(new double[][]{{2, 3, 4}, {3, 4, 5}});
+        Matrix row = W.row(1);
+        row.mul(2);
+
+        assertEquals(1, row.rows());
+        assertArrayEquals(new double[]{2, 3, 4}, W.getData()[0], 0.1);
+        assertArrayEquals(new double[]{6, 8, 10}, W.getData()[1], 0.1);
+    }
+
+    @Test
+    public void testTransposeView() {
+        Matrix W = new Matrix(new double[][]{{2, 3, 4}, {3, 4, 5}});
+        Matrix T = W.transpose();
+
+        assertEquals(3, T.rows());
+        assertEquals(2, T.cols());
+        assertEquals(4, T.get(2, 0), 0.1);
+        assertArrayEquals(new double[]{8, 11, 14}, T.multiply(new Vec(1, 2)).getData(), 0.1);
+
+        T.set(2, 1, -1);
+        assertEquals(-1, W.get(1, 2), 0.1);
+
+        Matrix copy = T.copy();
+        assertTrue(copy.isContiguous());
+        assertArrayEquals(new double[]{4, -1}, copy.getData()[2], 0.1);
+    }
+
+    @Test
+    public void testSubMatrixView() {
+        Matrix W = new Matrix(new double[][]{{1, 2, 3}, {4, 5, 6}, {7, 8, 9}});
+        Matrix block = W.subMatrix(1, 1, 2, 2);
+
+        assertFalse(block.isContiguous());
+        assertEquals(7, block.average(), 0.1);
+
+        block.add(new Matrix(new double[][]{{10, 10}, {10, 10}}));
+        assertArrayEquals(new double[]{4, 15, 16}, W.getData()[1], 0.1);
+        assertArrayEquals(new double[]{7, 18, 19}, W.getData()[2], 0.1);
+        assertArrayEquals(new double[]{1, 2, 3}, W.getData()[0], 0.1);
+    }
+
+    @Test
+    public void testMultiplyMatrix() {
+        Matrix A = new Matrix(new double[][]{{1, 2}, {3, 4}, {5, 6}});
+        Matrix B = new Matrix(new double[][]{{2, 1, 3}, {3, 4, -1}});
+        Matrix C = A.multiply(B);
+
+        assertEquals(3, C.rows());
+        assertEquals(3, C.cols());
+        assertArrayEquals(new double[]{8, 9, 1}, C.getData()[0], 0.1);
+        assertArrayEquals(new double[]{18, 19, 5}, C.getData()[1], 0.1);
+        assertArrayEquals(new double[]{28, 29, 9}, C.getData()[2], 0.1);
+
+        // The transpose views can be used as operands too
+        Matrix D = B.transpose().multiply(A.transpose());
+        assertArrayEquals(new double[]{8, 18, 28}, D.getData()[0], 0.1);
+    }
+
+    @Test
+    public void testRowVectorOperations() {
+        Matrix A = new Matrix(new double[][]{{1, 2}, {3, 4}, {5, 6}});
+        A.addRowVector(new Vec(10, 20));
+
+        assertArrayEquals(new double[]{13, 24}, A.getRow(1).getData(), 0.1);
+        assertEquals(new Vec(39, 72), A.columnSums());
+
+        A.setRow(2, new Vec(0, 0));
+        assertEquals(new Vec(24, 46), A.columnSums());
+    }
+
+    @Test
+    public void testFloatPrecision() {
+        Matrix F = new Matrix(2, 3, Precision.FLOAT).fillFrom(new Matrix(new double[][]{{2, 3, 4}, {3, 4, 0.1}}));
+
+        assertEquals(Precision.FLOAT, F.precision());
+        assertEquals(Precision.FLOAT, F.copy().precision());
+        assertEquals(Precision.FLOAT, F.transpose().precision());
+        assertEquals((float) 0.1, F.get(1, 2), 0);
+
+        F.add(new Matrix(new double[][]{{1, 1, 1}, {1, 1, 1}})).mul(2);
+        assertArrayEquals(new double[]{6, 8, 10}, F.getData()[0], 0.0001);
+
+        Matrix D = F.copy(Precision.DOUBLE);
+        assertEquals(Precision.DOUBLE, D.precision());
+        assertArrayEquals(F.getData()[1], D.getData()[1], 0);
+
+        // Products are stored in the least precise of the two
+        Matrix P = new Matrix(new double[][]{{1, 2}}).multiply(F);
+        assertEquals(Precision.FLOAT, P.precision());
+        assertArrayEquals(new double[]{6 + 16, 8 + 20, 10 + 4.4}, P.getData()[0], 0.0001);
+        assertArrayEquals(new double[]{6 + 16, 8 + 20, 10 + 4.4}, new Vec(1, 2).mul(F).getData(), 0.0001);
+    }
+
+    @Test
+    public void testAddProduct() {
+        Matrix A = new Matrix(new double[][]{{1, 2}, {3, 4}});
+        Matrix B = new Matrix(new double[][]{{1, 0, 2}, {0, 1, 1}});
+        Matrix C = new Matrix(new double[][]{{1, 1, 1}, {2, 2, 2}});
+
+        assertSame(C, C.addProduct(A, B));
+        assertArrayEquals(new double[]{2, 3, 5}, C.getData()[0], 0);
+        assertArrayEquals(new double[]{5, 6, 12}, C.getData()[1], 0);
+
+        // Same as adding the product of transposed views
+        Matrix D = new Matrix(2, 3).addProduct(A.transpose().transpose(), B);
+        assertArrayEquals(A.multiply(B).getData()[1], D.getData()[1], 0);
+    }
+
+    @Test
+    public void testAddOuterProduct() {
+        Vec u = new Vec(1, 0, 2);
+        Vec v = new Vec(3, -1);
+        Matrix M = new Matrix(3, 2).map(x -> 1);
+
+        assertSame(M, M.addOuterProduct(u, v));
+        Matrix expected = v.outerProduct(u).add(new Matrix(3, 2).map(x -> 1));
+        for (int row = 0; row < 3; row++)
+            assertArrayEquals(expected.getData()[row], M.getData()[row], 0);
+        assertArrayEquals(new double[]{7, -1}, M.getData()[2], 0);
+    }
+
+    @Test
+    public void testOffHeap() {
+        Matrix W = Matrix.offHeap(3, 4, Precision.FLOAT);
+
+        assertTrue(W.isOffHeap());
+        assertEquals(Precision.FLOAT, W.precision());
+        assertTrue(W.copy().isOffHeap());
+        assertTrue(W.like().isOffHeap());
+        assertFalse(new Matrix(3, 4).like().isOffHeap());
+        assertEquals(0, W.get(2, 3), 0);
+    }
+
+    @Test
+    public void testOffHeapAcrossChunks() {
+        // Chunks of 8 elements, so that rows and columns cross them
+        for (Precision precision : Precision.values()) {
+            Matrix A = new Matrix(new ChunkedStorage(7 * 5, precision, 3), 7, 5).map(x -> Math.random());
+            Matrix B = new Matrix(new ChunkedStorage(5 * 6, precision, 3), 5, 6).map(x -> Math.random());
+            Matrix heapA = A.copy(precision);
+            Matrix heapB = B.copy(precision);
+
+            assertMatrixEquals(heapA.multiply(heapB), A.multiply(B));
+            assertMatrixEquals(heapA.transpose().multiply(heapA), A.transpose().multiply(A));
+            assertArrayEquals(heapA.multiply(new Vec(1, 2, 3, 4, 5)).getData(), A.multiply(new Vec(1, 2, 3, 4, 5)).getData(), EPS);
+            assertArrayEquals(new Vec(1, 2, 3, 4, 5, 6, 7).mul(heapA).getData(), new Vec(1, 2, 3, 4, 5, 6, 7).mul(A).getData(), EPS);
+
+            A.add(heapA).mul(0.5).addOuterProduct(new Vec(1, 0, 2, 0, 0, 1, 1), new Vec(1, 2, 3, 4, 5));
+            heapA.add(heapA.copy()).mul(0.5).addOuterProduct(new Vec(1, 0, 2, 0, 0, 1, 1), new Vec(1, 2, 3, 4, 5));
+            assertMatrixEquals(heapA, A);
+            assertArrayEquals(heapA.columnSums().getData(), A.columnSums().getData(), EPS);
+            assertArrayEquals(heapA.getRow(6).getData(), A.getRow(6).getData(), 0);
+
+            Matrix C = A.copy();
+            assertTrue(C.isOffHeap());
+            assertMatrixEquals(A, C);
+        }
+    }
+
+    private static void assertMatrixEquals(Matrix expected, Matrix actual) {
+        for (int row = 0; row < expected.rows(); row++)
+            assertArrayEquals(expected.getData()[row], actual.getData()[row], EPS);
+    }
+
+}
@@ -0,0 +1,56 @@
+package com.tailworks.ml.neuralnet.math;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class SparseVecTest {
+
+    private final SparseVec v = new SparseVec(4, new int[]{1, 3}, new double[]{2, -1});
+
+    @Test
+    public void toDense() {
+        assertEquals(new Vec(0, 2, 0, -1), v.toDense());
+        assertEquals(2, v.nonZeros());
+        assertEquals(4, v.dimension());
+    }
+
+    @Test
+    public void dot() {
+        assertEquals(2 * 5 - 7, v.dot(new Vec(1, 5, 3, 7)), 0);
+    }
+
+    @Test
+    public void mul() {
+        Matrix m = new Matrix(new double[][]{{1, 2}, {3, 4}, {5, 6}, {7, 8}});
+
+        assertEquals(v.toDense().mul(m), v.mul(m));
+        assertEquals(new Vec(0, 1), v.mulAddInto(m, new Vec(1, 1), new Vec(2)));
+
+        // Also through a transposed view
+        Matrix t = new Matrix(new double[][]{{1, 3, 5, 7}, {2, 4, 6, 8}}).transpose();
+        assertEquals(v.toDense().mul(m), v.mul(t));
+    }
+
+    @Test
+    public void addOuterProduct() {
+        Matrix m = new Matrix(4, 2).map(x -> 1);
+        m.addOuterProduct(v, new Vec(3, 4));
+
+        Matrix expected = new Matrix(4, 2).map(x -> 1).addOuterProduct(v.toDense(), new Vec(3, 4));
+        for (int row = 0; row < 4; row++)
+            assertArrayEquals(expected.getData()[row], m.getData()[row], 0);
+        assertArrayEquals(new double[]{1, 1}, m.getData()[0], 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void indicesMustIncrease() {
+        new SparseVec(4, new int[]{2, 1}, new double[]{1, 1});
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void indicesMustBeWithinDimension() {
+        new SparseVec(4, new int[]{4}, new double[]{1});
+    }
+}
@@ -3,6 +3,7 @@ package com.tailworks.ml.neuralnet.math;
 import org.junit.Test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
 
 public class VecTest {
 
@@ -60,4 +61,36 @@ public class VecTest {
     public void index() {
         assertEquals(3, new Vec(1, -2, 3, 5, -25).indexOfLargestElement());
     }
+
+    @Test
+    public void inPlace() {
+        Vec v = new Vec(1, -2, 3);
+        assertSame(v, v.addInPlace(new Vec(2, 2, 2)));
+        assertEquals(new Vec(3, 0, 5), v);
+
+        assertSame(v, v.mapInPlace(x -> 2 * x));
+        assertEquals(new Vec(6, 0, 10), v);
+    }
+
+    @Test
+    public void mulInto() {
+        Matrix m = new Matrix(new double[][]{{2, 1, 3}, {3, 4, -1}});
+        Vec dst = new Vec(7, 7, 7);
+
+        assertSame(dst, new Vec(1, 2).mulInto(m, dst));
+        assertEquals(new Vec(8, 9, 1), dst);
+
+        Vec col = new Vec(-1, -1);
+        assertSame(col, m.multiplyInto(new Vec(1, 2, 3), col));
+        assertEquals(new Vec(13, 8), col);
+    }
+
+    @Test
+    public void mulAddInto() {
+        Matrix m = new Matrix(new double[][]{{2, 1, 3}, {3, 4, -1}});
+        Vec dst = new Vec(7, 7, 7);
+
+        assertSame(dst, new Vec(1, 2).mulAddInto(m, new Vec(1, 0, -1), dst));
+        assertEquals(new Vec(9, 9, 0), dst);
+    }
 }
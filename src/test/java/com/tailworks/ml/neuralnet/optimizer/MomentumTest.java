@@ -2,6 +2,7 @@ package com.tailworks.ml.neuralnet.optimizer;
 
 
 import com.tailworks.ml.neuralnet.math.Matrix;
+import com.tailworks.ml.neuralnet.math.SparseVec;
 import com.tailworks.ml.neuralnet.math.Vec;
 import org.junit.Test;
 
@@ -35,4 +36,33 @@ public class MomentumTest {
         assertArrayEquals(new double[]{1.9710, 2.9565, 3.9420}, bias.getData(), EPS);
     }
 
+    @Test
+    public void testMomentumInPlaceUpdateTouchesOnlyNonZeroRows() {
+        Matrix W = new Matrix(new double[][]{{2, 3, 4}, {3, 4, 5}});
+        Vec bias = new Vec(2, 3, 4);
+        SparseVec in = new SparseVec(2, new int[]{1}, new double[]{1});
+        Vec dCdI = new Vec(.3, .4, .5);
+        Optimizer o = new Momentum(0.05);
+
+        o.updateInPlace(W, bias, in, dCdI);
+        o.updateInPlace(W, bias, in, dCdI);
+        assertArrayEquals(new double[]{2, 3, 4}, W.getData()[0], EPS);
+        assertArrayEquals(new double[]{2.9565, 3.9420, 4.9275}, W.getData()[1], EPS);
+        assertArrayEquals(new double[]{1.9565, 2.9420, 3.9275}, bias.getData(), EPS);
+    }
+
+    @Test
+    public void testMomentumDenseInPlaceUpdateSameAsSparse() {
+        Matrix W = new Matrix(new double[][]{{2, 3, 4}, {3, 4, 5}});
+        Vec bias = new Vec(2, 3, 4);
+        Vec dCdI = new Vec(.3, .4, .5);
+        Optimizer o = new Momentum(0.05);
+
+        o.updateInPlace(W, bias, new Vec(0, 1), dCdI);
+        o.updateInPlace(W, bias, new Vec(0, 1), dCdI);
+        assertArrayEquals(new double[]{2, 3, 4}, W.getData()[0], EPS);
+        assertArrayEquals(new double[]{2.9565, 3.9420, 4.9275}, W.getData()[1], EPS);
+        assertArrayEquals(new double[]{1.9565, 2.9420, 3.9275}, bias.getData(), EPS);
+    }
+
 }